@@ -6,5 +6,9 @@ public final class ErrorCodes {
     public static final String VALIDATION_ERROR = "VALIDATION_ERROR";
     public static final String TASK_NOT_FOUND = "TASK_NOT_FOUND";
     public static final String HISTORY_NOT_FOUND = "HISTORY_NOT_FOUND";
+    public static final String IMAGE_NOT_FOUND = "IMAGE_NOT_FOUND";
     public static final String INTERNAL_ERROR = "INTERNAL_ERROR";
+    public static final String QUEUE_FULL = "QUEUE_FULL";
+    public static final String USER_TASK_LIMIT = "USER_TASK_LIMIT";
+    public static final String TASK_NOT_CANCELLABLE = "TASK_NOT_CANCELLABLE";
 }
@@ -0,0 +1,75 @@
+package com.moments.optimizer.controller;
+
+import com.moments.optimizer.api.ErrorCodes;
+import com.moments.optimizer.exception.NotFoundException;
+import com.moments.optimizer.image.ImageStore;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves images from the {@link ImageStore}. Contents never change under a hash, so responses are cacheable for
+ * good. When the connector supports sendfile (Tomcat's NIO connector does by default), Tomcat writes the file to
+ * the socket itself and the body never passes through the heap. Otherwise it is copied to the servlet output stream
+ * in small heap buffers.
+ */
+@RestController
+public class ImageController {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private final ObjectProvider<ImageStore> imageStore;
+
+    public ImageController(ObjectProvider<ImageStore> imageStore) {
+        this.imageStore = imageStore;
+    }
+
+    @GetMapping("/images/{name}")
+    public void image(@PathVariable("name") String name, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        ImageStore store = imageStore.getIfAvailable();
+        String sha256 = ImageStore.keyOf(name);
+        if (store == null || sha256 == null) {
+            throw new NotFoundException(ErrorCodes.IMAGE_NOT_FOUND, "Image not found");
+        }
+        Path file = store.file(sha256);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String etag = "\"" + sha256 + "\"";
+            response.setHeader(HttpHeaders.ETAG, etag);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable");
+            if (etag.equals(request.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            response.setContentType("image/jpeg");
+            response.setContentLengthLong(size);
+            if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+                request.setAttribute("org.apache.tomcat.sendfile.filename", file.toAbsolutePath().toString());
+                request.setAttribute("org.apache.tomcat.sendfile.start", 0L);
+                request.setAttribute("org.apache.tomcat.sendfile.end", size);
+                return;
+            }
+            // The servlet stream is no file or socket channel, so transferTo copies through a small heap buffer here.
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+        } catch (NoSuchFileException ex) {
+            throw new NotFoundException(ErrorCodes.IMAGE_NOT_FOUND, "Image not found");
+        }
+    }
+}
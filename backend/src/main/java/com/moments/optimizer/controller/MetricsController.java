@@ -0,0 +1,28 @@
+package com.moments.optimizer.controller;
+
+import com.moments.optimizer.api.ApiResponse;
+import com.moments.optimizer.metrics.MetricsSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+@RestController
+public class MetricsController {
+
+    private final ObjectProvider<MetricsSource> sources;
+
+    public MetricsController(ObjectProvider<MetricsSource> sources) {
+        this.sources = sources;
+    }
+
+    @GetMapping("/internal/metrics")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> metrics() {
+        Map<String, Object> body = new TreeMap<>();
+        sources.orderedStream().forEach(source -> body.put(source.metricsName(), source.metricsSnapshot()));
+        return ResponseEntity.ok(ApiResponse.ok(body));
+    }
+}
@@ -3,7 +3,9 @@ package com.moments.optimizer.controller.api;
 import com.moments.optimizer.api.ApiResponse;
 import com.moments.optimizer.dto.TaskCreateRequest;
 import com.moments.optimizer.dto.TaskDetailDto;
+import com.moments.optimizer.service.TaskAdmissionService;
 import com.moments.optimizer.service.TaskService;
+import com.moments.optimizer.service.TaskStreamService;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -11,21 +13,30 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping("/api/tasks")
 public class TaskController {
 
     private final TaskService taskService;
+    private final TaskAdmissionService admissionService;
+    private final TaskStreamService streamService;
 
-    public TaskController(TaskService taskService) {
+    public TaskController(TaskService taskService,
+                          TaskAdmissionService admissionService,
+                          TaskStreamService streamService) {
         this.taskService = taskService;
+        this.admissionService = admissionService;
+        this.streamService = streamService;
     }
 
     @PostMapping
     public ResponseEntity<ApiResponse<TaskDetailDto>> createTask(@RequestBody TaskCreateRequest request) {
-        TaskDetailDto task = taskService.createTask(request);
-        return ResponseEntity.ok(ApiResponse.ok(task));
+        try (TaskAdmissionService.Admission ignored = admissionService.admit(request.getUserId())) {
+            TaskDetailDto task = taskService.createTask(request);
+            return ResponseEntity.ok(ApiResponse.ok(task));
+        }
     }
 
     @GetMapping("/{id}")
@@ -33,4 +44,15 @@ public class TaskController {
         TaskDetailDto task = taskService.getTask(id);
         return ResponseEntity.ok(ApiResponse.ok(task));
     }
+
+    @GetMapping("/{id}/stream")
+    public SseEmitter streamTask(@PathVariable("id") String id) {
+        return streamService.subscribe(id);
+    }
+
+    @PostMapping("/{id}/cancel")
+    public ResponseEntity<ApiResponse<TaskDetailDto>> cancelTask(@PathVariable("id") String id) {
+        TaskDetailDto task = taskService.cancelTask(id);
+        return ResponseEntity.ok(ApiResponse.ok(task));
+    }
 }
@@ -0,0 +1,23 @@
+package com.moments.optimizer.domain;
+
+public class ImageRef {
+
+    private String ownerId;
+    private String sha256;
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+}
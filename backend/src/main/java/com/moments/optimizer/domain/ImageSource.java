@@ -0,0 +1,68 @@
+package com.moments.optimizer.domain;
+
+public class ImageSource {
+
+    private String sourceKey;
+    private String sha256;
+    private Integer width;
+    private Integer height;
+    private Integer sourceWidth;
+    private Integer sourceHeight;
+    private Long sourceBytes;
+
+    public String getSourceKey() {
+        return sourceKey;
+    }
+
+    public void setSourceKey(String sourceKey) {
+        this.sourceKey = sourceKey;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public Integer getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public void setSourceWidth(Integer sourceWidth) {
+        this.sourceWidth = sourceWidth;
+    }
+
+    public Integer getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public void setSourceHeight(Integer sourceHeight) {
+        this.sourceHeight = sourceHeight;
+    }
+
+    public Long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    public void setSourceBytes(Long sourceBytes) {
+        this.sourceBytes = sourceBytes;
+    }
+}
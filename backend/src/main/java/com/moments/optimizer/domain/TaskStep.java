@@ -13,6 +13,12 @@ public class TaskStep {
     private LocalDateTime startedAt;
     private LocalDateTime finishedAt;
     private String extraJson;
+    private LocalDateTime heartbeatAt;
+    private Integer branchIndex;
+    private String dependsOn;
+    private Integer attemptCount;
+    private LocalDateTime nextAttemptAt;
+    private String partialOutput;
 
     public Long getId() {
         return id;
@@ -85,4 +91,52 @@ public class TaskStep {
     public void setExtraJson(String extraJson) {
         this.extraJson = extraJson;
     }
+
+    public LocalDateTime getHeartbeatAt() {
+        return heartbeatAt;
+    }
+
+    public void setHeartbeatAt(LocalDateTime heartbeatAt) {
+        this.heartbeatAt = heartbeatAt;
+    }
+
+    public Integer getBranchIndex() {
+        return branchIndex;
+    }
+
+    public void setBranchIndex(Integer branchIndex) {
+        this.branchIndex = branchIndex;
+    }
+
+    public String getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(String dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
+    public Integer getAttemptCount() {
+        return attemptCount;
+    }
+
+    public void setAttemptCount(Integer attemptCount) {
+        this.attemptCount = attemptCount;
+    }
+
+    public LocalDateTime getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public String getPartialOutput() {
+        return partialOutput;
+    }
+
+    public void setPartialOutput(String partialOutput) {
+        this.partialOutput = partialOutput;
+    }
 }
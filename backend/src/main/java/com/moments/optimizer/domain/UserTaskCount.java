@@ -0,0 +1,23 @@
+package com.moments.optimizer.domain;
+
+public class UserTaskCount {
+
+    private String userId;
+    private Integer taskCount;
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public Integer getTaskCount() {
+        return taskCount;
+    }
+
+    public void setTaskCount(Integer taskCount) {
+        this.taskCount = taskCount;
+    }
+}
@@ -13,6 +13,7 @@ public class TaskDetailDto {
     private List<TaskStepDto> steps;
     private Map<String, Object> resultJson;
     private String errorMessage;
+    private LocalDateTime deadlineAt;
 
     public String getId() {
         return id;
@@ -77,4 +78,12 @@ public class TaskDetailDto {
     public void setErrorMessage(String errorMessage) {
         this.errorMessage = errorMessage;
     }
+
+    public LocalDateTime getDeadlineAt() {
+        return deadlineAt;
+    }
+
+    public void setDeadlineAt(LocalDateTime deadlineAt) {
+        this.deadlineAt = deadlineAt;
+    }
 }
@@ -8,6 +8,9 @@ public class TaskStepDto {
     private String status;
     private LocalDateTime startedAt;
     private LocalDateTime finishedAt;
+    private Integer attemptCount;
+    private LocalDateTime nextAttemptAt;
+    private String partialOutput;
 
     public String getKey() {
         return key;
@@ -48,4 +51,28 @@ public class TaskStepDto {
     public void setFinishedAt(LocalDateTime finishedAt) {
         this.finishedAt = finishedAt;
     }
+
+    public Integer getAttemptCount() {
+        return attemptCount;
+    }
+
+    public void setAttemptCount(Integer attemptCount) {
+        this.attemptCount = attemptCount;
+    }
+
+    public LocalDateTime getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public String getPartialOutput() {
+        return partialOutput;
+    }
+
+    public void setPartialOutput(String partialOutput) {
+        this.partialOutput = partialOutput;
+    }
 }
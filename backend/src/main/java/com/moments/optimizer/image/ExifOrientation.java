@@ -0,0 +1,137 @@
+package com.moments.optimizer.image;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Reads the EXIF orientation of a JPEG, which phone cameras set instead of rotating the pixels. Normalized images
+ * carry no metadata, so the rotation is applied to the pixels before the tag is dropped.
+ */
+final class ExifOrientation {
+
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    private ExifOrientation() {
+    }
+
+    // 1 (as stored) when the image is not a JPEG or has no readable orientation tag.
+    static int read(byte[] data) {
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return 1;
+        }
+        int pos = 2;
+        while (pos + 4 <= data.length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                return 1;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // Start of the image data: the metadata segments are all before it.
+                return 1;
+            }
+            int length = u16(data, pos + 2, false);
+            int start = pos + 4;
+            int end = Math.min(data.length, pos + 2 + length);
+            if (marker == 0xE1 && end - start >= 14 && data[start] == 'E' && data[start + 1] == 'x'
+                    && data[start + 2] == 'i' && data[start + 3] == 'f' && data[start + 4] == 0 && data[start + 5] == 0) {
+                return tiffOrientation(data, start + 6, end);
+            }
+            pos += 2 + length;
+        }
+        return 1;
+    }
+
+    private static int tiffOrientation(byte[] data, int tiff, int end) {
+        boolean little = data[tiff] == 'I' && data[tiff + 1] == 'I';
+        long ifdOffset = u32(data, tiff + 4, little);
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+            return 1;
+        }
+        int ifd = tiff + (int) ifdOffset;
+        int count = u16(data, ifd, little);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                break;
+            }
+            if (u16(data, entry, little) == TAG_ORIENTATION) {
+                int value = u16(data, entry + 8, little);
+                return value >= 1 && value <= 8 ? value : 1;
+            }
+        }
+        return 1;
+    }
+
+    /** Returns the image as it should be displayed for the given orientation. */
+    static BufferedImage apply(BufferedImage image, int orientation) {
+        if (orientation <= 1 || orientation > 8) {
+            return image;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean swap = orientation >= 5;
+        AffineTransform transform = new AffineTransform();
+        switch (orientation) {
+            case 2 -> {
+                transform.translate(w, 0);
+                transform.scale(-1, 1);
+            }
+            case 3 -> {
+                transform.translate(w, h);
+                transform.rotate(Math.PI);
+            }
+            case 4 -> {
+                transform.translate(0, h);
+                transform.scale(1, -1);
+            }
+            case 5 -> {
+                transform.rotate(Math.PI / 2);
+                transform.scale(1, -1);
+            }
+            case 6 -> {
+                transform.translate(h, 0);
+                transform.rotate(Math.PI / 2);
+            }
+            case 7 -> {
+                transform.translate(h, w);
+                transform.rotate(Math.PI / 2);
+                transform.scale(-1, 1);
+            }
+            default -> {
+                transform.translate(0, w);
+                transform.rotate(-Math.PI / 2);
+            }
+        }
+        BufferedImage out = new BufferedImage(swap ? h : w, swap ? w : h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.drawImage(image, transform, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    private static int u16(byte[] data, int pos, boolean little) {
+        if (pos + 2 > data.length) {
+            return 0;
+        }
+        int a = data[pos] & 0xFF;
+        int b = data[pos + 1] & 0xFF;
+        return little ? (b << 8) | a : (a << 8) | b;
+    }
+
+    private static long u32(byte[] data, int pos, boolean little) {
+        if (pos + 4 > data.length) {
+            return 0;
+        }
+        long hi = u16(data, little ? pos + 2 : pos, little);
+        long lo = u16(data, little ? pos : pos + 2, little);
+        return (hi << 16) | lo;
+    }
+}
@@ -0,0 +1,70 @@
+package com.moments.optimizer.image;
+
+import com.moments.optimizer.mapper.ImageStoreMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+@Configuration
+public class ImageIngestConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageIngestConfig.class);
+
+    private ImageStore imageStore;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "moments.image.ingest.enabled", havingValue = "true")
+    public ImageIngestor imageIngestor(
+            ObjectProvider<ImageStore> imageStore,
+            @Value("${moments.image.ingest.max-dimension:1024}") int maxDimension,
+            @Value("${moments.image.ingest.quality:0.85}") float quality,
+            @Value("${moments.image.ingest.max-source-bytes:20971520}") long maxSourceBytes,
+            @Value("${moments.image.ingest.max-buffered-bytes:134217728}") long maxBufferedBytes,
+            @Value("${moments.image.ingest.max-pixels:50000000}") long maxPixels,
+            @Value("${moments.image.ingest.max-concurrent-decodes:0}") int maxConcurrentDecodes,
+            @Value("${moments.image.ingest.fetch-timeout-ms:10000}") long fetchTimeoutMs,
+            @Value("${moments.image.ingest.allow-private-hosts:false}") boolean allowPrivateHosts) {
+        int decodes = maxConcurrentDecodes > 0 ? maxConcurrentDecodes : Runtime.getRuntime().availableProcessors();
+        ImageIngestor.Settings settings = new ImageIngestor.Settings(Math.max(16, maxDimension),
+                Math.min(1.0f, Math.max(0.1f, quality)), Math.max(1024L, maxSourceBytes),
+                Math.max(maxSourceBytes, maxBufferedBytes), Math.max(1L, maxPixels), decodes,
+                Math.max(100L, fetchTimeoutMs), allowPrivateHosts);
+        log.info("Image ingestion: max {}px at quality {}, sources up to {} bytes, {} decodes at once, store {}",
+                settings.maxDimension(), settings.quality(), settings.maxSourceBytes(), decodes,
+                imageStore.getIfAvailable() == null ? "off" : "on");
+        return new ImageIngestor(settings, imageStore.getIfAvailable());
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "moments.image.store.enabled", havingValue = "true")
+    public ImageStore imageStore(
+            ImageStoreMapper mapper,
+            TransactionTemplate transactionTemplate,
+            @Value("${moments.image.store.dir:data/images}") String dir,
+            @Value("${moments.image.store.gc-interval-seconds:600}") long gcIntervalSeconds,
+            @Value("${moments.image.store.gc-grace-seconds:3600}") long gcGraceSeconds,
+            @Value("${moments.image.store.gc-batch:500}") int gcBatch) throws IOException {
+        log.info("Image store at {} (collection every {}s, grace {}s)", dir, gcIntervalSeconds, gcGraceSeconds);
+        this.imageStore = new ImageStore(mapper, transactionTemplate, new ImageStore.Settings(Path.of(dir),
+                Math.max(0L, gcIntervalSeconds) * 1000L, Math.max(0L, gcGraceSeconds) * 1000L, Math.max(1, gcBatch)));
+        return this.imageStore;
+    }
+
+    // Checked once the context is ready, after the migrations have run; a failure stops the application.
+    @EventListener(ApplicationReadyEvent.class)
+    public void checkImageStore() {
+        if (imageStore != null) {
+            imageStore.checkSharedDir();
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package com.moments.optimizer.image;
+
+import com.moments.optimizer.domain.ImageSource;
+import com.moments.optimizer.metrics.MetricsSource;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.TaskContext;
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches task images and normalizes them for the image model: decoded with subsampling close to the target size,
+ * turned upright by their EXIF orientation, scaled to at most {@code maxDimension} pixels per side and re-encoded
+ * as JPEG at {@code quality} with no metadata. Memory stays bounded: source bytes held at once are capped by
+ * {@code maxBufferedBytes}, each source by {@code maxSourceBytes}, and at most {@code maxConcurrentDecodes} images
+ * are decoded at once. Image dimensions are checked against {@code maxPixels} before decoding.
+ *
+ * <p>With an {@link ImageStore}, normalized images are stored under their hash and referenced by their task. A
+ * source that was normalized before, with the same settings, is read back from the store instead of being decoded
+ * and written again. A store failure only costs the image its path; the task still gets the image.
+ */
+public class ImageIngestor implements MetricsSource, AutoCloseable {
+
+    public static final String TARGET_STEP = "image_model_call";
+    public static final String ATTACHMENT = "image";
+    public static final String SAVE_STEP = "image_result_saved";
+    public static final String PATHS_ATTACHMENT = "imagePaths";
+
+    private static final Logger log = LoggerFactory.getLogger(ImageIngestor.class);
+    private static final String SOURCE_STEP = "image_processing";
+
+    private static final int MAX_REDIRECTS = 3;
+    private static final int READ_CHUNK = 16 * 1024;
+    // Fetches are already bounded by the image pool.
+    private static final int MAX_CONNECTIONS = 64;
+
+    public record Settings(int maxDimension, float quality, long maxSourceBytes, long maxBufferedBytes,
+                           long maxPixels, int maxConcurrentDecodes, long fetchTimeoutMillis,
+                           boolean allowPrivateHosts) {}
+
+    private final Settings settings;
+    private final ImageStore store;
+    // Part of every source key, so changed settings normalize sources again.
+    private final String sourceSalt;
+    private final CloseableHttpClient httpClient;
+    // In KiB, so budgets over 2 GiB still fit the permit count.
+    private final Semaphore buffered;
+    private final int bufferedKib;
+    private final Semaphore decodes;
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong sourceBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+    private final AtomicLong fetchMillis = new AtomicLong();
+    private final AtomicLong processMillis = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public ImageIngestor(Settings settings, ImageStore store) {
+        this.settings = settings;
+        this.store = store;
+        this.sourceSalt = "|" + settings.maxDimension() + "|" + settings.quality();
+        // Redirects are followed by fetch, one checked hop at a time; compression would hide the declared length.
+        // A GET on a kept-alive connection the server has since closed is retried once, on a fresh connection.
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                        .setDnsResolver(settings.allowPrivateHosts() ? SystemDefaultDnsResolver.INSTANCE
+                                : new PublicHostResolver())
+                        .setMaxConnTotal(MAX_CONNECTIONS)
+                        .setMaxConnPerRoute(MAX_CONNECTIONS)
+                        .setDefaultConnectionConfig(ConnectionConfig.custom()
+                                .setConnectTimeout(Timeout.ofMilliseconds(settings.fetchTimeoutMillis()))
+                                .build())
+                        .build())
+                .disableRedirectHandling()
+                .setRetryStrategy(new DefaultHttpRequestRetryStrategy(1, TimeValue.ZERO_MILLISECONDS))
+                .disableContentCompression()
+                .disableCookieManagement()
+                .build();
+        this.bufferedKib = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(kib(settings.maxSourceBytes()), kib(settings.maxBufferedBytes())));
+        this.buffered = new Semaphore(bufferedKib, true);
+        this.decodes = new Semaphore(Math.max(1, settings.maxConcurrentDecodes()), true);
+    }
+
+    /**
+     * Normalizes the image of one branch of the task, at most once per run, and attaches it to the branch's image
+     * model call. Returns null when the task has no image for the branch.
+     */
+    public NormalizedImage attach(TaskContext context, Integer branchIndex) throws ModelClientException {
+        if (context.attachments(TARGET_STEP, branchIndex).get(ATTACHMENT) instanceof NormalizedImage image) {
+            return image;
+        }
+        String url = sourceUrl(context, branchIndex);
+        if (url == null) {
+            return null;
+        }
+        NormalizedImage image = ingest(url, context.taskId());
+        context.putAttachment(TARGET_STEP, branchIndex, ATTACHMENT, image);
+        return image;
+    }
+
+    public boolean stores() {
+        return store != null;
+    }
+
+    /**
+     * Attaches the stored paths of the task's images to the step that saves the result, in branch order, from
+     * the image_processing outputs. Those are checkpointed, so this also works for a resumed run.
+     */
+    public void attachImagePaths(TaskContext context) {
+        Map<Integer, Object> paths = new TreeMap<>();
+        context.outputs().forEach((nodeKey, output) -> {
+            if (output instanceof Map<?, ?> values && values.get("imagePath") != null
+                    && (nodeKey.equals(SOURCE_STEP) || nodeKey.startsWith(SOURCE_STEP + "#"))) {
+                int branch = nodeKey.equals(SOURCE_STEP) ? 0
+                        : Integer.parseInt(nodeKey.substring(SOURCE_STEP.length() + 1));
+                paths.put(branch, values.get("imagePath"));
+            }
+        });
+        if (!paths.isEmpty()) {
+            context.putAttachment(SAVE_STEP, null, PATHS_ATTACHMENT, List.copyOf(paths.values()));
+        }
+    }
+
+    /** Normalizes one image; with a store and an owner, the image is stored and referenced by the owner. */
+    public NormalizedImage ingest(String url, String ownerId) throws ModelClientException {
+        long started = System.nanoTime();
+        try {
+            Source source = fetch(url);
+            try {
+                long fetched = System.nanoTime();
+                fetchMillis.addAndGet((fetched - started) / 1_000_000L);
+                String sourceKey = store == null || ownerId == null ? null
+                        : ImageStore.sha256(source.data(), source.length(), sourceSalt);
+                NormalizedImage image = sourceKey == null ? null : reuse(url, sourceKey, ownerId);
+                if (image == null) {
+                    acquire(decodes, 1);
+                    try {
+                        image = normalize(url, source.data(), source.length());
+                    } finally {
+                        decodes.release();
+                    }
+                    if (sourceKey != null) {
+                        image = save(image, sourceKey, ownerId);
+                    }
+                }
+                images.incrementAndGet();
+                sourceBytes.addAndGet(source.length());
+                outputBytes.addAndGet(image.data().length);
+                processMillis.addAndGet((System.nanoTime() - fetched) / 1_000_000L);
+                return image;
+            } finally {
+                buffered.release(source.reservedKib());
+            }
+        } catch (ModelClientException ex) {
+            failures.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    private NormalizedImage reuse(String url, String sourceKey, String ownerId) {
+        try {
+            ImageSource known = store.source(sourceKey);
+            byte[] data = known == null ? null : store.acquire(ownerId, known.getSha256());
+            if (data == null) {
+                return null;
+            }
+            reused.incrementAndGet();
+            return new NormalizedImage(describeUrl(url), "image/jpeg", known.getWidth(), known.getHeight(),
+                    known.getSourceWidth(), known.getSourceHeight(), known.getSourceBytes(), null, null, data)
+                    .stored(known.getSha256());
+        } catch (DataAccessException ex) {
+            log.warn("Image store lookup failed, normalizing {} again: {}", describeUrl(url), ex.getMessage());
+            return null;
+        }
+    }
+
+    private NormalizedImage save(NormalizedImage image, String sourceKey, String ownerId) {
+        String sha256 = ImageStore.sha256(image.data(), image.data().length, null);
+        try {
+            store.put(ownerId, sha256, image.data());
+            ImageSource source = new ImageSource();
+            source.setSourceKey(sourceKey);
+            source.setSha256(sha256);
+            source.setWidth(image.width());
+            source.setHeight(image.height());
+            source.setSourceWidth(image.sourceWidth());
+            source.setSourceHeight(image.sourceHeight());
+            source.setSourceBytes(image.sourceBytes());
+            store.recordSource(source);
+            return image.stored(sha256);
+        } catch (IOException | DataAccessException ex) {
+            log.warn("Failed to store image {}: {}", sha256, ex.getMessage());
+            return image;
+        }
+    }
+
+    @Override
+    public String metricsName() {
+        return "imageIngest";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        long in = sourceBytes.get();
+        long out = outputBytes.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("maxDimension", settings.maxDimension());
+        snapshot.put("quality", settings.quality());
+        snapshot.put("images", images.get());
+        snapshot.put("failures", failures.get());
+        snapshot.put("reused", reused.get());
+        snapshot.put("sourceBytes", in);
+        snapshot.put("outputBytes", out);
+        snapshot.put("outputRatio", in == 0 ? 0.0 : Math.round(out * 1000.0 / in) / 1000.0);
+        snapshot.put("fetchMs", fetchMillis.get());
+        snapshot.put("processMs", processMillis.get());
+        snapshot.put("bufferedBytes", (long) (bufferedKib - buffered.availablePermits()) * 1024L);
+        snapshot.put("decodesInFlight", Math.max(1, settings.maxConcurrentDecodes()) - decodes.availablePermits());
+        return snapshot;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    private static String sourceUrl(TaskContext context, Integer branchIndex) throws ModelClientException {
+        int index = branchIndex == null ? 0 : branchIndex;
+        if (context.payload().get("imageUrls") instanceof List<?> urls && index < urls.size()
+                && urls.get(index) instanceof String url && !url.isBlank()) {
+            return url.trim();
+        }
+        return null;
+    }
+
+    // Source bytes and the share of the buffer budget they hold until released.
+    private record Source(byte[] data, int length, int reservedKib) {}
+
+    private Source fetch(String url) throws ModelClientException {
+        if (url.regionMatches(true, 0, "data:", 0, 5)) {
+            return decodeDataUrl(url);
+        }
+        URI uri = parse(url);
+        for (int redirects = 0; ; redirects++) {
+            Exchange exchange = send(uri);
+            int status = exchange.response().getCode();
+            Header location = exchange.response().getFirstHeader("Location");
+            if (status >= 300 && status < 400 && location != null) {
+                exchange.abort();
+                if (redirects >= MAX_REDIRECTS) {
+                    throw imageError("Too many redirects for image " + url);
+                }
+                uri = parse(uri.resolve(location.getValue()).toString());
+                continue;
+            }
+            if (status < 200 || status >= 300) {
+                exchange.abort();
+                // A missing or forbidden image stays missing; server errors are worth a retry.
+                String message = "Image fetch failed with HTTP " + status;
+                throw status >= 500 ? new ModelClientException("HTTP_ERROR", message, null) : imageError(message);
+            }
+            return read(exchange);
+        }
+    }
+
+    // Cancelling the scope aborts the exchange, which also unblocks a read of its body.
+    private Exchange send(URI uri) throws ModelClientException {
+        CancellationScope scope = CancellationScope.current();
+        long timeout = settings.fetchTimeoutMillis();
+        if (scope != null) {
+            timeout = Math.max(1L, Math.min(timeout, scope.remainingMillis()));
+        }
+        HttpGet request = new HttpGet(uri);
+        request.setHeader("Accept", "image/*");
+        request.setConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(timeout))
+                .setResponseTimeout(Timeout.ofMilliseconds(timeout))
+                .build());
+        if (scope != null) {
+            scope.onCancel(request::cancel);
+        }
+        try {
+            return new Exchange(request, httpClient.executeOpen(null, request, null));
+        } catch (DisallowedHostException ex) {
+            throw imageError(ex.getMessage());
+        } catch (UnknownHostException ex) {
+            throw new ModelClientException("HTTP_ERROR", "Unknown image host " + uri.getHost(), null);
+        } catch (IOException ex) {
+            if (scope != null && scope.isCancelled()) {
+                throw aborted(scope);
+            }
+            throw new ModelClientException("HTTP_ERROR", "Image fetch failed: " + ex.getMessage(), null);
+        }
+    }
+
+    private Source read(Exchange exchange) throws ModelClientException {
+        HttpEntity entity = exchange.response().getEntity();
+        long declared = entity == null ? 0L : entity.getContentLength();
+        if (declared > settings.maxSourceBytes()) {
+            exchange.abort();
+            throw imageError("Image is larger than " + settings.maxSourceBytes() + " bytes");
+        }
+        // A server that does not declare the length is charged for the largest allowed image.
+        long limit = declared >= 0 ? declared : settings.maxSourceBytes();
+        int reserved = reserve(limit, exchange);
+        CancellationScope scope = CancellationScope.current();
+        try (InputStream body = entity == null ? InputStream.nullInputStream() : entity.getContent()) {
+            byte[] data = new byte[(int) Math.min(limit, declared >= 0 ? declared : READ_CHUNK * 4)];
+            int length = 0;
+            while (true) {
+                if (length == data.length) {
+                    if (length >= limit) {
+                        if (body.read() < 0) {
+                            break;
+                        }
+                        // Aborted first, so closing the body does not read the rest of it.
+                        exchange.abort();
+                        throw imageError("Image is larger than " + limit + " bytes");
+                    }
+                    data = Arrays.copyOf(data, (int) Math.min(limit, (long) data.length * 2));
+                }
+                int n = body.read(data, length, Math.min(READ_CHUNK, data.length - length));
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            return new Source(data, length, reserved);
+        } catch (ModelClientException ex) {
+            buffered.release(reserved);
+            throw ex;
+        } catch (IOException ex) {
+            exchange.abort();
+            buffered.release(reserved);
+            if (scope != null && scope.isCancelled()) {
+                throw aborted(scope);
+            }
+            throw new ModelClientException("HTTP_ERROR", "Image fetch failed: " + ex.getMessage(), null);
+        } finally {
+            closeQuietly(exchange.response());
+        }
+    }
+
+    private Source decodeDataUrl(String url) throws ModelClientException {
+        int comma = url.indexOf(',');
+        if (comma < 0 || !url.substring(0, comma).toLowerCase().endsWith(";base64")) {
+            throw imageError("Only base64 data URLs are supported");
+        }
+        long estimated = (url.length() - comma - 1) * 3L / 4;
+        if (estimated > settings.maxSourceBytes()) {
+            throw imageError("Image is larger than " + settings.maxSourceBytes() + " bytes");
+        }
+        int reserved = reserve(estimated, null);
+        try {
+            byte[] data = Base64.getMimeDecoder().decode(url.substring(comma + 1));
+            return new Source(data, data.length, reserved);
+        } catch (IllegalArgumentException ex) {
+            buffered.release(reserved);
+            throw imageError("Malformed data URL");
+        }
+    }
+
+    private int reserve(long bytes, Exchange exchange) throws ModelClientException {
+        int permits = Math.min(bufferedKib, kib(bytes));
+        try {
+            acquire(buffered, permits);
+        } catch (ModelClientException ex) {
+            if (exchange != null) {
+                exchange.abort();
+            }
+            throw ex;
+        }
+        return permits;
+    }
+
+    private NormalizedImage normalize(String url, byte[] data, int length) throws ModelClientException {
+        ImageReader reader = null;
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(data, 0, length))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw imageError("Unsupported image format");
+            }
+            reader = readers.next();
+            // Metadata is neither parsed nor kept; the orientation is read separately from the raw bytes.
+            reader.setInput(input, true, true);
+            int sourceWidth = reader.getWidth(0);
+            int sourceHeight = reader.getHeight(0);
+            if ((long) sourceWidth * sourceHeight > settings.maxPixels()) {
+                throw imageError("Image of " + sourceWidth + "x" + sourceHeight + " exceeds "
+                        + settings.maxPixels() + " pixels");
+            }
+            int longest = Math.max(sourceWidth, sourceHeight);
+            ImageReadParam param = reader.getDefaultReadParam();
+            // Decodes at no less than 1.5 times the target size, enough for the smooth downscale below.
+            int subsampling = Math.max(1, (int) (longest / (1.5 * settings.maxDimension())));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage decoded = reader.read(0, param);
+            double scale = Math.min(1.0, (double) settings.maxDimension() / longest);
+            int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+            int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+            BufferedImage image = ExifOrientation.apply(downscale(decoded, width, height), ExifOrientation.read(data));
+            return new NormalizedImage(describeUrl(url), "image/jpeg", image.getWidth(), image.getHeight(), sourceWidth,
+                    sourceHeight, length, null, null, encode(image));
+        } catch (IOException | RuntimeException ex) {
+            throw imageError("Image could not be decoded: " + ex.getMessage());
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+
+    // A data URL is the image itself; only its header is worth repeating.
+    private static String describeUrl(String url) {
+        int comma = url.indexOf(',');
+        return url.regionMatches(true, 0, "data:", 0, 5) && comma > 0 ? url.substring(0, comma) : url;
+    }
+
+    // Halves while the image is over twice the target, then draws the rest at once: a single large bilinear step
+    // would skip most source pixels.
+    private static BufferedImage downscale(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        while (w / 2 >= width && h / 2 >= height) {
+            w /= 2;
+            h /= 2;
+            current = draw(current, w, h);
+        }
+        if (w != width || h != height || current.getType() != BufferedImage.TYPE_INT_RGB) {
+            current = draw(current, width, height);
+        }
+        return current;
+    }
+
+    // RGB on white: JPEG has no alpha channel.
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4 + 1024);
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(settings.quality());
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static URI parse(String url) throws ModelClientException {
+        try {
+            URI uri = URI.create(url);
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+            if ((scheme.equals("http") || scheme.equals("https")) && uri.getHost() != null) {
+                return uri;
+            }
+        } catch (IllegalArgumentException ignored) {
+            // Reported below.
+        }
+        throw imageError("Unsupported image URL");
+    }
+
+    // Task images come from users: keep them from reaching the service's own network.
+    private static boolean isPublic(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        boolean uniqueLocal = address instanceof Inet6Address && (bytes[0] & 0xFE) == 0xFC;
+        // 100.64.0.0/10, carrier-grade NAT space that cloud providers also use internally.
+        boolean sharedAddress = address instanceof Inet4Address && (bytes[0] & 0xFF) == 100 && (bytes[1] & 0xC0) == 64;
+        return !(address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+                || address.isSiteLocalAddress() || address.isMulticastAddress() || uniqueLocal || sharedAddress);
+    }
+
+    /**
+     * Checks a host's addresses where the connection is made, so the fetch connects to the addresses that were
+     * checked; a second lookup that answers differently (DNS rebinding) never happens.
+     */
+    private static final class PublicHostResolver implements DnsResolver {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            for (InetAddress address : addresses) {
+                if (!isPublic(address)) {
+                    throw new DisallowedHostException("Image host " + host + " is not allowed");
+                }
+            }
+            return addresses;
+        }
+
+        @Override
+        public String resolveCanonicalHostname(String host) throws UnknownHostException {
+            return SystemDefaultDnsResolver.INSTANCE.resolveCanonicalHostname(host);
+        }
+    }
+
+    private static final class DisallowedHostException extends UnknownHostException {
+        DisallowedHostException(String message) {
+            super(message);
+        }
+    }
+
+    private record Exchange(HttpGet request, ClassicHttpResponse response) {
+        // Drops the connection instead of reading the rest of the body to reuse it.
+        void abort() {
+            request.cancel();
+            closeQuietly(response);
+        }
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws ModelClientException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw aborted(CancellationScope.current());
+        }
+    }
+
+    private static int kib(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1L, (bytes + 1023) / 1024));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Already closed.
+        }
+    }
+
+    private static ModelClientException imageError(String message) {
+        return new ModelClientException("IMAGE_ERROR", message, null);
+    }
+
+    private static ModelClientException aborted(CancellationScope scope) {
+        String reason = scope != null && scope.isCancelled() ? scope.reason() : CancellationScope.CANCELLED;
+        return new ModelClientException(reason, "Image fetch aborted: " + reason, null);
+    }
+}
@@ -0,0 +1,350 @@
+package com.moments.optimizer.image;
+
+import com.moments.optimizer.domain.ImageRef;
+import com.moments.optimizer.domain.ImageSource;
+import com.moments.optimizer.mapper.ImageStoreMapper;
+import com.moments.optimizer.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store for normalized images: one file per SHA-256 under {@code dir/<first two hex chars>/},
+ * served as {@code /images/<sha256>.jpg}. An image stored again is not written again. Writes go to a temp file
+ * that is atomically renamed, so readers never see a partial image; reads map the file.
+ *
+ * <p>Each task holding an image has a row in {@code image_refs}, counted in {@code image_blobs.ref_count}, so a
+ * retried step does not count twice. The collector drops the references of failed and cancelled tasks, then deletes
+ * images left without references for {@code gcGraceMillis}. Puts, reads and deletions of one image are serialized
+ * on its {@code image_blobs} row, so they are safe across nodes: a file is written before the reference to it
+ * commits, and deleted before the deletion of its row commits.
+ *
+ * <p>Every node must use the same directory (a shared volume), since images are served from whichever node gets
+ * the request; {@link #checkSharedDir} catches a node that was given a directory of its own.
+ */
+public class ImageStore implements MetricsSource, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageStore.class);
+    private static final String URL_PREFIX = "/images/";
+    private static final String EXTENSION = ".jpg";
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{64}");
+    private static final int SHARED_DIR_SAMPLE = 20;
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+    public record Settings(Path dir, long gcIntervalMillis, long gcGraceMillis, int gcBatch) {}
+
+    private final ImageStoreMapper mapper;
+    private final TransactionTemplate transactions;
+    private final Settings settings;
+    private final Path tempDir;
+    private final ScheduledExecutorService collector;
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong duplicateBytes = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong collected = new AtomicLong();
+    private final AtomicLong collectedBytes = new AtomicLong();
+
+    public ImageStore(ImageStoreMapper mapper, TransactionTemplate transactions, Settings settings) throws IOException {
+        this.mapper = mapper;
+        this.transactions = transactions;
+        this.settings = settings;
+        this.tempDir = settings.dir().resolve("tmp");
+        Files.createDirectories(tempDir);
+        // Left by writes interrupted by a crash; never renamed, so nothing refers to them. Recent ones may be
+        // another node's writes in progress.
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        try (Stream<Path> leftovers = Files.list(tempDir)) {
+            for (Path leftover : leftovers.toList()) {
+                try {
+                    if (Files.getLastModifiedTime(leftover).toMillis() < staleBefore) {
+                        Files.deleteIfExists(leftover);
+                    }
+                } catch (NoSuchFileException ex) {
+                    // Renamed or removed by another node meanwhile.
+                }
+            }
+        }
+        this.collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "image-store-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (settings.gcIntervalMillis() > 0) {
+            collector.scheduleWithFixedDelay(this::collectQuietly, settings.gcIntervalMillis(),
+                    settings.gcIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static String sha256(byte[] data, int length, String salt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            if (salt != null) {
+                digest.update(salt.getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    public static String pathOf(String sha256) {
+        return URL_PREFIX + sha256 + EXTENSION;
+    }
+
+    // The hash named by "<sha256>.jpg", or null for anything else.
+    public static String keyOf(String name) {
+        if (name == null || !name.endsWith(EXTENSION)) {
+            return null;
+        }
+        String key = name.substring(0, name.length() - EXTENSION.length());
+        return KEY.matcher(key).matches() ? key : null;
+    }
+
+    public Path file(String sha256) {
+        return settings.dir().resolve(sha256.substring(0, 2)).resolve(sha256 + EXTENSION);
+    }
+
+    /**
+     * Stores an image for {@code ownerId} and takes its reference. Returns false when the same bytes were already
+     * stored, in which case nothing is written.
+     */
+    public boolean put(String ownerId, String sha256, byte[] data) throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        Path file = file(sha256);
+        Boolean written;
+        try {
+            written = transactions.execute(status -> {
+                // Locks the image's row, creating it if the image is new or was just collected. The reference comes
+                // first, in the same order as release, so the two cannot deadlock.
+                if (mapper.insertRef(ownerId, sha256, now) == 1 || mapper.lockBlob(sha256) == null) {
+                    mapper.upsertBlob(sha256, data.length, now);
+                }
+                if (Files.exists(file)) {
+                    return false;
+                }
+                try {
+                    write(file, data);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return true;
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        if (Boolean.TRUE.equals(written)) {
+            stored.incrementAndGet();
+            storedBytes.addAndGet(data.length);
+            return true;
+        }
+        duplicates.incrementAndGet();
+        duplicateBytes.addAndGet(data.length);
+        return false;
+    }
+
+    /**
+     * Takes a reference on an image that is already stored and reads it. Returns null when the image has been
+     * collected in the meantime.
+     */
+    public byte[] acquire(String ownerId, String sha256) {
+        Path file = file(sha256);
+        LocalDateTime now = LocalDateTime.now();
+        Boolean held = transactions.execute(status -> {
+            boolean added = mapper.insertRef(ownerId, sha256, now) == 1;
+            if (mapper.lockBlob(sha256) == null || !Files.exists(file)) {
+                status.setRollbackOnly();
+                return false;
+            }
+            if (added) {
+                mapper.incrementRef(sha256);
+            }
+            return true;
+        });
+        // Once the reference has committed, the collector leaves the file alone.
+        byte[] data = Boolean.TRUE.equals(held) ? read(file) : null;
+        if (data != null) {
+            reused.incrementAndGet();
+        }
+        return data;
+    }
+
+    public ImageSource source(String sourceKey) {
+        return mapper.selectSource(sourceKey);
+    }
+
+    // Remembers which stored image a source normalized to, so the same upload is not decoded again.
+    public void recordSource(ImageSource source) {
+        mapper.insertSource(source, LocalDateTime.now());
+    }
+
+    public void release(String ownerId, String sha256) {
+        Boolean dropped = transactions.execute(status -> {
+            if (mapper.deleteRef(ownerId, sha256) == 0) {
+                return false;
+            }
+            mapper.decrementRef(sha256, LocalDateTime.now());
+            return true;
+        });
+        if (Boolean.TRUE.equals(dropped)) {
+            released.incrementAndGet();
+        }
+    }
+
+    /** One collection pass; returns the number of images deleted. */
+    public int collectGarbage() {
+        for (ImageRef ref : mapper.selectRefsOfFinishedTasks(settings.gcBatch())) {
+            release(ref.getOwnerId(), ref.getSha256());
+        }
+        LocalDateTime cutoff = LocalDateTime.now().minusNanos(settings.gcGraceMillis() * 1_000_000L);
+        int deleted = 0;
+        for (String sha256 : mapper.selectUnreferencedBlobs(cutoff, settings.gcBatch())) {
+            Long removedBytes = transactions.execute(status -> {
+                if (mapper.deleteUnreferencedBlob(sha256) == 0) {
+                    // Referenced again since it was selected.
+                    return null;
+                }
+                mapper.deleteSourcesOf(sha256);
+                // While the row is still locked, so a put waiting on it finds the file gone and writes it again.
+                return delete(file(sha256));
+            });
+            if (removedBytes != null) {
+                deleted++;
+                collected.incrementAndGet();
+                collectedBytes.addAndGet(removedBytes);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Fails when this node's directory holds none of a sample of referenced images. Their files are written before
+     * their references commit, so that means the directory is not the one the other nodes use.
+     */
+    public void checkSharedDir() {
+        List<String> referenced = mapper.selectReferencedBlobs(SHARED_DIR_SAMPLE);
+        if (!referenced.isEmpty() && referenced.stream().noneMatch(sha256 -> Files.exists(file(sha256)))) {
+            throw new IllegalStateException("Image store directory " + settings.dir() + " holds none of "
+                    + referenced.size() + " referenced images; every node must use the same shared directory");
+        }
+    }
+
+    @Override
+    public String metricsName() {
+        return "imageStore";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        long written = storedBytes.get();
+        long avoided = duplicateBytes.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("dir", settings.dir().toString());
+        snapshot.put("stored", stored.get());
+        snapshot.put("storedBytes", written);
+        snapshot.put("duplicates", duplicates.get());
+        snapshot.put("duplicateBytes", avoided);
+        snapshot.put("dedupRatio", written + avoided == 0 ? 0.0
+                : Math.round(avoided * 1000.0 / (written + avoided)) / 1000.0);
+        snapshot.put("reused", reused.get());
+        snapshot.put("released", released.get());
+        snapshot.put("collected", collected.get());
+        snapshot.put("collectedBytes", collectedBytes.get());
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        collector.shutdownNow();
+    }
+
+    private void collectQuietly() {
+        try {
+            int deleted = collectGarbage();
+            if (deleted > 0) {
+                log.info("Image store collected {} unreferenced images", deleted);
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Image store collection failed: {}", ex.getMessage());
+        }
+    }
+
+    private void write(Path file, byte[] data) throws IOException {
+        Path temp = Files.createTempFile(tempDir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                // The rename must not become visible before the data it names.
+                channel.force(false);
+            }
+            Files.createDirectories(file.getParent());
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static byte[] read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] data = new byte[(int) size];
+            mapped.get(data);
+            return data;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            log.warn("Failed to read stored image {}: {}", file, ex.getMessage());
+            return null;
+        }
+    }
+
+    private static long delete(Path file) {
+        try {
+            long size = Files.size(file);
+            return Files.deleteIfExists(file) ? size : 0L;
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.moments.optimizer.image;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An image after ingestion: downscaled, re-encoded and without metadata. Sent to the image model as an attachment,
+ * where {@code data} is serialized as base64. {@code sha256} and {@code path} are set once it is in the
+ * {@link ImageStore}.
+ */
+public record NormalizedImage(String sourceUrl, String contentType, int width, int height, int sourceWidth,
+                              int sourceHeight, long sourceBytes, String sha256, String path, byte[] data) {
+
+    public NormalizedImage stored(String sha256) {
+        return new NormalizedImage(sourceUrl, contentType, width, height, sourceWidth, sourceHeight, sourceBytes,
+                sha256, ImageStore.pathOf(sha256), data);
+    }
+
+    // What the image_processing step records: everything but the pixels.
+    public Map<String, Object> describe() {
+        Map<String, Object> output = new LinkedHashMap<>();
+        output.put("sourceUrl", sourceUrl);
+        output.put("contentType", contentType);
+        output.put("width", width);
+        output.put("height", height);
+        output.put("sourceWidth", sourceWidth);
+        output.put("sourceHeight", sourceHeight);
+        output.put("sourceBytes", sourceBytes);
+        output.put("bytes", data.length);
+        if (path != null) {
+            output.put("sha256", sha256);
+            output.put("imagePath", path);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,43 @@
+package com.moments.optimizer.mapper;
+
+import com.moments.optimizer.domain.ImageRef;
+import com.moments.optimizer.domain.ImageSource;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Mapper
+public interface ImageStoreMapper {
+
+    int insertRef(@Param("ownerId") String ownerId,
+                  @Param("sha256") String sha256,
+                  @Param("createdAt") LocalDateTime createdAt);
+
+    int deleteRef(@Param("ownerId") String ownerId, @Param("sha256") String sha256);
+
+    int upsertBlob(@Param("sha256") String sha256,
+                   @Param("sizeBytes") long sizeBytes,
+                   @Param("createdAt") LocalDateTime createdAt);
+
+    Integer lockBlob(@Param("sha256") String sha256);
+
+    int incrementRef(@Param("sha256") String sha256);
+
+    int decrementRef(@Param("sha256") String sha256, @Param("releasedAt") LocalDateTime releasedAt);
+
+    List<ImageRef> selectRefsOfFinishedTasks(@Param("limit") int limit);
+
+    List<String> selectUnreferencedBlobs(@Param("cutoff") LocalDateTime cutoff, @Param("limit") int limit);
+
+    List<String> selectReferencedBlobs(@Param("limit") int limit);
+
+    int deleteUnreferencedBlob(@Param("sha256") String sha256);
+
+    int insertSource(@Param("source") ImageSource source, @Param("createdAt") LocalDateTime createdAt);
+
+    ImageSource selectSource(@Param("sourceKey") String sourceKey);
+
+    int deleteSourcesOf(@Param("sha256") String sha256);
+}
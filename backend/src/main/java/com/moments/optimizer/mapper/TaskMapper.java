@@ -1,10 +1,13 @@
 package com.moments.optimizer.mapper;
 
 import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskClaimCandidate;
+import com.moments.optimizer.domain.UserTaskCount;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Mapper
@@ -14,9 +17,60 @@ public interface TaskMapper {
 
     Task selectById(@Param("id") String id);
 
-    List<Task> selectRunnableTasks(@Param("limit") int limit);
+    long countByStatus(@Param("status") String status);
+
+    long countActiveByUser(@Param("userId") String userId);
+
+    long countActive();
+
+    long countFinishedSince(@Param("since") LocalDateTime since);
+
+    List<TaskClaimCandidate> selectClaimCandidates(@Param("now") LocalDateTime now,
+                                                   @Param("perUserLimit") int perUserLimit,
+                                                   @Param("userLimit") int userLimit);
+
+    List<UserTaskCount> selectRunningCountsByUser(@Param("userIds") Collection<String> userIds);
+
+    int claimTasks(@Param("ids") List<String> ids,
+                   @Param("owner") String owner,
+                   @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt,
+                   @Param("now") LocalDateTime now);
+
+    List<Task> selectLeasedTasks(@Param("ids") List<String> ids,
+                                 @Param("owner") String owner);
+
+    int renewLease(@Param("id") String id,
+                   @Param("owner") String owner,
+                   @Param("now") LocalDateTime now,
+                   @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt);
+
+    int releaseLease(@Param("id") String id,
+                     @Param("owner") String owner);
+
+    List<Task> selectStaleRunningTasks(@Param("cutoff") LocalDateTime cutoff,
+                                       @Param("limit") int limit);
+
+    int requeueStaleTask(@Param("id") String id,
+                         @Param("cutoff") LocalDateTime cutoff,
+                         @Param("now") LocalDateTime now);
+
+    int failStaleTask(@Param("id") String id,
+                      @Param("cutoff") LocalDateTime cutoff,
+                      @Param("errorMessage") String errorMessage,
+                      @Param("now") LocalDateTime now);
+
+    int parkForRetry(@Param("id") String id,
+                     @Param("owner") String owner,
+                     @Param("nextAttemptAt") LocalDateTime nextAttemptAt,
+                     @Param("errorMessage") String errorMessage,
+                     @Param("now") LocalDateTime now);
+
+    int cancelTask(@Param("id") String id,
+                   @Param("errorMessage") String errorMessage,
+                   @Param("now") LocalDateTime now);
 
     int updateStatus(@Param("id") String id,
+                     @Param("owner") String owner,
                      @Param("status") String status,
                      @Param("errorMessage") String errorMessage,
                      @Param("updatedAt") LocalDateTime updatedAt,
@@ -5,6 +5,7 @@ import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Mapper
@@ -14,12 +15,38 @@ public interface TaskStepMapper {
 
     List<TaskStep> selectByTaskId(@Param("taskId") String taskId);
 
-    TaskStep selectFirstPendingStep(@Param("taskId") String taskId);
-
     TaskStep selectById(@Param("id") Long id);
 
     int updateStepStatus(@Param("id") Long id,
+                         @Param("owner") String owner,
                          @Param("status") String status,
                          @Param("startedAt") LocalDateTime startedAt,
                          @Param("finishedAt") LocalDateTime finishedAt);
+
+    int startAttempt(@Param("id") Long id,
+                     @Param("owner") String owner,
+                     @Param("startedAt") LocalDateTime startedAt);
+
+    int scheduleRetry(@Param("id") Long id,
+                      @Param("owner") String owner,
+                      @Param("finishedAt") LocalDateTime finishedAt,
+                      @Param("nextAttemptAt") LocalDateTime nextAttemptAt);
+
+    int updateStepCheckpoint(@Param("id") Long id,
+                             @Param("owner") String owner,
+                             @Param("status") String status,
+                             @Param("finishedAt") LocalDateTime finishedAt,
+                             @Param("extraJson") String extraJson);
+
+    int updatePartialOutput(@Param("id") Long id,
+                            @Param("partialOutput") String partialOutput);
+
+    int updateHeartbeat(@Param("ids") Collection<Long> ids,
+                        @Param("heartbeatAt") LocalDateTime heartbeatAt);
+
+    int failRunningSteps(@Param("taskId") String taskId,
+                         @Param("finishedAt") LocalDateTime finishedAt);
+
+    int cancelOpenSteps(@Param("taskId") String taskId,
+                        @Param("finishedAt") LocalDateTime finishedAt);
 }
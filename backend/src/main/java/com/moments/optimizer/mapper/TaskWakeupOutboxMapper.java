@@ -0,0 +1,17 @@
+package com.moments.optimizer.mapper;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+
+@Mapper
+public interface TaskWakeupOutboxMapper {
+
+    int insertWakeup(@Param("taskId") String taskId,
+                     @Param("createdAt") LocalDateTime createdAt);
+
+    Long selectMaxId();
+
+    int deleteOlderThan(@Param("cutoff") LocalDateTime cutoff);
+}
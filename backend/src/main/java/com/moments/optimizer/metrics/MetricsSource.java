@@ -0,0 +1,10 @@
+package com.moments.optimizer.metrics;
+
+import java.util.Map;
+
+public interface MetricsSource {
+
+    String metricsName();
+
+    Map<String, Object> metricsSnapshot();
+}
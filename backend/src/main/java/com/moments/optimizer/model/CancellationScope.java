@@ -0,0 +1,93 @@
+package com.moments.optimizer.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancellation handle for one step attempt. The worker enters the scope on the thread that calls the
+ * {@link ModelClient}; clients register abort hooks (for example disconnecting the open HTTP connection) so a
+ * deadline or a cancel request frees the thread immediately instead of waiting for the read timeout.
+ */
+public final class CancellationScope {
+
+    public static final String CANCELLED = "CANCELLED";
+    public static final String DEADLINE_EXCEEDED = "DEADLINE_EXCEEDED";
+    public static final String STEP_TIMEOUT = "STEP_TIMEOUT";
+    // The worker lost the task's lease; another node runs it now.
+    public static final String ABANDONED = "ABANDONED";
+
+    private static final ThreadLocal<CancellationScope> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineAtMillis;
+    private final List<Runnable> hooks = new ArrayList<>();
+    private volatile String reason;
+    private Thread thread;
+
+    public CancellationScope(long deadlineAtMillis) {
+        this.deadlineAtMillis = deadlineAtMillis;
+    }
+
+    public static CancellationScope current() {
+        return CURRENT.get();
+    }
+
+    public synchronized void enter() {
+        thread = Thread.currentThread();
+        CURRENT.set(this);
+    }
+
+    public void exit() {
+        // Hooks stay registered: an asynchronous call started inside the scope can still be aborted after exit.
+        synchronized (this) {
+            thread = null;
+        }
+        CURRENT.remove();
+        // A cancel that raced with the end of the call must not leak into the next task on this pooled thread.
+        Thread.interrupted();
+    }
+
+    public void onCancel(Runnable hook) {
+        synchronized (this) {
+            if (reason == null) {
+                hooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    public boolean cancel(String cancelReason) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (reason != null) {
+                return false;
+            }
+            reason = cancelReason;
+            toRun = new ArrayList<>(hooks);
+            hooks.clear();
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        for (Runnable hook : toRun) {
+            try {
+                hook.run();
+            } catch (RuntimeException ignored) {
+                // Best effort: the connection may already be closed.
+            }
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    public String reason() {
+        return reason;
+    }
+
+    public long remainingMillis() {
+        return deadlineAtMillis == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineAtMillis - System.currentTimeMillis();
+    }
+}
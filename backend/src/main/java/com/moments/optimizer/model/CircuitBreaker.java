@@ -0,0 +1,156 @@
+package com.moments.optimizer.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Count-based circuit breaker over the last {@code windowSize} calls. Opens when the failure rate or the
+ * slow-call rate crosses its threshold; after {@code openMillis} a limited number of half-open probes decide
+ * whether to close again or re-open. A {@code slowCallMillis} of 0 or less counts no call as slow.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public record Settings(int windowSize,
+                           int minimumCalls,
+                           double failureRateThreshold,
+                           double slowCallRateThreshold,
+                           long slowCallMillis,
+                           long openMillis,
+                           int halfOpenProbes) {}
+
+    private final Settings settings;
+    private final boolean[] failedWindow;
+    private final boolean[] slowWindow;
+    private int windowIndex;
+    private int windowCount;
+    private int failedCount;
+    private int slowCount;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long rejected;
+    private long opened;
+
+    public CircuitBreaker(Settings settings) {
+        this.settings = settings;
+        this.failedWindow = new boolean[Math.max(1, settings.windowSize())];
+        this.slowWindow = new boolean[failedWindow.length];
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < settings.openMillis()) {
+                rejected++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= settings.halfOpenProbes()) {
+                rejected++;
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    public synchronized void onResult(boolean failed, long elapsedMillis) {
+        boolean slow = settings.slowCallMillis() > 0 && elapsedMillis >= settings.slowCallMillis();
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+            if (failed || slow) {
+                open();
+                return;
+            }
+            if (++probeSuccesses >= settings.halfOpenProbes()) {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // A call admitted before the circuit opened; its outcome is already reflected.
+            return;
+        }
+        record(failed, slow);
+        if (windowCount >= settings.minimumCalls()
+                && (failureRate() >= settings.failureRateThreshold()
+                || slowCallRate() >= settings.slowCallRateThreshold())) {
+            open();
+        }
+    }
+
+    // A cancelled call says nothing about the backend, but a half-open probe slot must still be returned.
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public synchronized long remainingOpenMillis() {
+        return state == State.OPEN ? Math.max(0L, settings.openMillis() - (System.currentTimeMillis() - openedAt)) : 0L;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("state", state.name());
+        snapshot.put("calls", windowCount);
+        snapshot.put("failureRate", failureRate());
+        snapshot.put("slowCallRate", slowCallRate());
+        snapshot.put("rejected", rejected);
+        snapshot.put("opened", opened);
+        return snapshot;
+    }
+
+    private void record(boolean failed, boolean slow) {
+        if (windowCount == failedWindow.length) {
+            failedCount -= failedWindow[windowIndex] ? 1 : 0;
+            slowCount -= slowWindow[windowIndex] ? 1 : 0;
+        } else {
+            windowCount++;
+        }
+        failedWindow[windowIndex] = failed;
+        slowWindow[windowIndex] = slow;
+        failedCount += failed ? 1 : 0;
+        slowCount += slow ? 1 : 0;
+        windowIndex = (windowIndex + 1) % failedWindow.length;
+    }
+
+    private double failureRate() {
+        return windowCount == 0 ? 0.0 : (double) failedCount / windowCount;
+    }
+
+    private double slowCallRate() {
+        return windowCount == 0 ? 0.0 : (double) slowCount / windowCount;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        opened++;
+        resetWindow();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        failedCount = 0;
+        slowCount = 0;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+    }
+}
@@ -0,0 +1,188 @@
+package com.moments.optimizer.model;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a {@link ModelClient} with one {@link CircuitBreaker} per endpoint and step key. An open circuit fails
+ * fast with {@code CIRCUIT_OPEN} (retryable, so the task is parked instead of holding a worker), or answers
+ * from the degraded fallback for steps listed as non-critical. Streamed calls are timed to their first chunk, so
+ * a long generation from a healthy backend does not count as a slow call.
+ */
+public class CircuitBreakerModelClient implements ModelClient, MetricsSource {
+
+    public static final String CIRCUIT_OPEN = "CIRCUIT_OPEN";
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreakerModelClient.class);
+    // Calls the worker gave up on for its own reasons; the service neither answered nor timed out the step.
+    private static final Set<String> CALLER_ABORTS = Set.of(CancellationScope.CANCELLED,
+            CancellationScope.DEADLINE_EXCEEDED, CancellationScope.ABANDONED);
+
+    private final ModelClient delegate;
+    private final ModelClient fallback;
+    private final String endpoint;
+    private final CircuitBreaker.Settings settings;
+    private final Set<String> failureCodes;
+    private final Set<String> fallbackSteps;
+    private final Map<String, CircuitBreaker> circuits = new ConcurrentHashMap<>();
+    private final AtomicLong fallbackCalls = new AtomicLong();
+
+    public CircuitBreakerModelClient(ModelClient delegate,
+                                     ModelClient fallback,
+                                     String endpoint,
+                                     CircuitBreaker.Settings settings,
+                                     Set<String> failureCodes,
+                                     Set<String> fallbackSteps) {
+        this.delegate = delegate;
+        this.fallback = fallback;
+        this.endpoint = endpoint == null ? "" : endpoint;
+        this.settings = settings;
+        this.failureCodes = Set.copyOf(failureCodes);
+        this.fallbackSteps = Set.copyOf(fallbackSteps);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        CircuitBreaker circuit = circuitFor(stepKey);
+        if (!circuit.tryAcquire()) {
+            return rejected(stepKey, context, step, circuit);
+        }
+        TimedListener timed = new TimedListener(listener);
+        try {
+            Map<String, Object> result = delegate.runStep(stepKey, context, step, timed.listener());
+            circuit.onResult(false, timed.elapsedMillis());
+            return result;
+        } catch (ModelClientException ex) {
+            record(circuit, ex, timed.elapsedMillis());
+            throw ex;
+        } catch (RuntimeException ex) {
+            circuit.onResult(true, timed.elapsedMillis());
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        CircuitBreaker circuit = circuitFor(stepKey);
+        if (!circuit.tryAcquire()) {
+            try {
+                return CompletableFuture.completedFuture(rejected(stepKey, context, step, circuit));
+            } catch (ModelClientException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+        TimedListener timed = new TimedListener(listener);
+        return delegate.runStepAsync(stepKey, context, step, timed.listener()).whenComplete((result, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause == null) {
+                circuit.onResult(false, timed.elapsedMillis());
+            } else if (cause instanceof ModelClientException ex) {
+                record(circuit, ex, timed.elapsedMillis());
+            } else {
+                circuit.onResult(true, timed.elapsedMillis());
+            }
+        });
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelCircuits";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        Map<String, Object> byCircuit = new TreeMap<>();
+        circuits.forEach((key, circuit) -> byCircuit.put(key, circuit.snapshot()));
+        snapshot.put("circuits", byCircuit);
+        snapshot.put("fallbackSteps", fallbackSteps);
+        snapshot.put("fallbackCalls", fallbackCalls.get());
+        return snapshot;
+    }
+
+    private CircuitBreaker circuitFor(String stepKey) {
+        return circuits.computeIfAbsent(endpoint + "|" + stepKey, key -> new CircuitBreaker(settings));
+    }
+
+    private void record(CircuitBreaker circuit, ModelClientException ex, long elapsedMillis) {
+        if (CALLER_ABORTS.contains(ex.getErrorCode())) {
+            circuit.onIgnored();
+            return;
+        }
+        circuit.onResult(failureCodes.contains(ex.getErrorCode()), elapsedMillis);
+    }
+
+    private Map<String, Object> rejected(String stepKey, TaskContext context, TaskStep step, CircuitBreaker circuit)
+            throws ModelClientException {
+        if (fallback != null && fallbackSteps.contains(stepKey)) {
+            fallbackCalls.incrementAndGet();
+            Map<String, Object> degraded = new HashMap<>(fallback.runStep(stepKey, context, step));
+            degraded.put("degraded", true);
+            return degraded;
+        }
+        long waitMs = circuit.remainingOpenMillis();
+        log.debug("Circuit {}|{} is {}, failing step fast", endpoint, stepKey, circuit.state());
+        throw new ModelClientException(CIRCUIT_OPEN,
+                "Model service circuit open for " + stepKey + (waitMs > 0 ? ", retry in " + waitMs + "ms" : ""));
+    }
+
+    // Time to the first chunk when the call streamed, otherwise time to the result.
+    private static final class TimedListener implements StepChunkListener {
+
+        private final StepChunkListener delegate;
+        private final long start = System.currentTimeMillis();
+        private volatile long firstChunkAt;
+
+        TimedListener(StepChunkListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onChunk(String text) {
+            if (firstChunkAt == 0L) {
+                firstChunkAt = System.currentTimeMillis();
+            }
+            delegate.onChunk(text);
+        }
+
+        // NONE stays NONE: clients only stream when there is a real listener.
+        StepChunkListener listener() {
+            return delegate == StepChunkListener.NONE ? StepChunkListener.NONE : this;
+        }
+
+        long elapsedMillis() {
+            long end = firstChunkAt != 0L ? firstChunkAt : System.currentTimeMillis();
+            return end - start;
+        }
+    }
+}
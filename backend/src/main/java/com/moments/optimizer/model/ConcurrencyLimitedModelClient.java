@@ -0,0 +1,161 @@
+package com.moments.optimizer.model;
+
+import com.moments.optimizer.domain.TaskStep;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Holds calls for the step keys of a {@link ModelConcurrencyLimiter} until the limit has room and reports each
+ * outcome back to it. A blocking call waits on its step thread (a cancel interrupts the wait); an asynchronous
+ * call is started from the limiter's thread once its permit is granted, so no thread waits for it. It wraps the
+ * HTTP transport, under hedging and batching, so every attempt holds a permit; results marked {@code degraded} are
+ * not sampled.
+ */
+public class ConcurrencyLimitedModelClient implements ModelClient {
+
+    private final ModelClient delegate;
+    private final ModelConcurrencyLimiter limiter;
+
+    public ConcurrencyLimitedModelClient(ModelClient delegate, ModelConcurrencyLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        if (!limiter.limits(stepKey)) {
+            return delegate.runStep(stepKey, context, step, listener);
+        }
+        CompletableFuture<ModelConcurrencyLimiter.Permit> pending = limiter.acquire(stepKey);
+        ModelConcurrencyLimiter.Permit permit;
+        try {
+            permit = pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if (!pending.cancel(false)) {
+                pending.join().release();
+            }
+            throw aborted(CancellationScope.current());
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Concurrency permit failed", ex.getCause());
+        }
+        try {
+            Map<String, Object> result = delegate.runStep(stepKey, context, step, listener);
+            if (!degraded(result)) {
+                permit.finish(null);
+            }
+            return result;
+        } catch (ModelClientException ex) {
+            permit.finish(ex);
+            throw ex;
+        } finally {
+            permit.release();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        if (!limiter.limits(stepKey)) {
+            return delegate.runStepAsync(stepKey, context, step, listener);
+        }
+        CompletableFuture<ModelConcurrencyLimiter.Permit> pending = limiter.acquire(stepKey);
+        if (pending.isDone()) {
+            return track(pending.join(), start(stepKey, context, step, listener));
+        }
+        CancellationScope scope = CancellationScope.current();
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        pending.thenAcceptAsync(permit -> {
+            // Re-entered on the limiter's thread so the delegate registers its abort hooks and sees the deadline.
+            if (scope != null) {
+                scope.enter();
+            }
+            CompletableFuture<Map<String, Object>> call;
+            try {
+                call = start(stepKey, context, step, listener);
+            } finally {
+                if (scope != null) {
+                    scope.exit();
+                }
+            }
+            track(permit, call).whenComplete((value, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(unwrap(error));
+                } else {
+                    result.complete(value);
+                }
+            });
+        }, limiter.starter());
+        if (scope != null) {
+            scope.onCancel(() -> {
+                if (pending.cancel(false)) {
+                    result.completeExceptionally(aborted(scope));
+                }
+            });
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+
+    private CompletableFuture<Map<String, Object>> start(String stepKey,
+                                                         TaskContext context,
+                                                         TaskStep step,
+                                                         StepChunkListener listener) {
+        try {
+            return delegate.runStepAsync(stepKey, context, step, listener);
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    private static CompletableFuture<Map<String, Object>> track(ModelConcurrencyLimiter.Permit permit,
+                                                                CompletableFuture<Map<String, Object>> call) {
+        return call.whenComplete((value, error) -> {
+            if (error == null) {
+                if (degraded(value)) {
+                    permit.release();
+                } else {
+                    permit.finish(null);
+                }
+            } else if (unwrap(error) instanceof ModelClientException modelError) {
+                permit.finish(modelError);
+            } else {
+                permit.release();
+            }
+        });
+    }
+
+    // A fallback answer took no model round trip, so it must not pull the baseline down.
+    private static boolean degraded(Map<String, Object> result) {
+        return result != null && Boolean.TRUE.equals(result.get("degraded"));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static ModelClientException aborted(CancellationScope scope) {
+        String reason = scope != null && scope.isCancelled() ? scope.reason() : CancellationScope.CANCELLED;
+        return new ModelClientException(reason, "Model call aborted: " + reason, null);
+    }
+}
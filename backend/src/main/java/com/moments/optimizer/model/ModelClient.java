@@ -1,10 +1,36 @@
 package com.moments.optimizer.model;
 
-import com.moments.optimizer.domain.Task;
 import com.moments.optimizer.domain.TaskStep;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface ModelClient {
-    Map<String, Object> runStep(String stepKey, Task task, TaskStep step) throws ModelClientException;
+    Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException;
+
+    // Blocking clients complete the future on the calling thread; non-blocking clients override this.
+    default CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        try {
+            return CompletableFuture.completedFuture(runStep(stepKey, context, step));
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    // Streaming-capable clients report partial output to the listener; the others ignore it.
+    default Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        return runStep(stepKey, context, step);
+    }
+
+    default CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                                TaskContext context,
+                                                                TaskStep step,
+                                                                StepChunkListener listener) {
+        return runStepAsync(stepKey, context, step);
+    }
+
+    default boolean isAsync() {
+        return false;
+    }
 }
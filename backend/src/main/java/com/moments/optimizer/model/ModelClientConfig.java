@@ -1,15 +1,36 @@
 package com.moments.optimizer.model;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.model.cache.StepResponseCache;
+import com.moments.optimizer.model.http.AsyncHttpModelClient;
+import com.moments.optimizer.model.http.BatchingModelClient;
+import com.moments.optimizer.model.http.CancellableClientHttpRequestFactory;
+import com.moments.optimizer.model.http.HedgingModelClient;
 import com.moments.optimizer.model.http.HttpModelClient;
+import com.moments.optimizer.model.http.ModelCallBatcher;
+import com.moments.optimizer.model.http.ModelConnectionPool;
+import com.moments.optimizer.model.http.ModelEndpointBalancer;
+import com.moments.optimizer.model.http.ModelHedgePolicy;
+import com.moments.optimizer.model.http.PooledCancellableRequestFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 @Configuration
 public class ModelClientConfig {
 
@@ -30,19 +51,318 @@ public class ModelClientConfig {
     @Value("${moments.model.timeout-ms:5000}")
     private int timeoutMs;
 
+    @Value("${moments.model.stream.enabled:false}")
+    private boolean streamEnabled;
+
+    @Value("${moments.model.stream.steps:llm_call}")
+    private String streamSteps;
+
+    @Value("${moments.model.circuit.enabled:true}")
+    private boolean circuitEnabled;
+
+    @Value("${moments.model.circuit.window-size:50}")
+    private int circuitWindowSize;
+
+    @Value("${moments.model.circuit.minimum-calls:10}")
+    private int circuitMinimumCalls;
+
+    @Value("${moments.model.circuit.failure-rate-threshold:0.5}")
+    private double circuitFailureRate;
+
+    @Value("${moments.model.circuit.slow-call-rate-threshold:0.8}")
+    private double circuitSlowCallRate;
+
+    @Value("${moments.model.circuit.slow-call-ms:0}")
+    private long circuitSlowCallMs;
+
+    @Value("${moments.model.circuit.open-ms:30000}")
+    private long circuitOpenMs;
+
+    @Value("${moments.model.circuit.half-open-probes:3}")
+    private int circuitHalfOpenProbes;
+
+    @Value("${moments.model.circuit.failure-codes:HTTP_ERROR,REMOTE_ERROR,STEP_TIMEOUT}")
+    private String circuitFailureCodes;
+
+    @Value("${moments.model.circuit.fallback-steps:}")
+    private String circuitFallbackSteps;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "moments.model.cache.enabled", havingValue = "true", matchIfMissing = true)
+    public StepResponseCache stepResponseCache(
+            @Value("${moments.model.cache.ttl-seconds:600}") long ttlSeconds,
+            @Value("${moments.model.cache.max-entries:10000}") int maxEntries,
+            @Value("${moments.model.cache.max-bytes:67108864}") long maxBytes,
+            @Value("${moments.model.cache.disk.enabled:false}") boolean diskEnabled,
+            @Value("${moments.model.cache.disk.dir:${java.io.tmpdir}/moments-step-cache}") String diskDir,
+            @Value("${moments.model.cache.disk.max-bytes:536870912}") long diskMaxBytes,
+            @Value("${moments.model.cache.disk.ttl-seconds:86400}") long diskTtlSeconds) throws IOException {
+        log.info("Model step response cache: ttl {}s, max {} entries / {} bytes, disk tier {}",
+                ttlSeconds, maxEntries, maxBytes, diskEnabled ? diskDir : "off");
+        return new StepResponseCache(ttlSeconds * 1000L, maxEntries, maxBytes,
+                diskEnabled ? Path.of(diskDir) : null, diskMaxBytes, diskTtlSeconds * 1000L);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "moments.model.rate-limit.enabled", havingValue = "true")
+    public ModelRateLimiter modelRateLimiter(
+            @Value("${moments.model.rate-limit.endpoint-by-step:llm_call=llm,image_model_call=image}") String endpointByStep,
+            @Value("${moments.model.rate-limit.rpm:0}") long rpm,
+            @Value("${moments.model.rate-limit.tpm:0}") long tpm,
+            @Value("${moments.model.rate-limit.rpm-by-endpoint:}") String rpmByEndpoint,
+            @Value("${moments.model.rate-limit.tpm-by-endpoint:}") String tpmByEndpoint,
+            @Value("${moments.model.rate-limit.max-queue-ms:60000}") long maxQueueMs,
+            @Value("${moments.model.rate-limit.default-output-tokens:512}") long defaultOutputTokens,
+            @Value("${moments.model.rate-limit.image-tokens:800}") long imageTokens) {
+        Map<String, String> endpoints = new HashMap<>();
+        for (String entry : parseList(endpointByStep)) {
+            String[] parts = entry.split("=");
+            if (parts.length == 2) {
+                endpoints.put(parts[0].trim(), parts[1].trim());
+            }
+        }
+        Map<String, Long> rpmOverrides = parseLongs(rpmByEndpoint);
+        Map<String, Long> tpmOverrides = parseLongs(tpmByEndpoint);
+        Map<String, ModelRateLimiter.Limits> limits = new LinkedHashMap<>();
+        Set<String> names = new LinkedHashSet<>(rpmOverrides.keySet());
+        names.addAll(tpmOverrides.keySet());
+        for (String name : names) {
+            limits.put(name, new ModelRateLimiter.Limits(rpmOverrides.getOrDefault(name, rpm),
+                    tpmOverrides.getOrDefault(name, tpm)));
+        }
+        log.info("Model rate limiting enabled: default {} rpm / {} tpm, endpoints {}, overrides {}",
+                rpm, tpm, endpoints, limits);
+        return new ModelRateLimiter(endpoints, limits, new ModelRateLimiter.Limits(rpm, tpm),
+                Math.max(0L, maxQueueMs), Math.max(0L, defaultOutputTokens), Math.max(0L, imageTokens));
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("'${moments.model.client-type:stub}'.toLowerCase().startsWith('http') and ${moments.model.concurrency.enabled:false}")
+    public ModelConcurrencyLimiter modelConcurrencyLimiter(
+            @Value("${moments.model.concurrency.steps:llm_call,image_model_call}") String steps,
+            @Value("${moments.model.concurrency.initial-limit:8}") int initialLimit,
+            @Value("${moments.model.concurrency.min-limit:1}") int minLimit,
+            @Value("${moments.model.concurrency.max-limit:64}") int maxLimit,
+            @Value("${moments.model.concurrency.backoff-ratio:0.5}") double backoffRatio,
+            @Value("${moments.model.concurrency.rtt-tolerance:2.0}") double rttTolerance,
+            @Value("${moments.model.concurrency.baseline-window-ms:30000}") long baselineWindowMs,
+            @Value("${moments.model.concurrency.probe-ratio:0.5}") double probeRatio,
+            @Value("${moments.model.concurrency.drop-codes:HTTP_ERROR,STEP_TIMEOUT}") String dropCodes,
+            @Value("${moments.model.batch.enabled:false}") boolean batchEnabled,
+            @Value("${moments.model.batch.steps:llm_call,image_model_call}") String batchSteps) {
+        int min = Math.max(1, minLimit);
+        int max = Math.max(min, maxLimit);
+        Set<String> limited = parseList(steps);
+        if (batchEnabled && limited.removeAll(batchedSteps(batchSteps))) {
+            log.warn("Batched step keys are not concurrency limited; limiting only {}", limited);
+        }
+        log.info("Adaptive model concurrency for {}: limit {} within {}-{}, drop codes {}",
+                limited, initialLimit, min, max, parseList(dropCodes));
+        return new ModelConcurrencyLimiter(limited, parseList(dropCodes),
+                new ModelConcurrencyLimiter.Settings(initialLimit, min, max,
+                        Math.min(0.99, Math.max(0.1, backoffRatio)), Math.max(1.0, rttTolerance),
+                        Math.max(1000L, baselineWindowMs), Math.min(1.0, Math.max(0.0, probeRatio))));
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("'${moments.model.client-type:stub}'.equalsIgnoreCase('http') and ${moments.model.pool.enabled:true}")
+    public ModelConnectionPool modelConnectionPool(
+            @Value("${moments.model.pool.max-total:64}") int maxTotal,
+            @Value("${moments.model.pool.max-per-route:32}") int maxPerRoute,
+            @Value("${moments.model.pool.validate-after-inactivity-ms:2000}") long validateAfterInactivityMs,
+            @Value("${moments.model.pool.idle-evict-seconds:30}") long idleEvictSeconds) {
+        log.info("Model HTTP connection pool: max-total {}, max-per-route {}, idle eviction {}s",
+                maxTotal, maxPerRoute, idleEvictSeconds);
+        return new ModelConnectionPool(maxTotal, maxPerRoute, timeoutMs, timeoutMs, validateAfterInactivityMs,
+                idleEvictSeconds);
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${moments.model.client-type:stub}'.toLowerCase().startsWith('http')")
+    public ModelEndpointBalancer modelEndpointBalancer(
+            @Value("${moments.model.base-urls:}") String baseUrls,
+            @Value("${moments.model.balancer.window-size:20}") int windowSize,
+            @Value("${moments.model.balancer.minimum-calls:5}") int minimumCalls,
+            @Value("${moments.model.balancer.failure-rate-threshold:0.5}") double failureRate,
+            @Value("${moments.model.balancer.slow-call-rate-threshold:0.8}") double slowCallRate,
+            @Value("${moments.model.balancer.slow-call-ms:3000}") long slowCallMs,
+            @Value("${moments.model.balancer.eject-ms:30000}") long ejectMs,
+            @Value("${moments.model.balancer.readmit-probes:2}") int readmitProbes,
+            @Value("${moments.model.balancer.failure-codes:HTTP_ERROR,PARSE_ERROR}") String failureCodes) {
+        Set<String> urls = parseList(baseUrls);
+        if (urls.isEmpty() && !baseUrl.isBlank()) {
+            urls.add(baseUrl.trim());
+        }
+        if (urls.size() <= 1) {
+            return ModelEndpointBalancer.single(urls.isEmpty() ? null : urls.iterator().next());
+        }
+        CircuitBreaker.Settings ejection = new CircuitBreaker.Settings(windowSize, minimumCalls, failureRate,
+                slowCallRate, slowCallMs, ejectMs, Math.max(1, readmitProbes));
+        log.info("Model calls balanced over {} replicas {} (eject after failure rate {} or slow rate {} over {}ms, for {}ms)",
+                urls.size(), urls, failureRate, slowCallRate, slowCallMs, ejectMs);
+        return new ModelEndpointBalancer(List.copyOf(urls), ejection, parseList(failureCodes));
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("'${moments.model.client-type:stub}'.toLowerCase().startsWith('http') and ${moments.model.batch.enabled:false}")
+    public ModelCallBatcher modelCallBatcher(
+            ObjectMapper objectMapper,
+            ModelEndpointBalancer endpoints,
+            @Value("${moments.model.batch.steps:llm_call,image_model_call}") String steps,
+            @Value("${moments.model.batch.max-items:8}") int maxItems,
+            @Value("${moments.model.batch.max-wait-ms:20}") long maxWaitMs,
+            @Value("${moments.model.batch.max-items-by-step:}") String maxItemsByStep,
+            @Value("${moments.model.batch.max-wait-ms-by-step:}") String maxWaitMsByStep) {
+        Set<String> batched = batchedSteps(steps);
+        if (batched.size() < parseList(steps).size()) {
+            log.warn("Streamed step keys are not batched; batching only {}", batched);
+        }
+        Map<String, Long> itemOverrides = parseLongs(maxItemsByStep);
+        Map<String, Long> waitOverrides = parseLongs(maxWaitMsByStep);
+        Map<String, ModelCallBatcher.Limits> limits = new LinkedHashMap<>();
+        for (String step : batched) {
+            limits.put(step, new ModelCallBatcher.Limits(
+                    Math.max(1, itemOverrides.getOrDefault(step, (long) maxItems).intValue()),
+                    Math.max(1L, waitOverrides.getOrDefault(step, maxWaitMs))));
+        }
+        log.info("Model call batching enabled: {}", limits);
+        return new ModelCallBatcher(AsyncHttpModelClient.buildHttpClient(timeoutMs), objectMapper, endpoints,
+                authHeader, authToken, timeoutMs, limits);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("'${moments.model.client-type:stub}'.toLowerCase().startsWith('http') and ${moments.model.hedge.enabled:false}")
+    public ModelHedgePolicy modelHedgePolicy(
+            @Value("${moments.model.hedge.steps:llm_call}") String steps,
+            @Value("${moments.model.hedge.percentile:0.95}") double percentile,
+            @Value("${moments.model.hedge.min-delay-ms:50}") long minDelayMs,
+            @Value("${moments.model.hedge.min-samples:20}") int minSamples,
+            @Value("${moments.model.hedge.window:200}") int window,
+            @Value("${moments.model.hedge.budget-percent:5}") double budgetPercent,
+            @Value("${moments.model.batch.enabled:false}") boolean batchEnabled,
+            @Value("${moments.model.batch.steps:llm_call,image_model_call}") String batchSteps) {
+        Set<String> hedged = parseList(steps);
+        if (batchEnabled && hedged.removeAll(batchedSteps(batchSteps))) {
+            log.warn("Batched step keys are not hedged; hedging only {}", hedged);
+        }
+        log.info("Model call hedging enabled for {} at p{} of recent latency (min {}ms), budget {}% of calls",
+                hedged, Math.round(percentile * 100), minDelayMs, budgetPercent);
+        return new ModelHedgePolicy(hedged, new ModelHedgePolicy.Settings(percentile, Math.max(0L, minDelayMs),
+                Math.max(1, minSamples), Math.max(1, window), Math.max(0.0, budgetPercent)));
+    }
+
     @Bean
-    public ModelClient modelClient(ObjectMapper objectMapper) {
+    public ModelClient modelClient(ObjectMapper objectMapper,
+                                   ObjectProvider<ModelConnectionPool> connectionPool,
+                                   ObjectProvider<ModelCallBatcher> batcher,
+                                   ObjectProvider<ModelEndpointBalancer> endpointBalancer,
+                                   ObjectProvider<ModelHedgePolicy> hedgePolicy,
+                                   ObjectProvider<ModelConcurrencyLimiter> concurrencyLimiter) {
+        if ("http-async".equalsIgnoreCase(clientType)) {
+            ModelEndpointBalancer endpoints = endpointBalancer.getObject();
+            log.info("Using AsyncHttpModelClient over HTTP/2 (baseUrl configured: {})", !endpoints.isEmpty());
+            ModelClient client = new AsyncHttpModelClient(AsyncHttpModelClient.buildHttpClient(timeoutMs),
+                    objectMapper, endpoints, authHeader, authToken, timeoutMs, streamSteps());
+            return withCircuitBreaker(withHedging(withBatching(withConcurrencyLimit(client,
+                    concurrencyLimiter.getIfAvailable()), batcher.getIfAvailable()), hedgePolicy.getIfAvailable()),
+                    endpoints, objectMapper);
+        }
         if ("http".equalsIgnoreCase(clientType)) {
-            log.info("Using HttpModelClient (baseUrl configured: {})", !baseUrl.isBlank());
-            RestTemplate restTemplate = buildRestTemplate(timeoutMs);
-            return new HttpModelClient(restTemplate, objectMapper, baseUrl, authHeader, authToken, timeoutMs);
+            ModelEndpointBalancer endpoints = endpointBalancer.getObject();
+            log.info("Using HttpModelClient (baseUrl configured: {})", !endpoints.isEmpty());
+            RestTemplate restTemplate = buildRestTemplate(timeoutMs, connectionPool.getIfAvailable());
+            ModelClient client = new HttpModelClient(restTemplate, objectMapper, endpoints, authHeader, authToken,
+                    timeoutMs, streamSteps());
+            return withCircuitBreaker(withHedging(withBatching(withConcurrencyLimit(client,
+                    concurrencyLimiter.getIfAvailable()), batcher.getIfAvailable()), hedgePolicy.getIfAvailable()),
+                    endpoints, objectMapper);
         }
         log.info("Using StubModelClient (client-type={})", clientType);
         return new StubModelClient(objectMapper);
     }
 
-    private RestTemplate buildRestTemplate(int timeoutMs) {
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+    // A batched call is answered whole, so streamed step keys stay out of batching.
+    private Set<String> batchedSteps(String batchSteps) {
+        Set<String> batched = parseList(batchSteps);
+        if (streamEnabled) {
+            batched.removeAll(parseList(streamSteps));
+        }
+        return batched;
+    }
+
+    private Set<String> streamSteps() {
+        Set<String> steps = streamEnabled ? parseList(streamSteps) : Set.of();
+        if (!steps.isEmpty()) {
+            log.info("Model responses streamed for steps {}", steps);
+        }
+        return steps;
+    }
+
+    // Innermost, so each hedge attempt holds its own permit and the measured round trip is the HTTP call alone,
+    // never a fallback answer from the circuit breaker. Batched calls go to the batcher and do not pass through it.
+    private static ModelClient withConcurrencyLimit(ModelClient client, ModelConcurrencyLimiter limiter) {
+        return limiter == null ? client : new ConcurrencyLimitedModelClient(client, limiter);
+    }
+
+    // Batching sits inside the circuit breaker, so each batched item still counts towards its circuit.
+    private static ModelClient withBatching(ModelClient client, ModelCallBatcher batcher) {
+        return batcher == null ? client : new BatchingModelClient(client, batcher);
+    }
+
+    // Hedging sits inside the circuit breaker too: a hedged call is one call to the circuit, however many attempts.
+    private static ModelClient withHedging(ModelClient client, ModelHedgePolicy policy) {
+        return policy == null ? client : new HedgingModelClient(client, policy);
+    }
+
+    // The service-wide circuits cover all replicas together; single replicas are ejected by the balancer.
+    private ModelClient withCircuitBreaker(ModelClient client, ModelEndpointBalancer endpoints,
+                                           ObjectMapper objectMapper) {
+        if (!circuitEnabled) {
+            return client;
+        }
+        CircuitBreaker.Settings settings = new CircuitBreaker.Settings(circuitWindowSize, circuitMinimumCalls,
+                circuitFailureRate, circuitSlowCallRate, circuitSlowCallMs, circuitOpenMs, circuitHalfOpenProbes);
+        Set<String> fallbackSteps = parseList(circuitFallbackSteps);
+        log.info("Model circuit breaker enabled (window {}, failure rate {}, slow rate {} over {}ms, open {}ms, fallback steps {})",
+                circuitWindowSize, circuitFailureRate, circuitSlowCallRate, circuitSlowCallMs, circuitOpenMs, fallbackSteps);
+        ModelClient fallback = fallbackSteps.isEmpty() ? null : new StubModelClient(objectMapper);
+        return new CircuitBreakerModelClient(client, fallback, endpoints.name(), settings, parseList(circuitFailureCodes),
+                fallbackSteps);
+    }
+
+    private static Map<String, Long> parseLongs(String spec) {
+        Map<String, Long> values = new HashMap<>();
+        for (String entry : parseList(spec)) {
+            String[] parts = entry.split("=");
+            if (parts.length == 2) {
+                try {
+                    values.put(parts[0].trim(), Long.parseLong(parts[1].trim()));
+                } catch (NumberFormatException ex) {
+                    log.warn("Ignoring invalid numeric setting '{}'", entry);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static Set<String> parseList(String spec) {
+        Set<String> values = new LinkedHashSet<>();
+        if (spec == null) {
+            return values;
+        }
+        for (String value : spec.split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    private RestTemplate buildRestTemplate(int timeoutMs, ModelConnectionPool connectionPool) {
+        if (connectionPool != null) {
+            return new RestTemplate(new PooledCancellableRequestFactory(connectionPool));
+        }
+        CancellableClientHttpRequestFactory factory = new CancellableClientHttpRequestFactory();
         factory.setConnectTimeout(timeoutMs);
         factory.setReadTimeout(timeoutMs);
         return new RestTemplate(factory);
@@ -0,0 +1,268 @@
+package com.moments.optimizer.model;
+
+import com.moments.optimizer.metrics.MetricsSource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adaptive limit on in-flight model calls per step key (AIMD). Every successful call that used at least half of
+ * the limit raises it by {@code 1/limit}, about one per round trip of a full window. It is cut by
+ * {@code backoffRatio} when a call fails with one of the drop codes, or when the recent round-trip time exceeds
+ * {@code rttTolerance} times the baseline: queueing in the model service, caught before it turns into errors. The
+ * baseline is the lowest recent round-trip time since the last probe. Once per {@code baselineWindowMillis} a
+ * probe lets in-flight calls drain to {@code probeRatio} of the limit and measures the lightly loaded service again,
+ * so a baseline taken under full load, or before the service itself got slower, does not stick. Calls keep going
+ * out at that reduced limit until the probe returns. Calls over the limit wait in arrival order.
+ */
+public class ModelConcurrencyLimiter implements MetricsSource, AutoCloseable {
+
+    // Weight of the newest sample in the recent round-trip average.
+    private static final double RECENT_ALPHA = 0.2;
+
+    public record Settings(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double rttTolerance,
+                           long baselineWindowMillis, double probeRatio) {}
+
+    private final Set<String> steps;
+    private final Set<String> dropCodes;
+    private final Settings settings;
+    private final Map<String, StepLimit> limits = new ConcurrentHashMap<>();
+    private final ExecutorService starter;
+
+    public ModelConcurrencyLimiter(Set<String> steps, Set<String> dropCodes, Settings settings) {
+        this.steps = Set.copyOf(steps);
+        this.dropCodes = Set.copyOf(dropCodes);
+        this.settings = settings;
+        this.starter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-concurrency");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean limits(String stepKey) {
+        return steps.contains(stepKey);
+    }
+
+    // Queued asynchronous calls are started from here, not from the thread of the call that freed their permit.
+    ExecutorService starter() {
+        return starter;
+    }
+
+    /**
+     * Returns a permit, completed at once when the step key is under its limit. Cancelling the future before it
+     * completes leaves the queue.
+     */
+    CompletableFuture<Permit> acquire(String stepKey) {
+        StepLimit step = limits.computeIfAbsent(stepKey, key -> new StepLimit());
+        Waiter waiter = new Waiter();
+        List<Grant> grants;
+        synchronized (step) {
+            step.waiters.add(waiter);
+            grants = step.grantLocked();
+        }
+        step.complete(grants);
+        waiter.future.whenComplete((permit, error) -> {
+            if (waiter.future.isCancelled()) {
+                synchronized (step) {
+                    step.waiters.remove(waiter);
+                }
+            }
+        });
+        return waiter.future;
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelConcurrency";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> byStep = new TreeMap<>();
+        limits.forEach((stepKey, step) -> byStep.put(stepKey, step.snapshot()));
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("steps", steps);
+        snapshot.put("minLimit", settings.minLimit());
+        snapshot.put("maxLimit", settings.maxLimit());
+        snapshot.put("byStep", byStep);
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        starter.shutdownNow();
+    }
+
+    /** One admitted call; {@link #finish} or {@link #release} it exactly once. */
+    final class Permit {
+        private final StepLimit step;
+        private final boolean probe;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Permit(StepLimit step, boolean probe) {
+            this.step = step;
+            this.probe = probe;
+        }
+
+        // Successes feed the round-trip averages, drop codes cut the limit, any other error only frees the slot.
+        void finish(ModelClientException error) {
+            if (done.compareAndSet(false, true)) {
+                step.onDone(this, error == null ? System.nanoTime() - startNanos : -1L,
+                        error != null && dropCodes.contains(error.getErrorCode()));
+            }
+        }
+
+        // For a call that never reached the model service, or whose answer says nothing about its round trip.
+        void release() {
+            if (done.compareAndSet(false, true)) {
+                step.onDone(this, -1L, false);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private final long queuedNanos = System.nanoTime();
+    }
+
+    private record Grant(Waiter waiter, Permit permit) {}
+
+    private final class StepLimit {
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private double limit = clamp(settings.initialLimit());
+        private int inFlight;
+        private double recentRttMillis;
+        private double baselineRttMillis;
+        private long probeDueNanos = System.nanoTime() + settings.baselineWindowMillis() * 1_000_000L;
+        private boolean probing;
+        private boolean probeAdmitted;
+        private long lastDecreaseNanos;
+        private long calls;
+        private long queued;
+        private long queuedMillis;
+        private long drops;
+        private long decreases;
+        private long probes;
+
+        private void onDone(Permit permit, long rttNanos, boolean drop) {
+            List<Grant> grants;
+            synchronized (this) {
+                int used = inFlight;
+                inFlight--;
+                calls++;
+                if (drop) {
+                    drops++;
+                    decrease();
+                } else if (rttNanos >= 0) {
+                    double rtt = rttNanos / 1_000_000.0;
+                    if (permit.probe) {
+                        // Measured under the reduced probe load: starts the averages and the baseline over.
+                        recentRttMillis = rtt;
+                        baselineRttMillis = rtt;
+                    }
+                    recentRttMillis = recentRttMillis == 0 ? rtt : recentRttMillis + RECENT_ALPHA * (rtt - recentRttMillis);
+                    baselineRttMillis = baselineRttMillis == 0 ? recentRttMillis
+                            : Math.min(baselineRttMillis, recentRttMillis);
+                    if (recentRttMillis > settings.rttTolerance() * baselineRttMillis) {
+                        decrease();
+                    } else if (used * 2 >= limit) {
+                        // Only grow while the limit is actually in use, or an idle period would ratchet it up.
+                        limit = clamp(limit + 1.0 / limit);
+                    }
+                }
+                long now = System.nanoTime();
+                if (permit.probe) {
+                    probing = false;
+                    probeDueNanos = now + settings.baselineWindowMillis() * 1_000_000L;
+                } else if (!probing && now >= probeDueNanos) {
+                    probing = true;
+                    probeAdmitted = false;
+                    probes++;
+                }
+                grants = grantLocked();
+            }
+            complete(grants);
+        }
+
+        // At most one cut per recent round trip: the calls already in flight answer for the previous limit.
+        private void decrease() {
+            long now = System.nanoTime();
+            if (decreases > 0 && now - lastDecreaseNanos < (long) (recentRttMillis * 1_000_000L)) {
+                return;
+            }
+            limit = clamp(limit * settings.backoffRatio());
+            lastDecreaseNanos = now;
+            decreases++;
+        }
+
+        // While probing, in-flight calls drain to a fraction of the limit; the first call let in after that is the
+        // probe, and others follow it up to the same reduced limit until it returns.
+        private int admitted() {
+            if (probing) {
+                return (int) clamp(Math.floor(limit * settings.probeRatio()));
+            }
+            return (int) limit;
+        }
+
+        private List<Grant> grantLocked() {
+            List<Grant> grants = new ArrayList<>();
+            while (!waiters.isEmpty() && inFlight < admitted()) {
+                Waiter waiter = waiters.poll();
+                if (waiter.future.isDone()) {
+                    continue;
+                }
+                inFlight++;
+                boolean probe = probing && !probeAdmitted;
+                probeAdmitted |= probe;
+                long waitedMillis = (System.nanoTime() - waiter.queuedNanos) / 1_000_000L;
+                if (waitedMillis > 0) {
+                    queued++;
+                    queuedMillis += waitedMillis;
+                }
+                grants.add(new Grant(waiter, new Permit(this, probe)));
+            }
+            return grants;
+        }
+
+        private void complete(List<Grant> grants) {
+            for (Grant grant : grants) {
+                if (!grant.waiter().future.complete(grant.permit())) {
+                    // Cancelled while being granted.
+                    grant.permit().release();
+                }
+            }
+        }
+
+        private synchronized Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("limit", (int) limit);
+            snapshot.put("inFlight", inFlight);
+            snapshot.put("waiting", waiters.size());
+            snapshot.put("calls", calls);
+            snapshot.put("queuedCalls", queued);
+            snapshot.put("queuedMillis", queuedMillis);
+            snapshot.put("drops", drops);
+            snapshot.put("decreases", decreases);
+            snapshot.put("rttMs", Math.round(recentRttMillis));
+            snapshot.put("baselineRttMs", Math.round(baselineRttMillis));
+            snapshot.put("probes", probes);
+            return snapshot;
+        }
+    }
+
+    private double clamp(double value) {
+        return Math.max(settings.minLimit(), Math.min(settings.maxLimit(), value));
+    }
+}
@@ -0,0 +1,250 @@
+package com.moments.optimizer.model;
+
+import com.moments.optimizer.metrics.MetricsSource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side requests-per-minute and tokens-per-minute pacing per model endpoint. Each call reserves one
+ * request and its estimated token cost up front and is told how long to wait before it may go; reservations
+ * queue in arrival order instead of failing at the provider. Once the response reports actual usage, the
+ * difference is charged or refunded and the endpoint's estimate correction is updated.
+ */
+public class ModelRateLimiter implements MetricsSource, AutoCloseable {
+
+    public static final String RATE_LIMITED = "RATE_LIMITED";
+    private static final String DEFAULT_ENDPOINT = "default";
+    private static final double CORRECTION_ALPHA = 0.2;
+    private static final int CHARS_PER_TOKEN = 4;
+
+    public record Limits(long requestsPerMinute, long tokensPerMinute) {}
+
+    public record Reservation(String endpoint, long estimatedTokens, long delayMillis) {}
+
+    private final Map<String, String> endpointByStep;
+    private final Map<String, Limits> limitsByEndpoint;
+    private final Limits defaultLimits;
+    private final long maxQueueMillis;
+    private final long defaultOutputTokens;
+    private final long imageTokens;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public ModelRateLimiter(Map<String, String> endpointByStep,
+                            Map<String, Limits> limitsByEndpoint,
+                            Limits defaultLimits,
+                            long maxQueueMillis,
+                            long defaultOutputTokens,
+                            long imageTokens) {
+        this.endpointByStep = Map.copyOf(endpointByStep);
+        this.limitsByEndpoint = Map.copyOf(limitsByEndpoint);
+        this.defaultLimits = defaultLimits;
+        this.maxQueueMillis = maxQueueMillis;
+        this.defaultOutputTokens = defaultOutputTokens;
+        this.imageTokens = imageTokens;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-rate-limit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Delayed asynchronous calls are started from here so no worker thread waits for capacity.
+    ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /**
+     * Reserves capacity for one call sending {@code textChars} of text and {@code images} images. Returns
+     * {@code null} when the wait would exceed the queue limit; nothing is reserved in that case.
+     */
+    public Reservation reserve(String stepKey, int textChars, int images) {
+        Endpoint endpoint = endpointFor(stepKey);
+        long estimate = endpoint.estimate(textChars, images);
+        long delay = endpoint.reserve(estimate, maxQueueMillis);
+        return delay < 0 ? null : new Reservation(endpoint.name, estimate, delay);
+    }
+
+    // A call that never reached the provider gives its reservation back.
+    public void release(Reservation reservation) {
+        Endpoint endpoint = endpoints.get(reservation.endpoint());
+        endpoint.requests.refund(1);
+        endpoint.tokens.refund(reservation.estimatedTokens());
+    }
+
+    public void complete(Reservation reservation, Map<String, Object> result) {
+        Long actual = reportedTokens(result);
+        if (actual != null) {
+            endpoints.get(reservation.endpoint()).correct(reservation.estimatedTokens(), actual);
+        }
+    }
+
+    public void recordWait(Reservation reservation) {
+        Endpoint endpoint = endpoints.get(reservation.endpoint());
+        endpoint.delayedCalls.incrementAndGet();
+        endpoint.waitedMillis.addAndGet(reservation.delayMillis());
+    }
+
+    public void recordRejected(String stepKey) {
+        endpointFor(stepKey).rejected.incrementAndGet();
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelRateLimiter";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        endpoints.forEach((name, endpoint) -> snapshot.put(name, endpoint.snapshot()));
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private Endpoint endpointFor(String stepKey) {
+        String name = endpointByStep.getOrDefault(stepKey, DEFAULT_ENDPOINT);
+        return endpoints.computeIfAbsent(name, key -> new Endpoint(key, limitsByEndpoint.getOrDefault(key, defaultLimits)));
+    }
+
+    // Usage as reported by the model service, using the same names as analysis_history.
+    static Long reportedTokens(Map<String, Object> result) {
+        if (result == null) {
+            return null;
+        }
+        Object usage = result.get("usage");
+        Map<?, ?> source = usage instanceof Map<?, ?> map ? map : result;
+        if (source.get("totalTokens") instanceof Number total) {
+            return total.longValue();
+        }
+        if (source.get("inputTokens") instanceof Number input && source.get("outputTokens") instanceof Number output) {
+            return input.longValue() + output.longValue();
+        }
+        return null;
+    }
+
+    private final class Endpoint {
+        private final String name;
+        private final TokenBucket requests;
+        private final TokenBucket tokens;
+        private final AtomicLong delayedCalls = new AtomicLong();
+        private final AtomicLong waitedMillis = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong estimatedTokens = new AtomicLong();
+        private final AtomicLong reportedTokens = new AtomicLong();
+        private volatile double correction = 1.0;
+
+        private Endpoint(String name, Limits limits) {
+            this.name = name;
+            this.requests = new TokenBucket(limits.requestsPerMinute());
+            this.tokens = new TokenBucket(limits.tokensPerMinute());
+        }
+
+        private long estimate(int textChars, int images) {
+            long inputTokens = textChars / CHARS_PER_TOKEN + images * imageTokens;
+            return Math.max(1L, Math.round((inputTokens + defaultOutputTokens) * correction));
+        }
+
+        // Both buckets are reserved together so a call never holds one while queuing on the other.
+        private synchronized long reserve(long estimate, long maxQueueMillis) {
+            long now = System.currentTimeMillis();
+            long delay = Math.max(requests.delayFor(1, now), tokens.delayFor(estimate, now));
+            if (delay > maxQueueMillis) {
+                return -1L;
+            }
+            requests.take(1, now);
+            tokens.take(estimate, now);
+            estimatedTokens.addAndGet(estimate);
+            return delay;
+        }
+
+        private void correct(long estimate, long actual) {
+            tokens.refund(estimate - actual);
+            reportedTokens.addAndGet(actual);
+            double ratio = Math.max(0.1, Math.min(10.0, (double) actual / Math.max(1L, estimate) * correction));
+            correction = correction + CORRECTION_ALPHA * (ratio - correction);
+        }
+
+        private Map<String, Object> snapshot() {
+            long now = System.currentTimeMillis();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("requestsPerMinute", requests.perMinute);
+            snapshot.put("tokensPerMinute", tokens.perMinute);
+            snapshot.put("availableRequests", requests.available(now));
+            snapshot.put("availableTokens", tokens.available(now));
+            snapshot.put("delayedCalls", delayedCalls.get());
+            snapshot.put("waitedMillis", waitedMillis.get());
+            snapshot.put("rejected", rejected.get());
+            snapshot.put("estimatedTokens", estimatedTokens.get());
+            snapshot.put("reportedTokens", reportedTokens.get());
+            snapshot.put("estimateCorrection", correction);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Bucket refilled continuously at {@code perMinute / 60s} up to one minute's worth. Reservations may drive
+     * it negative; the debt is the queue, and each new caller waits until it is paid back.
+     */
+    private static final class TokenBucket {
+        private final long perMinute;
+        private double available;
+        private long updatedAt;
+
+        private TokenBucket(long perMinute) {
+            this.perMinute = perMinute;
+            this.available = perMinute;
+            this.updatedAt = System.currentTimeMillis();
+        }
+
+        private synchronized long delayFor(long amount, long now) {
+            if (perMinute <= 0) {
+                return 0L;
+            }
+            refill(now);
+            double after = available - Math.min(amount, perMinute);
+            return after >= 0 ? 0L : (long) Math.ceil(-after * 60_000.0 / perMinute);
+        }
+
+        private synchronized void take(long amount, long now) {
+            if (perMinute <= 0) {
+                return;
+            }
+            refill(now);
+            available -= Math.min(amount, perMinute);
+        }
+
+        private synchronized void refund(long amount) {
+            if (perMinute <= 0) {
+                return;
+            }
+            refill(System.currentTimeMillis());
+            available = Math.min(perMinute, available + amount);
+        }
+
+        private synchronized long available(long now) {
+            if (perMinute <= 0) {
+                return -1L;
+            }
+            refill(now);
+            return (long) Math.floor(available);
+        }
+
+        private void refill(long now) {
+            if (now > updatedAt) {
+                available = Math.min(perMinute, available + (now - updatedAt) * perMinute / 60_000.0);
+                updatedAt = now;
+            }
+        }
+    }
+}
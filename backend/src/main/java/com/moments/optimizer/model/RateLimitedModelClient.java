@@ -0,0 +1,191 @@
+package com.moments.optimizer.model;
+
+import com.moments.optimizer.domain.TaskStep;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces calls through a {@link ModelRateLimiter}. A blocking call sleeps for its reserved delay (a cancel
+ * interrupts it); an asynchronous call is started from the limiter's timer once the delay has passed. A call
+ * that would have to wait longer than the limiter's queue limit fails with the retryable {@code RATE_LIMITED}.
+ */
+public class RateLimitedModelClient implements ModelClient {
+
+    private static final String INPUT_SHAPE = "rateLimit.inputShape";
+
+    // What a call sends, measured once per task: image URLs (often large data: URLs) are charged per image.
+    record InputShape(int textChars, int images) {}
+
+    private final ModelClient delegate;
+    private final ModelRateLimiter limiter;
+
+    public RateLimitedModelClient(ModelClient delegate, ModelRateLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        ModelRateLimiter.Reservation reservation = reserve(stepKey, context);
+        if (reservation.delayMillis() > 0) {
+            limiter.recordWait(reservation);
+            try {
+                Thread.sleep(reservation.delayMillis());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                limiter.release(reservation);
+                throw aborted(CancellationScope.current());
+            }
+        }
+        try {
+            Map<String, Object> result = delegate.runStep(stepKey, context, step, listener);
+            limiter.complete(reservation, result);
+            return result;
+        } catch (ModelClientException ex) {
+            releaseIfUnsent(reservation, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        ModelRateLimiter.Reservation reservation;
+        try {
+            reservation = reserve(stepKey, context);
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        if (reservation.delayMillis() <= 0) {
+            return track(reservation, delegate.runStepAsync(stepKey, context, step, listener));
+        }
+        limiter.recordWait(reservation);
+        CancellationScope scope = CancellationScope.current();
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        ScheduledFuture<?> start = limiter.timer().schedule(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            // Re-entered on the timer thread so the delegate registers its abort hooks and sees the deadline.
+            if (scope != null) {
+                scope.enter();
+            }
+            CompletableFuture<Map<String, Object>> call;
+            try {
+                call = delegate.runStepAsync(stepKey, context, step, listener);
+            } catch (RuntimeException ex) {
+                call = CompletableFuture.failedFuture(ex);
+            } finally {
+                if (scope != null) {
+                    scope.exit();
+                }
+            }
+            track(reservation, call).whenComplete((value, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(unwrap(error));
+                } else {
+                    result.complete(value);
+                }
+            });
+        }, reservation.delayMillis(), TimeUnit.MILLISECONDS);
+        if (scope != null) {
+            scope.onCancel(() -> {
+                if (start.cancel(false)) {
+                    limiter.release(reservation);
+                    result.completeExceptionally(aborted(scope));
+                }
+            });
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+
+    private ModelRateLimiter.Reservation reserve(String stepKey, TaskContext context) throws ModelClientException {
+        InputShape shape = inputShape(context);
+        ModelRateLimiter.Reservation reservation = limiter.reserve(stepKey, shape.textChars(), shape.images());
+        if (reservation == null) {
+            limiter.recordRejected(stepKey);
+            throw new ModelClientException(ModelRateLimiter.RATE_LIMITED,
+                    "Model rate limit queue is full for step " + stepKey);
+        }
+        return reservation;
+    }
+
+    private static InputShape inputShape(TaskContext context) {
+        try {
+            return context.derived(INPUT_SHAPE, RateLimitedModelClient::measure);
+        } catch (ModelClientException ex) {
+            return new InputShape(context.payloadLength(), 0);
+        }
+    }
+
+    // The codec sends the payload as stored, except that an image attached by ingestion replaces its imageUrls
+    // entry; either way each image counts once.
+    static InputShape measure(TaskContext context) throws ModelClientException {
+        int chars = context.payloadLength();
+        int images = 0;
+        if (context.payload().get("imageUrls") instanceof List<?> urls) {
+            for (Object url : urls) {
+                if (url instanceof String text) {
+                    chars -= text.length();
+                    images++;
+                }
+            }
+        }
+        return new InputShape(Math.max(0, chars), images);
+    }
+
+    private CompletableFuture<Map<String, Object>> track(ModelRateLimiter.Reservation reservation,
+                                                         CompletableFuture<Map<String, Object>> call) {
+        return call.whenComplete((result, error) -> {
+            if (error == null) {
+                limiter.complete(reservation, result);
+            } else {
+                if (unwrap(error) instanceof ModelClientException modelError) {
+                    releaseIfUnsent(reservation, modelError);
+                }
+            }
+        });
+    }
+
+    // Calls rejected before reaching the model service (open circuit, missing config, unbuildable request) do not
+    // use up quota.
+    private void releaseIfUnsent(ModelRateLimiter.Reservation reservation, ModelClientException error) {
+        String code = error.getErrorCode();
+        if (CircuitBreakerModelClient.CIRCUIT_OPEN.equals(code) || "CONFIG_ERROR".equals(code)
+                || "REQUEST_ERROR".equals(code)) {
+            limiter.release(reservation);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static ModelClientException aborted(CancellationScope scope) {
+        String reason = scope != null && scope.isCancelled() ? scope.reason() : CancellationScope.CANCELLED;
+        return new ModelClientException(reason, "Model call aborted: " + reason, null);
+    }
+}
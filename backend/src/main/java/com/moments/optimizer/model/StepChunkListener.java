@@ -0,0 +1,13 @@
+package com.moments.optimizer.model;
+
+/**
+ * Receives partial output of a streaming model call as it arrives. Called from whichever thread reads the
+ * response, so implementations must be thread-safe and must not block.
+ */
+@FunctionalInterface
+public interface StepChunkListener {
+
+    StepChunkListener NONE = text -> { };
+
+    void onChunk(String text);
+}
@@ -0,0 +1,123 @@
+package com.moments.optimizer.model;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.Task;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State shared by every step of one pipeline run, like the {@code context} object of the legacy step handlers.
+ * The task payload is parsed once, on first use, instead of by every client and decorator on every step; step
+ * outputs are added as steps succeed and become the task result.
+ */
+public final class TaskContext {
+
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+    /** Computes a value from the context once per task; see {@link #derived}. */
+    @FunctionalInterface
+    public interface Derivation<T> {
+        T compute(TaskContext context) throws ModelClientException;
+    }
+
+    private final Task task;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Map<String, Object>> outputs = new LinkedHashMap<>();
+    private final Map<String, Object> derived = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> attachments = new ConcurrentHashMap<>();
+    private Map<String, Object> payload;
+    private ModelClientException payloadError;
+
+    public TaskContext(Task task, ObjectMapper objectMapper) {
+        this.task = task;
+        this.objectMapper = objectMapper;
+    }
+
+    public Task task() {
+        return task;
+    }
+
+    public String taskId() {
+        return task.getId();
+    }
+
+    public String taskType() {
+        return task.getType();
+    }
+
+    public int payloadLength() {
+        return task.getPayloadJson() == null ? 0 : task.getPayloadJson().length();
+    }
+
+    // Shared by all steps and threads of the task: read-only, nested values included.
+    public synchronized Map<String, Object> payload() throws ModelClientException {
+        if (payload == null && payloadError == null) {
+            String json = task.getPayloadJson();
+            try {
+                payload = json == null || json.isBlank() ? Map.of()
+                        : Collections.unmodifiableMap(objectMapper.readValue(json, MAP_TYPE));
+            } catch (Exception ex) {
+                payloadError = new ModelClientException("PARSE_ERROR", "Failed to parse task payload", null);
+            }
+        }
+        if (payloadError != null) {
+            throw payloadError;
+        }
+        return payload;
+    }
+
+    public Object userId() throws ModelClientException {
+        return payload().get("userId");
+    }
+
+    public synchronized void putOutput(String nodeKey, Map<String, Object> output) {
+        outputs.put(nodeKey, output);
+    }
+
+    public synchronized Map<String, Object> output(String nodeKey) {
+        return outputs.get(nodeKey);
+    }
+
+    // Snapshot in the order steps completed (checkpointed steps first).
+    public synchronized Map<String, Object> outputs() {
+        return new LinkedHashMap<>(outputs);
+    }
+
+    /**
+     * Adds an input that one step prepared for a later model call, such as a normalized image for the image model
+     * call of the same branch. The HTTP clients send a call's attachments with its request. Attachments live for
+     * this run only and are never checkpointed, so the preparing code must recreate them after a resume.
+     */
+    public void putAttachment(String stepKey, Integer branchIndex, String name, Object value) {
+        attachments.computeIfAbsent(attachmentKey(stepKey, branchIndex), key -> new ConcurrentHashMap<>())
+                .put(name, value);
+    }
+
+    public Map<String, Object> attachments(String stepKey, Integer branchIndex) {
+        Map<String, Object> values = attachments.get(attachmentKey(stepKey, branchIndex));
+        return values == null ? Map.of() : Collections.unmodifiableMap(values);
+    }
+
+    private static String attachmentKey(String stepKey, Integer branchIndex) {
+        return branchIndex == null ? stepKey : stepKey + "#" + branchIndex;
+    }
+
+    /**
+     * Returns the value stored under {@code name}, computing it on first use. Lets clients and decorators keep
+     * payload-derived data (for example a normalized cache key prefix) for the rest of the task.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T derived(String name, Derivation<T> derivation) throws ModelClientException {
+        Object value = derived.get(name);
+        if (value == null) {
+            value = derivation.compute(this);
+            Object raced = derived.putIfAbsent(name, value);
+            value = raced == null ? value : raced;
+        }
+        return (T) value;
+    }
+}
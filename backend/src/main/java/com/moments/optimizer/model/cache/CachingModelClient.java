@@ -0,0 +1,342 @@
+package com.moments.optimizer.model.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.image.ImageIngestor;
+import com.moments.optimizer.image.NormalizedImage;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Serves repeated model calls from a {@link StepResponseCache}. The key is a SHA-256 over the step key, task
+ * type, branch and the normalized task payload (sorted keys, no nulls, trimmed strings, scheduling-only options
+ * removed), plus the content of an attached image, so the same input from the same user hits regardless of task
+ * id or whitespace. Concurrent misses for one key share a single in-flight call.
+ */
+public class CachingModelClient implements ModelClient {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingModelClient.class);
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+    // Outcomes that belong to the caller that made the call rather than to the input; waiters retry instead.
+    private static final Set<String> CALLER_ERRORS = Set.of(CancellationScope.CANCELLED,
+            CancellationScope.STEP_TIMEOUT, CancellationScope.DEADLINE_EXCEEDED, CancellationScope.ABANDONED);
+    private static final String PAYLOAD_DIGEST = "cache.payloadDigest";
+
+    private final ModelClient delegate;
+    private final StepResponseCache cache;
+    private final ObjectMapper objectMapper;
+    private final Set<String> cachedSteps;
+    private final Set<String> ignoredOptions;
+    private final Map<String, CompletableFuture<Map<String, Object>>> inFlight = new ConcurrentHashMap<>();
+
+    // An empty cachedSteps set caches every step key.
+    public CachingModelClient(ModelClient delegate,
+                              StepResponseCache cache,
+                              ObjectMapper objectMapper,
+                              Set<String> cachedSteps,
+                              Set<String> ignoredOptions) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.objectMapper = objectMapper;
+        this.cachedSteps = Set.copyOf(cachedSteps);
+        this.ignoredOptions = Set.copyOf(ignoredOptions);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    // Hits and coalesced waiters get the whole response at once; only the leading call streams.
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        String key = cacheKey(stepKey, context, step);
+        if (key == null) {
+            return delegate.runStep(stepKey, context, step, listener);
+        }
+        while (true) {
+            Map<String, Object> cached = lookup(stepKey, key);
+            if (cached != null) {
+                return cached;
+            }
+            CompletableFuture<Map<String, Object>> call = new CompletableFuture<>();
+            CompletableFuture<Map<String, Object>> leader = inFlight.putIfAbsent(key, call);
+            if (leader == null) {
+                return lead(stepKey, key, context, step, listener, call);
+            }
+            cache.recordCoalesced(stepKey);
+            try {
+                return leader.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw aborted();
+            } catch (ExecutionException ex) {
+                if (!isCallerError(ex.getCause())) {
+                    throw rethrow(ex.getCause());
+                }
+                // The leader was cancelled or timed out on its own deadline; this caller makes its own attempt.
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        String key;
+        try {
+            key = cacheKey(stepKey, context, step);
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        if (key == null) {
+            return delegate.runStepAsync(stepKey, context, step, listener);
+        }
+        Map<String, Object> cached;
+        try {
+            cached = lookup(stepKey, key);
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<Map<String, Object>> call = new CompletableFuture<>();
+        CompletableFuture<Map<String, Object>> leader = inFlight.putIfAbsent(key, call);
+        if (leader == null) {
+            CompletableFuture<Map<String, Object>> started;
+            try {
+                started = delegate.runStepAsync(stepKey, context, step, listener);
+            } catch (RuntimeException ex) {
+                started = CompletableFuture.failedFuture(ex);
+            }
+            started.whenComplete((result, error) -> {
+                Throwable cause = unwrap(error);
+                if (cause == null) {
+                    store(stepKey, key, result);
+                    call.complete(result);
+                } else {
+                    call.completeExceptionally(cause);
+                }
+                inFlight.remove(key, call);
+            });
+            return call;
+        }
+        cache.recordCoalesced(stepKey);
+        CancellationScope scope = CancellationScope.current();
+        CompletableFuture<Map<String, Object>> waiter = new CompletableFuture<>();
+        if (scope != null) {
+            scope.onCancel(() -> waiter.completeExceptionally(aborted(scope)));
+        }
+        leader.whenComplete((result, error) -> {
+            Throwable cause = unwrap(error);
+            if (cause == null) {
+                waiter.complete(result);
+            } else if (!isCallerError(cause) || waiter.isDone()) {
+                waiter.completeExceptionally(cause);
+            } else {
+                retryAsync(stepKey, context, step, listener, scope).whenComplete((retried, retryError) -> {
+                    if (retryError == null) {
+                        waiter.complete(retried);
+                    } else {
+                        waiter.completeExceptionally(unwrap(retryError));
+                    }
+                });
+            }
+        });
+        return waiter;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+
+    private Map<String, Object> lead(String stepKey,
+                                     String key,
+                                     TaskContext context,
+                                     TaskStep step,
+                                     StepChunkListener listener,
+                                     CompletableFuture<Map<String, Object>> call) throws ModelClientException {
+        try {
+            Map<String, Object> result = delegate.runStep(stepKey, context, step, listener);
+            store(stepKey, key, result);
+            call.complete(result);
+            return result;
+        } catch (ModelClientException | RuntimeException ex) {
+            call.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    // Runs the retry inside the waiter's own scope so its deadline and cancel still reach the new call.
+    private CompletableFuture<Map<String, Object>> retryAsync(String stepKey,
+                                                             TaskContext context,
+                                                             TaskStep step,
+                                                             StepChunkListener listener,
+                                                             CancellationScope scope) {
+        if (scope == null) {
+            return runStepAsync(stepKey, context, step, listener);
+        }
+        boolean interrupted = Thread.currentThread().isInterrupted();
+        scope.enter();
+        try {
+            return scope.isCancelled() ? CompletableFuture.failedFuture(aborted(scope))
+                    : runStepAsync(stepKey, context, step, listener);
+        } finally {
+            scope.exit();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Map<String, Object> lookup(String stepKey, String key) throws ModelClientException {
+        byte[] value = cache.get(stepKey, key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(value, MAP_TYPE);
+        } catch (Exception ex) {
+            throw new ModelClientException("PARSE_ERROR", "Failed to parse cached model response", null);
+        }
+    }
+
+    private void store(String stepKey, String key, Map<String, Object> result) {
+        if (result == null || Boolean.TRUE.equals(result.get("degraded"))) {
+            // Fallback answers stand in for the real response; caching them would outlive the outage.
+            return;
+        }
+        try {
+            cache.put(stepKey, key, objectMapper.writeValueAsBytes(result));
+        } catch (JsonProcessingException ex) {
+            log.debug("Step {} response is not cacheable: {}", stepKey, ex.getMessage());
+        }
+    }
+
+    private String cacheKey(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        if (!cachedSteps.isEmpty() && !cachedSteps.contains(stepKey)) {
+            return null;
+        }
+        byte[] payloadDigest = context.derived(PAYLOAD_DIGEST, this::payloadDigest);
+        MessageDigest digest = sha256();
+        digest.update((stepKey + '\n' + context.taskType() + '\n' + step.getBranchIndex() + '\n')
+                .getBytes(StandardCharsets.UTF_8));
+        digest.update(payloadDigest);
+        // The payload only names the image; what the model sees is the attached image, which can change behind
+        // the same URL.
+        if (context.attachments(stepKey, step.getBranchIndex()).get(ImageIngestor.ATTACHMENT)
+                instanceof NormalizedImage image) {
+            digest.update(image.sha256() != null ? image.sha256().getBytes(StandardCharsets.US_ASCII) : image.data());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // The normalized payload is the same for every step of a task, so it is hashed once per task.
+    private byte[] payloadDigest(TaskContext context) throws ModelClientException {
+        Map<String, Object> payload = new TreeMap<>(context.payload());
+        if (payload.get("options") instanceof Map<?, ?> options) {
+            Map<Object, Object> modelOptions = new TreeMap<>();
+            options.forEach((name, value) -> {
+                if (!ignoredOptions.contains(String.valueOf(name))) {
+                    modelOptions.put(String.valueOf(name), value);
+                }
+            });
+            if (modelOptions.isEmpty()) {
+                payload.remove("options");
+            } else {
+                payload.put("options", modelOptions);
+            }
+        }
+        try {
+            return sha256().digest(objectMapper.writeValueAsBytes(normalize(payload)));
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Failed to compute step cache key", ex);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            map.forEach((name, nested) -> {
+                if (nested != null) {
+                    sorted.put(String.valueOf(name), normalize(nested));
+                }
+            });
+            return sorted;
+        }
+        if (value instanceof List<?> list) {
+            List<Object> normalized = new ArrayList<>(list.size());
+            list.forEach(item -> normalized.add(normalize(item)));
+            return normalized;
+        }
+        return value instanceof String text ? text.trim() : value;
+    }
+
+    private static boolean isCallerError(Throwable error) {
+        return error instanceof ModelClientException ex && CALLER_ERRORS.contains(ex.getErrorCode());
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static ModelClientException rethrow(Throwable error) throws ModelClientException {
+        if (error instanceof ModelClientException ex) {
+            throw ex;
+        }
+        if (error instanceof RuntimeException ex) {
+            throw ex;
+        }
+        throw new IllegalStateException("Model call failed", error);
+    }
+
+    private static ModelClientException aborted() {
+        CancellationScope scope = CancellationScope.current();
+        return scope != null && scope.isCancelled() ? aborted(scope)
+                : new ModelClientException(CancellationScope.CANCELLED, "Model call aborted: " + CancellationScope.CANCELLED);
+    }
+
+    private static ModelClientException aborted(CancellationScope scope) {
+        return new ModelClientException(scope.reason(), "Model call aborted: " + scope.reason());
+    }
+}
@@ -0,0 +1,166 @@
+package com.moments.optimizer.model.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * One file per cache key under {@code dir/<first two hex chars>/<key>}, holding an 8-byte expiry followed by
+ * the response JSON. Reads map the file instead of copying it through a stream; writes go to a temp file that
+ * is atomically renamed, so readers never see a partial entry.
+ */
+class DiskCacheTier {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskCacheTier.class);
+    private static final int HEADER_BYTES = Long.BYTES;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    DiskCacheTier(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = Math.max(1L, maxBytes);
+        Files.createDirectories(dir);
+        bytes.set(scan().stream().mapToLong(CachedFile::size).sum());
+        log.info("Step response disk cache at {} ({} bytes in use, limit {})", dir, bytes.get(), this.maxBytes);
+    }
+
+    byte[] get(String key) {
+        Path file = pathFor(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                remove(file);
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mapped.getLong() < System.currentTimeMillis()) {
+                remove(file);
+                return null;
+            }
+            byte[] value = new byte[mapped.remaining()];
+            mapped.get(value);
+            return value;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            log.debug("Failed to read cache entry {}: {}", file, ex.getMessage());
+            return null;
+        }
+    }
+
+    void put(String key, byte[] value, long expiresAtMillis) {
+        Path file = pathFor(key);
+        Path temp = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putLong(0, expiresAtMillis);
+                channel.write(new ByteBuffer[] {header, ByteBuffer.wrap(value)});
+            }
+            long previous = Files.exists(file) ? Files.size(file) : 0L;
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (bytes.addAndGet(HEADER_BYTES + value.length - previous) > maxBytes) {
+                evict();
+            }
+        } catch (IOException ex) {
+            log.warn("Failed to write cache entry {}: {}", file, ex.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Left for the next scan to skip; temp files are never read.
+            }
+        }
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    // Oldest-written entries go first until the tier is back under 90% of its limit.
+    private synchronized void evict() {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+        long target = maxBytes - maxBytes / 10;
+        List<CachedFile> files = scan();
+        files.sort(Comparator.comparingLong(CachedFile::modifiedAt));
+        long total = files.stream().mapToLong(CachedFile::size).sum();
+        for (CachedFile file : files) {
+            if (total <= target) {
+                break;
+            }
+            if (remove(file.path())) {
+                total -= file.size();
+                evictions.incrementAndGet();
+            }
+        }
+        bytes.set(total);
+    }
+
+    private boolean remove(Path file) {
+        try {
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                bytes.addAndGet(-size);
+                return true;
+            }
+        } catch (IOException ignored) {
+            // Already gone, possibly removed by a concurrent reader.
+        }
+        return false;
+    }
+
+    private List<CachedFile> scan() {
+        List<CachedFile> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir, 2)) {
+            paths.filter(path -> !path.getFileName().toString().endsWith(TEMP_SUFFIX)).forEach(path -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        files.add(new CachedFile(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                } catch (IOException ignored) {
+                    // Removed while walking.
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Failed to scan cache directory {}: {}", dir, ex.getMessage());
+        }
+        return files;
+    }
+
+    private Path pathFor(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private record CachedFile(Path path, long size, long modifiedAt) {}
+}
@@ -0,0 +1,180 @@
+package com.moments.optimizer.model.cache;
+
+import com.moments.optimizer.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier store for serialized step responses: an in-heap LRU bounded by entry count and bytes, backed by an
+ * optional {@link DiskCacheTier}. Disk hits are promoted to the heap tier; disk writes happen off the caller's
+ * thread and are dropped rather than queued without bound when the disk falls behind.
+ */
+public class StepResponseCache implements MetricsSource, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(StepResponseCache.class);
+    private static final int DISK_WRITE_QUEUE = 1024;
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final DiskCacheTier disk;
+    private final long diskTtlMillis;
+    private final ThreadPoolExecutor diskWriter;
+    private final LinkedHashMap<String, Entry> heap = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, StepStats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong heapEvictions = new AtomicLong();
+    private final AtomicLong diskWritesDropped = new AtomicLong();
+    private long heapBytes;
+
+    // A null diskDir keeps the cache heap-only.
+    public StepResponseCache(long ttlMillis,
+                             int maxEntries,
+                             long maxBytes,
+                             Path diskDir,
+                             long diskMaxBytes,
+                             long diskTtlMillis) throws IOException {
+        this.ttlMillis = Math.max(1L, ttlMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1L, maxBytes);
+        this.disk = diskDir == null ? null : new DiskCacheTier(diskDir, diskMaxBytes);
+        this.diskTtlMillis = Math.max(1L, diskTtlMillis);
+        this.diskWriter = disk == null ? null : new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DISK_WRITE_QUEUE), runnable -> {
+                    Thread thread = new Thread(runnable, "step-cache-disk-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> diskWritesDropped.incrementAndGet());
+    }
+
+    public byte[] get(String stepKey, String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = heap.get(key);
+            if (entry != null) {
+                if (entry.expiresAt() > now) {
+                    statsFor(stepKey).heapHits.incrementAndGet();
+                    return entry.value();
+                }
+                heap.remove(key);
+                heapBytes -= entry.value().length;
+            }
+        }
+        if (disk != null) {
+            byte[] value = disk.get(key);
+            if (value != null) {
+                statsFor(stepKey).diskHits.incrementAndGet();
+                putHeap(key, value, now);
+                return value;
+            }
+        }
+        statsFor(stepKey).misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String stepKey, String key, byte[] value) {
+        long now = System.currentTimeMillis();
+        statsFor(stepKey).stores.incrementAndGet();
+        putHeap(key, value, now);
+        if (disk != null) {
+            diskWriter.execute(() -> disk.put(key, value, now + diskTtlMillis));
+        }
+    }
+
+    public void recordCoalesced(String stepKey) {
+        statsFor(stepKey).coalesced.incrementAndGet();
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelCache";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        synchronized (this) {
+            snapshot.put("heapEntries", heap.size());
+            snapshot.put("heapBytes", heapBytes);
+        }
+        snapshot.put("heapEvictions", heapEvictions.get());
+        if (disk != null) {
+            snapshot.put("diskBytes", disk.bytes());
+            snapshot.put("diskEvictions", disk.evictions());
+            snapshot.put("diskWritesDropped", diskWritesDropped.get());
+        }
+        Map<String, Object> bySteps = new TreeMap<>();
+        stats.forEach((stepKey, stepStats) -> bySteps.put(stepKey, stepStats.snapshot()));
+        snapshot.put("steps", bySteps);
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        if (diskWriter != null) {
+            diskWriter.shutdown();
+            try {
+                if (!diskWriter.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.warn("Step cache disk writes still pending at shutdown were dropped");
+                    diskWriter.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                diskWriter.shutdownNow();
+            }
+        }
+    }
+
+    private synchronized void putHeap(String key, byte[] value, long now) {
+        if (value.length > maxBytes) {
+            return;
+        }
+        Entry previous = heap.put(key, new Entry(value, now + ttlMillis));
+        heapBytes += value.length - (previous == null ? 0 : previous.value().length);
+        Iterator<Entry> eldest = heap.values().iterator();
+        while ((heap.size() > maxEntries || heapBytes > maxBytes) && eldest.hasNext()) {
+            heapBytes -= eldest.next().value().length;
+            eldest.remove();
+            heapEvictions.incrementAndGet();
+        }
+    }
+
+    private StepStats statsFor(String stepKey) {
+        return stats.computeIfAbsent(stepKey, key -> new StepStats());
+    }
+
+    private record Entry(byte[] value, long expiresAt) {}
+
+    private static final class StepStats {
+        private final AtomicLong heapHits = new AtomicLong();
+        private final AtomicLong diskHits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong stores = new AtomicLong();
+
+        private Map<String, Object> snapshot() {
+            long hits = heapHits.get() + diskHits.get();
+            long lookups = hits + misses.get();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("hits", hits);
+            snapshot.put("heapHits", heapHits.get());
+            snapshot.put("diskHits", diskHits.get());
+            snapshot.put("misses", misses.get());
+            snapshot.put("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups);
+            snapshot.put("coalesced", coalesced.get());
+            snapshot.put("stores", stores.get());
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+/**
+ * Non-blocking client on {@link HttpClient} negotiating HTTP/2, so concurrent step calls are multiplexed over a
+ * few connections and no thread waits on the socket. {@link #runStep} is a blocking adapter for callers that
+ * still need a synchronous result.
+ */
+public class AsyncHttpModelClient implements ModelClient {
+
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final ModelHttpCodec codec;
+    private final ModelEndpointBalancer endpoints;
+    private final String authHeader;
+    private final String authToken;
+    private final int timeoutMs;
+
+    public AsyncHttpModelClient(HttpClient httpClient,
+                                ObjectMapper objectMapper,
+                                ModelEndpointBalancer endpoints,
+                                String authHeader,
+                                String authToken,
+                                int timeoutMs,
+                                Set<String> streamSteps) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.codec = new ModelHttpCodec(objectMapper, timeoutMs, streamSteps);
+        this.endpoints = endpoints;
+        this.authHeader = authHeader;
+        this.authToken = authToken;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public static HttpClient buildHttpClient(int connectTimeoutMs) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(Math.max(1, connectTimeoutMs)))
+                .build();
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        CompletableFuture<Map<String, Object>> future = runStepAsync(stepKey, context, step, listener);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw aborted(CancellationScope.current());
+        } catch (ExecutionException ex) {
+            throw unwrap(ex.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        if (endpoints.isEmpty()) {
+            return CompletableFuture.failedFuture(
+                    new ModelClientException("CONFIG_ERROR", "Model base URL is not configured"));
+        }
+        // The scope belongs to the calling thread; capture it before anything completes elsewhere.
+        CancellationScope scope = CancellationScope.current();
+        boolean stream = codec.streams(stepKey, listener);
+        HttpRequest.Builder builder;
+        try {
+            ModelHttpCodec.RequestBody requestBody = codec.requestBody(stepKey, context, step, stream);
+            ChunkedBodyOutput body = new ChunkedBodyOutput();
+            requestBody.writeTo(body);
+            builder = HttpRequest.newBuilder()
+                    .timeout(Duration.ofMillis(requestBody.timeoutMs()))
+                    .header("Content-Type", "application/json")
+                    .POST(body.publisher());
+            if (stream) {
+                builder.header("Accept", ModelHttpCodec.STREAM_ACCEPT);
+            }
+            if (authHeader != null && !authHeader.isBlank() && authToken != null && !authToken.isBlank()) {
+                builder.header(authHeader, authToken);
+            }
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        } catch (Exception ex) {
+            // Nothing was sent, and the same context would fail the same way again.
+            return CompletableFuture.failedFuture(
+                    new ModelClientException("REQUEST_ERROR", "Failed to build model request: " + ex.getMessage()));
+        }
+        ModelEndpointBalancer.Call call = endpoints.start();
+        HttpRequest request = builder.uri(URI.create(call.baseUrl() + ModelHttpCodec.PATH)).build();
+
+        // Streamed or not, the body is fed to a reader as it arrives.
+        CompletableFuture<HttpResponse<ModelStreamReader>> exchange =
+                httpClient.sendAsync(request, responseInfo -> {
+                    call.responded();
+                    return readBody(responseInfo, listener);
+                });
+        if (scope != null) {
+            scope.onCancel(() -> exchange.cancel(true));
+        }
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        result.whenComplete((value, error) -> call.finish(error == null ? null : unwrap(error)));
+        exchange.whenComplete((response, error) -> {
+            if (scope != null && scope.isCancelled()) {
+                result.completeExceptionally(aborted(scope));
+            } else if (error != null) {
+                result.completeExceptionally(unwrap(error));
+            } else {
+                try {
+                    result.complete(response.body().finish());
+                } catch (ModelClientException ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        });
+        return result;
+    }
+
+    private HttpResponse.BodySubscriber<ModelStreamReader> readBody(HttpResponse.ResponseInfo responseInfo,
+                                                                   StepChunkListener listener) {
+        ModelStreamReader reader = new ModelStreamReader(objectMapper, codec, listener);
+        int status = responseInfo.statusCode();
+        boolean ok = ModelHttpCodec.successful(status);
+        String contentType = responseInfo.headers().firstValue("Content-Type").orElse(null);
+        if (ok && ModelStreamReader.isStream(contentType)) {
+            return HttpResponse.BodySubscribers.fromLineSubscriber(new LineSubscriber(reader), subscriber -> reader,
+                    StandardCharsets.UTF_8, null);
+        }
+        if (ok) {
+            return new EnvelopeSubscriber(reader);
+        }
+        return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                body -> {
+                    reader.onFullBody(status, body);
+                    return reader;
+                });
+    }
+
+    private static ModelClientException aborted(CancellationScope scope) {
+        String reason = scope != null && scope.isCancelled() ? scope.reason() : CancellationScope.CANCELLED;
+        return new ModelClientException(reason, "Model call aborted: " + reason, null);
+    }
+
+    private ModelClientException unwrap(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof ModelClientException modelError) {
+            return modelError;
+        }
+        if (cause instanceof CancellationException) {
+            return aborted(null);
+        }
+        if (cause instanceof HttpTimeoutException) {
+            return new ModelClientException("HTTP_ERROR", "HTTP request timed out after " + timeoutMs + "ms", null);
+        }
+        return new ModelClientException("HTTP_ERROR", "HTTP request failed: " + cause.getMessage(), null);
+    }
+
+    private static final class LineSubscriber implements Flow.Subscriber<String> {
+
+        private final ModelStreamReader reader;
+
+        private LineSubscriber(ModelStreamReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            reader.onLine(line);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // Surfaced by the exchange future.
+        }
+
+        @Override
+        public void onComplete() {
+            // The finisher hands the reader to the exchange future.
+        }
+    }
+
+    /**
+     * Keeps a plain JSON response as the buffers it arrived in and parses them once complete, binding
+     * {@code data} straight from the parser. The body is never copied into one array or decoded into a string,
+     * and each buffer is released as soon as the parser has read past it.
+     */
+    private static final class EnvelopeSubscriber implements HttpResponse.BodySubscriber<ModelStreamReader> {
+
+        private final ModelStreamReader reader;
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private final CompletableFuture<ModelStreamReader> body = new CompletableFuture<>();
+
+        private EnvelopeSubscriber(ModelStreamReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public CompletionStage<ModelStreamReader> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            buffers.addAll(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            buffers.clear();
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                reader.readEnvelope(new BufferListInputStream(buffers));
+            } catch (IOException ex) {
+                reader.onFailure(new ModelClientException("PARSE_ERROR", "Failed to parse model response",
+                        reader.head()));
+            }
+            body.complete(reader);
+        }
+    }
+
+    private static final class BufferListInputStream extends InputStream {
+
+        private final List<ByteBuffer> buffers;
+        private int index;
+
+        private BufferListInputStream(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = current();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            ByteBuffer buffer = current();
+            if (buffer == null) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        private ByteBuffer current() {
+            while (index < buffers.size()) {
+                ByteBuffer buffer = buffers.get(index);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                buffers.set(index++, null);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Routes the step keys configured for batching through a {@link ModelCallBatcher}; every other step goes
+ * straight to the wrapped client.
+ */
+public class BatchingModelClient implements ModelClient {
+
+    private final ModelClient delegate;
+    private final ModelCallBatcher batcher;
+
+    public BatchingModelClient(ModelClient delegate, ModelCallBatcher batcher) {
+        this.delegate = delegate;
+        this.batcher = batcher;
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    // Batched steps are answered whole, so their listener never sees partial output; streamed steps are never batched.
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        if (!batcher.batches(stepKey)) {
+            return delegate.runStep(stepKey, context, step, listener);
+        }
+        CompletableFuture<Map<String, Object>> future = batcher.submit(stepKey, context, step);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            CancellationScope scope = CancellationScope.current();
+            String reason = scope != null && scope.isCancelled() ? scope.reason() : CancellationScope.CANCELLED;
+            throw new ModelClientException(reason, "Model call aborted: " + reason, null);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ModelClientException modelError) {
+                throw modelError;
+            }
+            throw new ModelClientException("HTTP_ERROR", "Model batch call failed: " + ex.getCause().getMessage(), null);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        return batcher.batches(stepKey) ? batcher.submit(stepKey, context, step)
+                : delegate.runStepAsync(stepKey, context, step, listener);
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+}
@@ -0,0 +1,37 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.model.CancellationScope;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Ties each connection to the caller's {@link CancellationScope}: the timeouts are shortened to the remaining
+ * step deadline and cancelling the scope disconnects the socket, which unblocks the pending read at once.
+ */
+public class CancellableClientHttpRequestFactory extends SimpleClientHttpRequestFactory {
+
+    @Override
+    protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+        super.prepareConnection(connection, httpMethod);
+        CancellationScope scope = CancellationScope.current();
+        if (scope == null) {
+            return;
+        }
+        long remaining = scope.remainingMillis();
+        if (remaining <= 0) {
+            throw new IOException("Step deadline already passed");
+        }
+        if (remaining < Integer.MAX_VALUE) {
+            int bounded = (int) remaining;
+            if (connection.getConnectTimeout() == 0 || connection.getConnectTimeout() > bounded) {
+                connection.setConnectTimeout(bounded);
+            }
+            if (connection.getReadTimeout() == 0 || connection.getReadTimeout() > bounded) {
+                connection.setReadTimeout(bounded);
+            }
+        }
+        scope.onCancel(connection::disconnect);
+    }
+}
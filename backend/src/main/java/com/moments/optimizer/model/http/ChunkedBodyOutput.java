@@ -0,0 +1,129 @@
+package com.moments.optimizer.model.http;
+
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * Collects a request body as fixed-size chunks and publishes them with a known length. Unlike a
+ * {@code ByteArrayOutputStream} it never grows by copying, and the body is never joined into one array. The
+ * chunks are handed to the client wrapped, where {@code BodyPublishers.ofByteArrays} would copy each one.
+ */
+class ChunkedBodyOutput extends OutputStream {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] current = new byte[CHUNK_SIZE];
+    private int position;
+    private long size;
+
+    @Override
+    public void write(int value) {
+        if (position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) value;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (position == current.length) {
+                nextChunk();
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(bytes, offset, current, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    // With the length known the request is sent with Content-Length instead of chunked transfer encoding.
+    HttpRequest.BodyPublisher publisher() {
+        List<byte[]> all = chunks();
+        return HttpRequest.BodyPublishers.fromPublisher(
+                subscriber -> subscriber.onSubscribe(new ChunkSubscription(all.iterator(), subscriber)), size);
+    }
+
+    private List<byte[]> chunks() {
+        List<byte[]> all = new ArrayList<>(chunks);
+        if (position > 0) {
+            all.add(Arrays.copyOf(current, position));
+        }
+        return all;
+    }
+
+    private void nextChunk() {
+        chunks.add(current);
+        current = new byte[CHUNK_SIZE];
+        position = 0;
+    }
+
+    private static final class ChunkSubscription implements Flow.Subscription {
+
+        private final Iterator<byte[]> chunks;
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        private boolean emitting;
+        private boolean done;
+
+        private ChunkSubscription(Iterator<byte[]> chunks, Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.chunks = chunks;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long count) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (count <= 0) {
+                    done = true;
+                } else {
+                    demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+                    // A request made from inside onNext is served by the loop already running.
+                    if (emitting) {
+                        return;
+                    }
+                    emitting = true;
+                }
+            }
+            if (count <= 0) {
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + count));
+                return;
+            }
+            while (true) {
+                byte[] chunk;
+                synchronized (this) {
+                    if (done || demand == 0) {
+                        emitting = false;
+                        return;
+                    }
+                    if (!chunks.hasNext()) {
+                        done = true;
+                        break;
+                    }
+                    demand--;
+                    chunk = chunks.next();
+                }
+                subscriber.onNext(ByteBuffer.wrap(chunk));
+            }
+            subscriber.onComplete();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedges slow calls for the step keys of a {@link ModelHedgePolicy}. A call still unanswered after the policy's
+ * hedge delay gets a duplicate on another replica, budget permitting; the first attempt to answer wins and the
+ * other is cancelled. For a streamed call the first attempt to produce a chunk wins, so the listener only sees
+ * one attempt's output. Each attempt runs in its own {@link CancellationScope}, cancelled along with the caller's;
+ * with a blocking delegate both attempts run on the policy's pool while the caller waits for the winner.
+ */
+public class HedgingModelClient implements ModelClient {
+
+    private final ModelClient delegate;
+    private final ModelHedgePolicy policy;
+
+    public HedgingModelClient(ModelClient delegate, ModelHedgePolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        if (!policy.hedges(stepKey)) {
+            return delegate.runStep(stepKey, context, step, listener);
+        }
+        HedgedCall call = new HedgedCall(stepKey, context, step, listener, CancellationScope.current());
+        call.start();
+        return call.await();
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey, TaskContext context, TaskStep step) {
+        return runStepAsync(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> runStepAsync(String stepKey,
+                                                               TaskContext context,
+                                                               TaskStep step,
+                                                               StepChunkListener listener) {
+        if (!policy.hedges(stepKey)) {
+            return delegate.runStepAsync(stepKey, context, step, listener);
+        }
+        HedgedCall call = new HedgedCall(stepKey, context, step, listener, CancellationScope.current());
+        call.start();
+        return call.result;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+
+    private final class HedgedCall {
+        private final String stepKey;
+        private final TaskContext context;
+        private final TaskStep step;
+        private final StepChunkListener listener;
+        private final CancellationScope parent;
+        private final long deadlineAtMillis;
+        private final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        private final List<Attempt> attempts = new ArrayList<>();
+        // The attempt whose answer (or first streamed chunk) came first.
+        private Attempt owner;
+        private int running;
+        private ScheduledFuture<?> hedgeTimer;
+
+        private HedgedCall(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener,
+                           CancellationScope parent) {
+            this.stepKey = stepKey;
+            this.context = context;
+            this.step = step;
+            this.listener = listener;
+            this.parent = parent;
+            long remaining = parent == null ? Long.MAX_VALUE : parent.remainingMillis();
+            this.deadlineAtMillis = remaining == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + remaining;
+        }
+
+        private void start() {
+            policy.recordCall(stepKey);
+            if (parent != null) {
+                parent.onCancel(() -> abort(parent.reason()));
+            }
+            Attempt primary = newAttempt(false, null);
+            long delay = policy.hedgeDelayMillis(stepKey);
+            if (delay >= 0) {
+                synchronized (this) {
+                    hedgeTimer = policy.timer().schedule(this::hedge, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            launch(primary);
+        }
+
+        private Map<String, Object> await() throws ModelClientException {
+            try {
+                return result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                String reason = parent != null && parent.isCancelled() ? parent.reason() : CancellationScope.CANCELLED;
+                abort(reason);
+                throw new ModelClientException(reason, "Model call aborted: " + reason, null);
+            } catch (ExecutionException ex) {
+                throw asModelError(ex.getCause());
+            }
+        }
+
+        private void hedge() {
+            Attempt hedge;
+            synchronized (this) {
+                if (result.isDone() || owner != null || running == 0 || !policy.tryHedge(stepKey)) {
+                    return;
+                }
+                hedge = newAttempt(true, attempts.get(0).routing.chosen());
+            }
+            launch(hedge);
+        }
+
+        // Blocking attempts run on the policy's pool, never on the caller's thread: a loser can keep its thread
+        // until the pending read returns, and the caller must be free to take the winner's answer.
+        private void launch(Attempt attempt) {
+            if (delegate.isAsync()) {
+                run(attempt);
+                return;
+            }
+            try {
+                policy.attemptPool().execute(() -> run(attempt));
+            } catch (RejectedExecutionException ex) {
+                finish(attempt, null, new ModelClientException("HTTP_ERROR", "Model attempt rejected", null));
+            }
+        }
+
+        private synchronized Attempt newAttempt(boolean isHedge, String avoid) {
+            Attempt attempt = new Attempt(isHedge, new CancellationScope(deadlineAtMillis),
+                    new ModelEndpointBalancer.Routing(avoid));
+            attempts.add(attempt);
+            running++;
+            return attempt;
+        }
+
+        private void run(Attempt attempt) {
+            CancellationScope outer = CancellationScope.current();
+            attempt.scope.enter();
+            attempt.routing.enter();
+            try {
+                if (delegate.isAsync()) {
+                    CompletableFuture<Map<String, Object>> future;
+                    try {
+                        future = delegate.runStepAsync(stepKey, context, step, attempt.listener);
+                    } catch (RuntimeException ex) {
+                        future = CompletableFuture.failedFuture(ex);
+                    }
+                    future.whenComplete((value, error) -> finish(attempt, value, error));
+                } else {
+                    Map<String, Object> value = null;
+                    Throwable error = null;
+                    try {
+                        value = delegate.runStep(stepKey, context, step, attempt.listener);
+                    } catch (ModelClientException | RuntimeException ex) {
+                        error = ex;
+                    }
+                    finish(attempt, value, error);
+                }
+            } finally {
+                ModelEndpointBalancer.Routing.exit();
+                attempt.scope.exit();
+                if (outer != null) {
+                    outer.enter();
+                }
+            }
+        }
+
+        private void finish(Attempt attempt, Map<String, Object> value, Throwable error) {
+            List<Attempt> losers;
+            synchronized (this) {
+                running--;
+                if (result.isDone() || (owner != null && owner != attempt)) {
+                    return;
+                }
+                if (error != null && owner == null && running > 0) {
+                    // The other attempt may still answer.
+                    return;
+                }
+                owner = attempt;
+                losers = claimLocked(attempt);
+            }
+            cancel(losers);
+            if (error != null) {
+                result.completeExceptionally(asModelError(error));
+                return;
+            }
+            // Only a first attempt that answered gives a full latency; one beaten by a hedge was cut short, and its
+            // time so far would pull the percentile, and with it the hedge delay, down.
+            if (attempt.hedge) {
+                policy.recordHedgeWin(stepKey);
+            } else {
+                policy.recordLatency(stepKey, attempt.elapsedMillis());
+            }
+            result.complete(value);
+        }
+
+        // A streamed chunk decides the race: the listener must not mix two attempts' output.
+        private boolean claim(Attempt attempt) {
+            List<Attempt> losers;
+            synchronized (this) {
+                if (owner != null) {
+                    return owner == attempt;
+                }
+                owner = attempt;
+                losers = claimLocked(attempt);
+            }
+            cancel(losers);
+            return true;
+        }
+
+        private List<Attempt> claimLocked(Attempt winner) {
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+            }
+            List<Attempt> losers = new ArrayList<>(attempts);
+            losers.remove(winner);
+            return losers;
+        }
+
+        private void cancel(List<Attempt> losers) {
+            cancelAll(losers, CancellationScope.CANCELLED);
+        }
+
+        // Disconnecting a blocking connection waits for a streamed read in progress, so that happens off the
+        // winner's (or the canceller's) thread.
+        private void cancelAll(List<Attempt> targets, String reason) {
+            if (targets.isEmpty()) {
+                return;
+            }
+            Runnable cancel = () -> {
+                for (Attempt target : targets) {
+                    target.scope.cancel(reason);
+                }
+            };
+            if (delegate.isAsync()) {
+                cancel.run();
+                return;
+            }
+            try {
+                policy.attemptPool().execute(cancel);
+            } catch (RejectedExecutionException ex) {
+                cancel.run();
+            }
+        }
+
+        private void abort(String reason) {
+            List<Attempt> all;
+            synchronized (this) {
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+                all = new ArrayList<>(attempts);
+            }
+            cancelAll(all, reason);
+            result.completeExceptionally(new ModelClientException(reason, "Model call aborted: " + reason, null));
+        }
+
+        private final class Attempt {
+            private final boolean hedge;
+            private final CancellationScope scope;
+            private final ModelEndpointBalancer.Routing routing;
+            private final StepChunkListener listener;
+            private final long startNanos = System.nanoTime();
+
+            private Attempt(boolean hedge, CancellationScope scope, ModelEndpointBalancer.Routing routing) {
+                this.hedge = hedge;
+                this.scope = scope;
+                this.routing = routing;
+                // NONE must stay NONE: the HTTP clients only ask for a stream when someone is listening.
+                this.listener = HedgedCall.this.listener == StepChunkListener.NONE ? StepChunkListener.NONE
+                        : chunk -> {
+                            if (claim(this)) {
+                                HedgedCall.this.listener.onChunk(chunk);
+                            }
+                        };
+            }
+
+            private long elapsedMillis() {
+                return (System.nanoTime() - startNanos) / 1_000_000L;
+            }
+        }
+    }
+
+    private static ModelClientException asModelError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof ModelClientException modelError) {
+            return modelError;
+        }
+        return new ModelClientException("HTTP_ERROR", "Model call failed: " + cause.getMessage(), null);
+    }
+}
@@ -1,136 +1,132 @@
 package com.moments.optimizer.model.http;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.moments.optimizer.domain.Task;
 import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
 import com.moments.optimizer.model.ModelClient;
 import com.moments.optimizer.model.ModelClientException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpEntity;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
 
-import java.util.HashMap;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.Set;
 
 public class HttpModelClient implements ModelClient {
 
-    private static final Logger log = LoggerFactory.getLogger(HttpModelClient.class);
-    private static final String PATH = "/internal/model/runStep";
-    private static final int MAX_SNIPPET = 300;
-    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
-
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
-    private final String baseUrl;
+    private final ModelHttpCodec codec;
+    private final ModelEndpointBalancer endpoints;
     private final String authHeader;
     private final String authToken;
-    private final int timeoutMs;
 
     public HttpModelClient(RestTemplate restTemplate,
                            ObjectMapper objectMapper,
-                           String baseUrl,
+                           ModelEndpointBalancer endpoints,
                            String authHeader,
                            String authToken,
-                           int timeoutMs) {
+                           int timeoutMs,
+                           Set<String> streamSteps) {
         this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
-        this.baseUrl = baseUrl;
+        this.codec = new ModelHttpCodec(objectMapper, timeoutMs, streamSteps);
+        this.endpoints = endpoints;
         this.authHeader = authHeader;
         this.authToken = authToken;
-        this.timeoutMs = timeoutMs;
     }
 
     @Override
-    public Map<String, Object> runStep(String stepKey, Task task, TaskStep step) throws ModelClientException {
-        if (baseUrl == null || baseUrl.isBlank()) {
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step) throws ModelClientException {
+        return runStep(stepKey, context, step, StepChunkListener.NONE);
+    }
+
+    @Override
+    public Map<String, Object> runStep(String stepKey, TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        if (endpoints.isEmpty()) {
             throw new ModelClientException("CONFIG_ERROR", "Model base URL is not configured");
         }
-        Map<String, Object> requestBody = buildRequestBody(stepKey, task, step);
-        String url = normalizeUrl(baseUrl) + PATH;
+        boolean stream = codec.streams(stepKey, listener);
+        ModelHttpCodec.RequestBody requestBody = codec.requestBody(stepKey, context, step, stream);
+        ModelEndpointBalancer.Call call = endpoints.start();
+        String url = call.baseUrl() + ModelHttpCodec.PATH;
         try {
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            if (authHeader != null && !authHeader.isBlank() && authToken != null && !authToken.isBlank()) {
-                headers.set(authHeader, authToken);
+            ModelStreamReader reader = restTemplate.execute(url, HttpMethod.POST,
+                    request -> writeRequest(request, requestBody, stream),
+                    response -> readResponse(response, call, listener));
+            if (reader == null) {
+                throw new ModelClientException("PARSE_ERROR", "Empty model response", null);
             }
-            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody, headers);
-            ResponseEntity<String> response = restTemplate.postForEntity(url, entity, String.class);
-            return handleResponse(response);
+            Map<String, Object> result = reader.finish();
+            call.finish(null);
+            return result;
         } catch (ModelClientException e) {
+            call.finish(e);
             throw e;
+        } catch (RestClientResponseException e) {
+            ModelClientException error = codec.statusError(e.getStatusCode().value(), e.getResponseBodyAsString());
+            call.finish(error);
+            throw error;
         } catch (RestClientException e) {
-            throw new ModelClientException("HTTP_ERROR", "HTTP request failed: " + e.getMessage(), null);
+            CancellationScope scope = CancellationScope.current();
+            ModelClientException error = scope != null && scope.isCancelled()
+                    ? new ModelClientException(scope.reason(), "Model call aborted: " + scope.reason(), null)
+                    : new ModelClientException("HTTP_ERROR", "HTTP request failed: " + e.getMessage(), null);
+            call.finish(error);
+            throw error;
         } catch (Exception e) {
-            throw new ModelClientException("HTTP_ERROR", "Model HTTP call failed", null);
+            ModelClientException error = new ModelClientException("HTTP_ERROR", "Model HTTP call failed", null);
+            call.finish(error);
+            throw error;
         }
     }
 
-    private Map<String, Object> buildRequestBody(String stepKey, Task task, TaskStep step) throws ModelClientException {
-        Map<String, Object> payloadData = parsePayload(task.getPayloadJson());
-        Map<String, Object> body = new HashMap<>();
-        body.put("stepKey", stepKey);
-        body.put("taskId", task.getId());
-        body.put("taskType", task.getType());
-        body.put("userId", payloadData.getOrDefault("userId", null));
-        body.put("stepOrder", step.getStepOrder());
-        body.put("payload", payloadData);
-        body.put("options", Map.of("timeoutMs", timeoutMs));
-        return body;
-    }
-
-    private Map<String, Object> handleResponse(ResponseEntity<String> response) throws ModelClientException {
-        String body = response.getBody();
-        if (!response.getStatusCode().is2xxSuccessful()) {
-            throw new ModelClientException("HTTP_ERROR", "Non-2xx from model service", truncate(body));
+    // The body is generated straight into the connection instead of being buffered first.
+    private void writeRequest(ClientHttpRequest request, ModelHttpCodec.RequestBody requestBody, boolean stream)
+            throws IOException {
+        request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        if (stream) {
+            request.getHeaders().set(HttpHeaders.ACCEPT, ModelHttpCodec.STREAM_ACCEPT);
         }
-        try {
-            Map<String, Object> parsed = objectMapper.readValue(body, MAP_TYPE);
-            Object success = parsed.get("success");
-            if (Boolean.TRUE.equals(success)) {
-                Object data = parsed.get("data");
-                if (data instanceof Map) {
-                    return (Map<String, Object>) data;
-                }
-                return Map.of("data", data);
-            }
-            String code = parsed.getOrDefault("code", "REMOTE_ERROR").toString();
-            String message = parsed.getOrDefault("message", "Remote model error").toString();
-            throw new ModelClientException("REMOTE_ERROR", message, truncate(body));
-        } catch (ModelClientException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new ModelClientException("PARSE_ERROR", "Failed to parse model response", truncate(body));
-        }
-    }
-
-    private String truncate(String body) {
-        if (body == null) {
-            return null;
+        if (authHeader != null && !authHeader.isBlank() && authToken != null && !authToken.isBlank()) {
+            request.getHeaders().set(authHeader, authToken);
         }
-        return body.length() <= MAX_SNIPPET ? body : body.substring(0, MAX_SNIPPET);
-    }
-
-    private String normalizeUrl(String url) {
-        if (url.endsWith("/")) {
-            return url.substring(0, url.length() - 1);
+        if (request instanceof StreamingHttpOutputMessage streaming) {
+            streaming.setBody(requestBody::writeTo);
+        } else {
+            requestBody.writeTo(request.getBody());
         }
-        return url;
     }
 
-    private Map<String, Object> parsePayload(String payloadJson) throws ModelClientException {
-        if (payloadJson == null || payloadJson.isBlank()) {
-            return Map.of();
+    // A streamed response is read line by line as it arrives, so each chunk reaches the listener before the call
+    // ends; a plain JSON response is parsed straight from the connection.
+    private ModelStreamReader readResponse(ClientHttpResponse response, ModelEndpointBalancer.Call call,
+                                           StepChunkListener listener) throws IOException {
+        call.responded();
+        ModelStreamReader reader = new ModelStreamReader(objectMapper, codec, listener);
+        MediaType contentType = response.getHeaders().getContentType();
+        if (!ModelStreamReader.isStream(contentType == null ? null : contentType.toString())) {
+            reader.readEnvelope(response.getBody());
+            return reader;
         }
-        try {
-            return objectMapper.readValue(payloadJson, MAP_TYPE);
-        } catch (Exception ex) {
-            throw new ModelClientException("PARSE_ERROR", "Failed to parse task payload", null);
+        BufferedReader lines = new BufferedReader(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8));
+        String line;
+        while (!reader.isDone() && (line = lines.readLine()) != null) {
+            reader.onLine(line);
         }
+        return reader;
     }
 }
@@ -0,0 +1,411 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.metrics.MetricsSource;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects concurrent calls for the same step key and sends them as one request to the model service's
+ * {@code /internal/model/runStepBatch} endpoint. A batch is sent once it holds {@code maxItems} calls or its first
+ * call has waited {@code maxWaitMs}; each caller gets back the result at its own position in the response.
+ */
+public class ModelCallBatcher implements MetricsSource, AutoCloseable {
+
+    static final String BATCH_PATH = "/internal/model/runStepBatch";
+    private static final Logger log = LoggerFactory.getLogger(ModelCallBatcher.class);
+
+    public record Limits(int maxItems, long maxWaitMs) {}
+
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final ModelHttpCodec codec;
+    private final ModelEndpointBalancer endpoints;
+    private final String authHeader;
+    private final String authToken;
+    private final Map<String, Limits> limitsByStep;
+    private final ScheduledExecutorService timer;
+    private final Map<String, PendingBatch> pending = new HashMap<>();
+    private final Map<String, StepStats> stats = new ConcurrentHashMap<>();
+
+    public ModelCallBatcher(HttpClient httpClient,
+                            ObjectMapper objectMapper,
+                            ModelEndpointBalancer endpoints,
+                            String authHeader,
+                            String authToken,
+                            int timeoutMs,
+                            Map<String, Limits> limitsByStep) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.codec = new ModelHttpCodec(objectMapper, timeoutMs, Set.of());
+        this.endpoints = endpoints;
+        this.authHeader = authHeader;
+        this.authToken = authToken;
+        this.limitsByStep = Map.copyOf(limitsByStep);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean batches(String stepKey) {
+        return limitsByStep.containsKey(stepKey);
+    }
+
+    public CompletableFuture<Map<String, Object>> submit(String stepKey, TaskContext context, TaskStep step) {
+        if (endpoints.isEmpty()) {
+            return CompletableFuture.failedFuture(
+                    new ModelClientException("CONFIG_ERROR", "Model base URL is not configured"));
+        }
+        Item item;
+        try {
+            item = new Item(codec.requestBody(stepKey, context, step, false));
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        Limits limits = limitsByStep.get(stepKey);
+        List<Item> full = null;
+        synchronized (this) {
+            PendingBatch batch = pending.computeIfAbsent(stepKey, key -> new PendingBatch());
+            batch.items.add(item);
+            if (batch.items.size() >= limits.maxItems()) {
+                pending.remove(stepKey);
+                if (batch.flushTimer != null) {
+                    batch.flushTimer.cancel(false);
+                }
+                full = batch.items;
+            } else if (batch.flushTimer == null) {
+                batch.flushTimer = timer.schedule(() -> flushDue(stepKey, batch),
+                        Math.max(1L, limits.maxWaitMs()), TimeUnit.MILLISECONDS);
+            }
+        }
+        CancellationScope scope = CancellationScope.current();
+        if (scope != null) {
+            scope.onCancel(() -> withdraw(stepKey, item, scope));
+        }
+        if (full != null) {
+            send(stepKey, full, true);
+        }
+        return item.result;
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelBatching";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        limitsByStep.forEach((stepKey, limits) -> snapshot.put(stepKey, statsFor(stepKey).snapshot(limits)));
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        List<PendingBatch> left;
+        synchronized (this) {
+            left = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        left.forEach(batch -> batch.items.forEach(item -> item.result.completeExceptionally(
+                new ModelClientException(CancellationScope.CANCELLED, "Model batcher shut down"))));
+    }
+
+    private void flushDue(String stepKey, PendingBatch batch) {
+        synchronized (this) {
+            if (pending.get(stepKey) != batch) {
+                return;
+            }
+            pending.remove(stepKey);
+        }
+        send(stepKey, batch.items, false);
+    }
+
+    // A cancelled caller leaves a batch that has not been sent yet; once sent, only its own future is failed.
+    private void withdraw(String stepKey, Item item, CancellationScope scope) {
+        synchronized (this) {
+            PendingBatch batch = pending.get(stepKey);
+            if (batch != null && batch.items.remove(item) && batch.items.isEmpty()) {
+                pending.remove(stepKey);
+                if (batch.flushTimer != null) {
+                    batch.flushTimer.cancel(false);
+                }
+            }
+        }
+        item.result.completeExceptionally(
+                new ModelClientException(scope.reason(), "Model call aborted: " + scope.reason(), null));
+    }
+
+    private void send(String stepKey, List<Item> batch, boolean full) {
+        List<Item> items = batch.stream().filter(item -> !item.result.isDone()).toList();
+        if (items.isEmpty()) {
+            return;
+        }
+        statsFor(stepKey).record(items.size(), full);
+        HttpRequest.Builder builder;
+        try {
+            ChunkedBodyOutput body = new ChunkedBodyOutput();
+            try (JsonGenerator generator = objectMapper.createGenerator(body)) {
+                generator.writeStartObject();
+                generator.writeStringField("stepKey", stepKey);
+                generator.writeArrayFieldStart("items");
+                for (Item item : items) {
+                    item.body.writeTo(generator);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            long timeoutMs = items.stream().mapToLong(item -> item.body.timeoutMs()).max().orElse(1L);
+            builder = HttpRequest.newBuilder()
+                    .timeout(Duration.ofMillis(timeoutMs))
+                    .header("Content-Type", "application/json")
+                    .POST(body.publisher());
+            if (authHeader != null && !authHeader.isBlank() && authToken != null && !authToken.isBlank()) {
+                builder.header(authHeader, authToken);
+            }
+        } catch (Exception ex) {
+            failAll(stepKey, items,
+                    new ModelClientException("REQUEST_ERROR", "Failed to build model batch request: " + ex.getMessage()));
+            return;
+        }
+        // The whole batch goes to one replica.
+        ModelEndpointBalancer.Call call = endpoints.start();
+        HttpRequest request = builder.uri(URI.create(call.baseUrl() + BATCH_PATH)).build();
+        httpClient.sendAsync(request, responseInfo -> {
+            call.responded();
+            return HttpResponse.BodyHandlers.ofInputStream().apply(responseInfo);
+        }).whenComplete((response, error) -> {
+            ModelClientException failure = error != null ? transportError(error) : read(stepKey, items, response);
+            call.finish(failure);
+            if (failure != null) {
+                failAll(stepKey, items, failure);
+            }
+        });
+    }
+
+    /**
+     * Reads the batch response as it arrives, completing each caller as soon as its item has been bound. Returns the
+     * error for the callers still waiting when the batch as a whole failed, or null.
+     */
+    private ModelClientException read(String stepKey, List<Item> items, HttpResponse<InputStream> response) {
+        long timeoutMs = items.stream().mapToLong(item -> item.body.timeoutMs()).max().orElse(1L);
+        try (InputStream body = response.body()) {
+            // The request timeout stops at the headers; a body that stalls is cut off here instead.
+            ScheduledFuture<?> guard = timer.schedule(() -> closeQuietly(body), timeoutMs, TimeUnit.MILLISECONDS);
+            try {
+                if (!ModelHttpCodec.successful(response.statusCode())) {
+                    return codec.statusError(response.statusCode(),
+                            new String(body.readNBytes(ModelHttpCodec.MAX_SNIPPET), StandardCharsets.UTF_8));
+                }
+                return fanOut(items, body);
+            } finally {
+                guard.cancel(false);
+            }
+        } catch (IOException ex) {
+            log.debug("Model batch response for {} could not be read: {}", stepKey, ex.getMessage());
+            return new ModelClientException("HTTP_ERROR", "Model batch response failed: " + ex.getMessage(), null);
+        }
+    }
+
+    private ModelClientException fanOut(List<Item> items, InputStream body) throws IOException {
+        BatchEnvelopeReader reader;
+        try (JsonParser parser = objectMapper.createParser(body)) {
+            reader = new BatchEnvelopeReader(parser, items);
+            reader.read();
+        } catch (JsonProcessingException ex) {
+            return new ModelClientException("PARSE_ERROR", "Failed to parse model batch response", null);
+        }
+        if (!reader.complete()) {
+            return new ModelClientException("PARSE_ERROR", "Truncated model batch response", null);
+        }
+        if (!reader.success()) {
+            String message = reader.message();
+            return new ModelClientException("REMOTE_ERROR", message == null ? "Remote model error" : message, null);
+        }
+        if (reader.resultCount < 0) {
+            return new ModelClientException("PARSE_ERROR", "Model batch response has no results", null);
+        }
+        reader.settleHeld();
+        for (int i = reader.resultCount; i < items.size(); i++) {
+            items.get(i).result.completeExceptionally(
+                    new ModelClientException("PARSE_ERROR", "Model batch response has no result for item " + i, null));
+        }
+        return null;
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException ignored) {
+            // The reader sees the stream closed and fails the batch.
+        }
+    }
+
+    private void failAll(String stepKey, List<Item> items, ModelClientException error) {
+        statsFor(stepKey).failedBatches.incrementAndGet();
+        log.debug("Model batch for {} failed ({} items): {}", stepKey, items.size(), error.getMessage());
+        items.forEach(item -> item.result.completeExceptionally(error));
+    }
+
+    private static ModelClientException transportError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof HttpTimeoutException) {
+            return new ModelClientException("HTTP_ERROR", "Model batch request timed out", null);
+        }
+        return new ModelClientException("HTTP_ERROR", "Model batch request failed: " + cause.getMessage(), null);
+    }
+
+    private StepStats statsFor(String stepKey) {
+        return stats.computeIfAbsent(stepKey, key -> new StepStats());
+    }
+
+    /**
+     * Binds {@code data.results} (or a bare {@code data} array) one item envelope at a time. An item is handed to
+     * its caller as soon as it is read once the outer {@code success: true} has been seen; items read before that
+     * are held until the whole envelope is known to have succeeded.
+     */
+    private final class BatchEnvelopeReader extends ModelEnvelopeReader {
+        private final List<Item> items;
+        private final Map<Integer, ModelEnvelopeReader> held = new HashMap<>();
+        private int resultCount = -1;
+
+        private BatchEnvelopeReader(JsonParser parser, List<Item> items) {
+            super(objectMapper, parser);
+            this.items = items;
+        }
+
+        @Override
+        Object readData(JsonParser parser) throws IOException {
+            if (parser.currentToken() == JsonToken.START_ARRAY) {
+                readResults(parser);
+            } else if (parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    if (parser.nextToken() == JsonToken.START_ARRAY && "results".equals(field)) {
+                        readResults(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+            return null;
+        }
+
+        private void readResults(JsonParser parser) throws IOException {
+            int index = 0;
+            for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+                if (token == null) {
+                    throw new JsonParseException(parser, "Truncated model batch response");
+                }
+                if (index >= items.size() || token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                } else {
+                    ModelEnvelopeReader envelope = new ModelEnvelopeReader(objectMapper, parser);
+                    envelope.readFields();
+                    if (success()) {
+                        settle(index, envelope);
+                    } else {
+                        held.put(index, envelope);
+                    }
+                }
+                index++;
+            }
+            resultCount = Math.min(index, items.size());
+        }
+
+        private void settleHeld() {
+            held.forEach(this::settle);
+        }
+
+        private void settle(int index, ModelEnvelopeReader envelope) {
+            Item item = items.get(index);
+            try {
+                item.result.complete(envelope.result(codec, null));
+            } catch (ModelClientException ex) {
+                item.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static final class Item {
+        private final ModelHttpCodec.RequestBody body;
+        private final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+
+        private Item(ModelHttpCodec.RequestBody body) {
+            this.body = body;
+        }
+    }
+
+    private static final class PendingBatch {
+        private final List<Item> items = new ArrayList<>();
+        private ScheduledFuture<?> flushTimer;
+    }
+
+    private static final class StepStats {
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong fullFlushes = new AtomicLong();
+        private final AtomicLong failedBatches = new AtomicLong();
+
+        private void record(int size, boolean full) {
+            batches.incrementAndGet();
+            items.addAndGet(size);
+            if (full) {
+                fullFlushes.incrementAndGet();
+            }
+        }
+
+        private Map<String, Object> snapshot(Limits limits) {
+            long sent = batches.get();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("maxItems", limits.maxItems());
+            snapshot.put("maxWaitMs", limits.maxWaitMs());
+            snapshot.put("batches", sent);
+            snapshot.put("items", items.get());
+            snapshot.put("avgBatchSize", sent == 0 ? 0.0 : (double) items.get() / sent);
+            snapshot.put("fullFlushes", fullFlushes.get());
+            snapshot.put("timerFlushes", sent - fullFlushes.get());
+            snapshot.put("failedBatches", failedBatches.get());
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.metrics.MetricsSource;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keep-alive connection pool for the blocking model client, so steady traffic reuses warm connections instead
+ * of paying a TCP handshake on each call.
+ */
+public class ModelConnectionPool implements MetricsSource, AutoCloseable {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final int maxTotal;
+    private final int maxPerRoute;
+
+    public ModelConnectionPool(int maxTotal,
+                               int maxPerRoute,
+                               int connectTimeoutMs,
+                               int socketTimeoutMs,
+                               long validateAfterInactivityMs,
+                               long idleEvictSeconds) {
+        this.maxTotal = Math.max(1, maxTotal);
+        this.maxPerRoute = Math.max(1, Math.min(this.maxTotal, maxPerRoute));
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(this.maxTotal)
+                .setMaxConnPerRoute(this.maxPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                        .setSocketTimeout(Timeout.ofMilliseconds(socketTimeoutMs))
+                        .setValidateAfterInactivity(TimeValue.ofMilliseconds(validateAfterInactivityMs))
+                        .build())
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(Math.max(1L, idleEvictSeconds)))
+                .build();
+    }
+
+    public CloseableHttpClient httpClient() {
+        return httpClient;
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelConnectionPool";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        PoolStats stats = connectionManager.getTotalStats();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("maxTotal", maxTotal);
+        snapshot.put("maxPerRoute", maxPerRoute);
+        snapshot.put("leased", stats.getLeased());
+        snapshot.put("pending", stats.getPending());
+        snapshot.put("available", stats.getAvailable());
+        return snapshot;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
@@ -0,0 +1,268 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.metrics.MetricsSource;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.CircuitBreaker;
+import com.moments.optimizer.model.ModelClientException;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads model calls over the replicas of the model service. Each call goes to the less loaded of two randomly
+ * picked replicas (power of two choices), where load is the replica's in-flight requests weighted by its average
+ * response latency. Every replica has its own {@link CircuitBreaker} over its error and slow-call rates: a replica
+ * whose circuit opens is ejected for the open period and re-admitted through half-open probes. When every replica
+ * is ejected, calls still go to the one due back first and the service-wide circuit breaker decides whether to
+ * fail fast.
+ */
+public class ModelEndpointBalancer implements MetricsSource {
+
+    // Weight of the newest sample in a replica's latency average.
+    private static final double LATENCY_ALPHA = 0.3;
+    // The average fades towards zero while a replica gets no calls, so one that was slow or failing is tried again.
+    private static final double LATENCY_DECAY_NANOS = 10_000_000_000.0;
+    private static final Set<String> ABORTED = Set.of(CancellationScope.CANCELLED, CancellationScope.STEP_TIMEOUT,
+            CancellationScope.DEADLINE_EXCEEDED, CancellationScope.ABANDONED);
+
+    private final List<Replica> replicas;
+    private final Set<String> failureCodes;
+    private final long failurePenaltyMillis;
+    private final AtomicLong panicCalls = new AtomicLong();
+
+    public ModelEndpointBalancer(List<String> baseUrls, CircuitBreaker.Settings ejection, Set<String> failureCodes) {
+        List<Replica> list = new ArrayList<>();
+        for (String baseUrl : baseUrls) {
+            if (baseUrl != null && !baseUrl.isBlank()) {
+                String normalized = ModelHttpCodec.normalizeUrl(baseUrl.trim());
+                // Rejects a malformed URL at startup rather than on every call.
+                URI.create(normalized);
+                list.add(new Replica(normalized, new CircuitBreaker(ejection)));
+            }
+        }
+        this.replicas = List.copyOf(list);
+        this.failureCodes = Set.copyOf(failureCodes);
+        this.failurePenaltyMillis = ejection.slowCallMillis();
+    }
+
+    // One replica that is never ejected, for clients built around a single base URL.
+    public static ModelEndpointBalancer single(String baseUrl) {
+        CircuitBreaker.Settings never = new CircuitBreaker.Settings(1, Integer.MAX_VALUE, 1.0, 1.0, Long.MAX_VALUE,
+                0L, 1);
+        return new ModelEndpointBalancer(baseUrl == null ? List.of() : List.of(baseUrl), never, Set.of());
+    }
+
+    public boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    // The replica list, used to name the service-wide circuits.
+    public String name() {
+        List<String> urls = new ArrayList<>();
+        for (Replica replica : replicas) {
+            urls.add(replica.baseUrl);
+        }
+        return String.join(",", urls);
+    }
+
+    /** Picks a replica for one call; the caller must {@link Call#finish} it exactly once. */
+    Call start() {
+        List<Replica> available = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas) {
+            if (replica.health.remainingOpenMillis() == 0) {
+                available.add(replica);
+            }
+        }
+        Routing routing = Routing.CURRENT.get();
+        if (routing != null && routing.avoid != null && available.size() > 1) {
+            available.removeIf(replica -> replica.baseUrl.equals(routing.avoid));
+        }
+        while (!available.isEmpty()) {
+            Replica candidate = pick(available);
+            // Fails only for a half-open replica whose probe slots are taken.
+            if (candidate.health.tryAcquire()) {
+                return new Call(candidate, true, routing);
+            }
+            available.remove(candidate);
+        }
+        Replica soonest = replicas.get(0);
+        for (Replica replica : replicas) {
+            if (replica.health.remainingOpenMillis() < soonest.health.remainingOpenMillis()) {
+                soonest = replica;
+            }
+        }
+        panicCalls.incrementAndGet();
+        return new Call(soonest, false, routing);
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelEndpoints";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        List<Map<String, Object>> byReplica = new ArrayList<>();
+        for (Replica replica : replicas) {
+            Map<String, Object> health = replica.health.snapshot();
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("baseUrl", replica.baseUrl);
+            entry.put("state", "OPEN".equals(health.get("state")) ? "EJECTED" : health.get("state"));
+            entry.put("inFlight", replica.inFlight.get());
+            entry.put("calls", replica.calls.get());
+            entry.put("failures", replica.failures.get());
+            entry.put("latencyMs", Math.round(replica.latencyMillis()));
+            entry.put("failureRate", health.get("failureRate"));
+            entry.put("slowCallRate", health.get("slowCallRate"));
+            entry.put("ejections", health.get("opened"));
+            entry.put("ejectedForMs", replica.health.remainingOpenMillis());
+            byReplica.add(entry);
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("replicas", byReplica);
+        snapshot.put("panicCalls", panicCalls.get());
+        return snapshot;
+    }
+
+    private static Replica pick(List<Replica> available) {
+        int size = available.size();
+        if (size == 1) {
+            return available.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Replica a = available.get(first);
+        Replica b = available.get(second);
+        return b.load() < a.load() ? b : a;
+    }
+
+    /**
+     * Replica choice for one attempt of a hedged call, active on the thread that starts it. The hedge avoids the
+     * replica the first attempt went to, unless no other replica is available.
+     */
+    static final class Routing {
+        private static final ThreadLocal<Routing> CURRENT = new ThreadLocal<>();
+
+        private final String avoid;
+        private volatile String chosen;
+
+        Routing(String avoid) {
+            this.avoid = avoid;
+        }
+
+        String chosen() {
+            return chosen;
+        }
+
+        void enter() {
+            CURRENT.set(this);
+        }
+
+        static void exit() {
+            CURRENT.remove();
+        }
+    }
+
+    private static final class Replica {
+        private final String baseUrl;
+        private final CircuitBreaker health;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private double latencyMillis;
+        private long latencyUpdatedNanos;
+
+        private Replica(String baseUrl, CircuitBreaker health) {
+            this.baseUrl = baseUrl;
+            this.health = health;
+        }
+
+        // A replica with no latency sample yet competes on in-flight count alone.
+        private double load() {
+            return (inFlight.get() + 1) * Math.max(1.0, latencyMillis());
+        }
+
+        private synchronized double latencyMillis() {
+            return latencyMillis * Math.exp(-(System.nanoTime() - latencyUpdatedNanos) / LATENCY_DECAY_NANOS);
+        }
+
+        private synchronized void recordLatency(long elapsedMillis) {
+            double current = latencyMillis();
+            latencyMillis = current == 0 ? elapsedMillis : LATENCY_ALPHA * elapsedMillis + (1 - LATENCY_ALPHA) * current;
+            latencyUpdatedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * One call to the replica chosen by {@link #start}. Latency is measured to the response headers, so streamed
+     * and large responses are not mistaken for a slow replica.
+     */
+    final class Call {
+        private final Replica replica;
+        // False when every replica was ejected and this call went out anyway; its outcome is not a probe.
+        private final boolean admitted;
+        private final long startNanos = System.nanoTime();
+        private volatile long respondedNanos;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private Call(Replica replica, boolean admitted, Routing routing) {
+            this.replica = replica;
+            this.admitted = admitted;
+            replica.inFlight.incrementAndGet();
+            if (routing != null) {
+                routing.chosen = replica.baseUrl;
+            }
+        }
+
+        String baseUrl() {
+            return replica.baseUrl;
+        }
+
+        void responded() {
+            if (respondedNanos == 0) {
+                respondedNanos = System.nanoTime();
+            }
+        }
+
+        // Only transport-level failures (failureCodes) count against the replica; cancelled calls are ignored.
+        void finish(ModelClientException error) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            replica.inFlight.decrementAndGet();
+            replica.calls.incrementAndGet();
+            String code = error == null ? null : error.getErrorCode();
+            if (code != null && ABORTED.contains(code)) {
+                if (admitted) {
+                    replica.health.onIgnored();
+                }
+                return;
+            }
+            long end = respondedNanos == 0 ? System.nanoTime() : respondedNanos;
+            long elapsedMillis = (end - startNanos) / 1_000_000L;
+            boolean failed = code != null && failureCodes.contains(code);
+            if (failed) {
+                // Fast failures (refused connections) must not make a broken replica look like the quickest one.
+                replica.failures.incrementAndGet();
+                replica.recordLatency(Math.max(elapsedMillis, failurePenaltyMillis));
+            } else {
+                replica.recordLatency(elapsedMillis);
+            }
+            if (admitted) {
+                replica.health.onResult(failed, elapsedMillis);
+            }
+        }
+    }
+}
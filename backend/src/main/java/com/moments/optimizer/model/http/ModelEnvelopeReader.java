@@ -0,0 +1,83 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.model.ModelClientException;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads a {@code {success, data, message}} envelope token by token, so the response body is never held as a
+ * string. {@code data} is bound straight from the parser; every other field is skipped as it streams past.
+ */
+class ModelEnvelopeReader {
+
+    private final ObjectMapper objectMapper;
+    private final JsonParser parser;
+    private boolean complete;
+    private boolean success;
+    private Object data;
+    private String message;
+
+    ModelEnvelopeReader(ObjectMapper objectMapper, JsonParser parser) {
+        this.objectMapper = objectMapper;
+        this.parser = parser;
+    }
+
+    void read() throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Model response is not a JSON object");
+        }
+        readFields();
+    }
+
+    // Reads the rest of an envelope whose START_OBJECT is the current token, such as one item of a batch.
+    void readFields() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.END_OBJECT) {
+                complete = true;
+                return;
+            }
+            String field = parser.currentName();
+            token = parser.nextToken();
+            if ("data".equals(field)) {
+                data = readData(parser);
+            } else if ("success".equals(field)) {
+                success = token == JsonToken.VALUE_TRUE;
+            } else if ("message".equals(field) && token.isScalarValue()) {
+                message = token == JsonToken.VALUE_NULL ? null : parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    // Called with the first token of data current; must leave the parser on its last token.
+    Object readData(JsonParser parser) throws IOException {
+        return objectMapper.readValue(parser, Object.class);
+    }
+
+    boolean complete() {
+        return complete;
+    }
+
+    boolean success() {
+        return success;
+    }
+
+    String message() {
+        return message;
+    }
+
+    // The snippet is the start of the raw body, used for error reports.
+    Map<String, Object> result(ModelHttpCodec codec, String snippet) throws ModelClientException {
+        if (!complete) {
+            throw new ModelClientException("PARSE_ERROR", "Truncated model response", snippet);
+        }
+        return codec.envelopeResult(success, data, message, snippet);
+    }
+}
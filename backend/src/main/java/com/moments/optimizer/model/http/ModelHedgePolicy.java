@@ -0,0 +1,165 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.metrics.MetricsSource;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When and how often {@link HedgingModelClient} may hedge. The hedge delay for a step key is a percentile of the
+ * first attempt's latency over its last {@code window} calls that the first attempt answered (no hedging until
+ * {@code minSamples} are known). The budget is a token bucket shared by all step keys: every call adds {@code budgetPercent}/100 of a token
+ * and every hedge spends one, so hedges stay within that share of traffic even when the whole service slows down.
+ */
+public class ModelHedgePolicy implements MetricsSource, AutoCloseable {
+
+    // Unused budget carried over, so a quiet period cannot bank an unbounded burst of hedges.
+    private static final double MAX_TOKENS = 10.0;
+
+    public record Settings(double percentile, long minDelayMillis, int minSamples, int window, double budgetPercent) {}
+
+    private final Set<String> steps;
+    private final Settings settings;
+    private final Map<String, StepStats> stats = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService attemptPool;
+    private double tokens;
+
+    public ModelHedgePolicy(Set<String> steps, Settings settings) {
+        this.steps = Set.copyOf(steps);
+        this.settings = settings;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Attempts of a blocking client need a thread each, and a cancelled one may hold it until its read returns.
+        this.attemptPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "model-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean hedges(String stepKey) {
+        return steps.contains(stepKey);
+    }
+
+    // Returns -1 while too few latencies are known for the step key.
+    long hedgeDelayMillis(String stepKey) {
+        long percentile = statsFor(stepKey).percentile(settings.percentile(), settings.minSamples());
+        return percentile < 0 ? -1 : Math.max(settings.minDelayMillis(), percentile);
+    }
+
+    void recordCall(String stepKey) {
+        statsFor(stepKey).calls.incrementAndGet();
+        synchronized (this) {
+            tokens = Math.min(MAX_TOKENS, tokens + settings.budgetPercent() / 100.0);
+        }
+    }
+
+    boolean tryHedge(String stepKey) {
+        StepStats step = statsFor(stepKey);
+        synchronized (this) {
+            if (tokens < 1.0) {
+                step.budgetExhausted.incrementAndGet();
+                return false;
+            }
+            tokens -= 1.0;
+        }
+        step.hedges.incrementAndGet();
+        return true;
+    }
+
+    void recordLatency(String stepKey, long elapsedMillis) {
+        statsFor(stepKey).record(elapsedMillis);
+    }
+
+    void recordHedgeWin(String stepKey) {
+        statsFor(stepKey).hedgeWins.incrementAndGet();
+    }
+
+    ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    ExecutorService attemptPool() {
+        return attemptPool;
+    }
+
+    @Override
+    public String metricsName() {
+        return "modelHedging";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> byStep = new TreeMap<>();
+        stats.forEach((stepKey, step) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("calls", step.calls.get());
+            entry.put("hedges", step.hedges.get());
+            entry.put("hedgeWins", step.hedgeWins.get());
+            entry.put("budgetExhausted", step.budgetExhausted.get());
+            entry.put("hedgeDelayMs", hedgeDelayMillis(stepKey));
+            byStep.put(stepKey, entry);
+        });
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("steps", steps);
+        snapshot.put("percentile", settings.percentile());
+        snapshot.put("budgetPercent", settings.budgetPercent());
+        synchronized (this) {
+            snapshot.put("budgetTokens", Math.floor(tokens * 100) / 100);
+        }
+        snapshot.put("byStep", byStep);
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        attemptPool.shutdownNow();
+    }
+
+    private StepStats statsFor(String stepKey) {
+        return stats.computeIfAbsent(stepKey, key -> new StepStats(Math.max(1, settings.window())));
+    }
+
+    private static final class StepStats {
+        private final long[] latencies;
+        private int index;
+        private int count;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+        private final AtomicLong budgetExhausted = new AtomicLong();
+
+        private StepStats(int window) {
+            this.latencies = new long[window];
+        }
+
+        private synchronized void record(long elapsedMillis) {
+            latencies[index] = elapsedMillis;
+            index = (index + 1) % latencies.length;
+            count = Math.min(count + 1, latencies.length);
+        }
+
+        private synchronized long percentile(double percentile, int minSamples) {
+            if (count == 0 || count < minSamples) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(Math.min(1.0, Math.max(0.0, percentile)) * count) - 1;
+            return sorted[Math.max(0, rank)];
+        }
+    }
+}
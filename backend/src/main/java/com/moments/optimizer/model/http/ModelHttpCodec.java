@@ -0,0 +1,213 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.image.ImageIngestor;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request/response mapping for the model service's {@code /internal/model/runStep} contract, shared by the
+ * blocking and the asynchronous HTTP clients.
+ */
+class ModelHttpCodec {
+
+    static final String PATH = "/internal/model/runStep";
+    static final int MAX_SNIPPET = 300;
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+    static final String STREAM_ACCEPT = "text/event-stream, application/x-ndjson, application/json";
+
+    private final ObjectMapper objectMapper;
+    private final int timeoutMs;
+    private final Set<String> streamSteps;
+
+    ModelHttpCodec(ObjectMapper objectMapper, int timeoutMs, Set<String> streamSteps) {
+        this.objectMapper = objectMapper;
+        this.timeoutMs = timeoutMs;
+        this.streamSteps = Set.copyOf(streamSteps);
+    }
+
+    // Only configured steps with someone listening ask the model service for a streamed response.
+    boolean streams(String stepKey, StepChunkListener listener) {
+        return listener != null && listener != StepChunkListener.NONE && streamSteps.contains(stepKey);
+    }
+
+    // Resolved on the caller's thread, so options.timeoutMs reflects this step's own deadline.
+    RequestBody requestBody(String stepKey, TaskContext context, TaskStep step, boolean stream)
+            throws ModelClientException {
+        return new RequestBody(stepKey, context, step, context.userId(), effectiveTimeoutMs(), stream);
+    }
+
+    long effectiveTimeoutMs() {
+        // Lets the model service give up on its side once the step deadline has passed.
+        CancellationScope scope = CancellationScope.current();
+        return scope == null ? timeoutMs : Math.max(1L, Math.min(timeoutMs, scope.remainingMillis()));
+    }
+
+    Map<String, Object> parseResponse(int status, String body) throws ModelClientException {
+        if (!successful(status)) {
+            throw statusError(status, body);
+        }
+        try {
+            return unwrapEnvelope(objectMapper.readValue(body, MAP_TYPE), body);
+        } catch (ModelClientException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ModelClientException("PARSE_ERROR", "Failed to parse model response", truncate(body));
+        }
+    }
+
+    static boolean successful(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    // 408 and 429 ask for a retry; any other 4xx means the request itself is wrong and will fail again the same way.
+    ModelClientException statusError(int status, String body) {
+        boolean clientError = status >= 400 && status < 500 && status != 408 && status != 429;
+        return new ModelClientException(clientError ? "HTTP_CLIENT_ERROR" : "HTTP_ERROR",
+                "HTTP " + status + " from model service", truncate(body));
+    }
+
+    // Maps one {success, data, message} envelope to the step output; rawBody is only used for error snippets.
+    Map<String, Object> unwrapEnvelope(Map<String, Object> parsed, String rawBody) throws ModelClientException {
+        Object message = parsed.get("message");
+        return envelopeResult(Boolean.TRUE.equals(parsed.get("success")), parsed.get("data"),
+                message == null ? null : message.toString(), truncate(rawBody));
+    }
+
+    Map<String, Object> envelopeResult(boolean success, Object data, String message, String snippet)
+            throws ModelClientException {
+        if (success) {
+            if (data instanceof Map) {
+                return (Map<String, Object>) data;
+            }
+            Map<String, Object> output = new HashMap<>();
+            output.put("data", data);
+            return output;
+        }
+        throw new ModelClientException("REMOTE_ERROR", message == null ? "Remote model error" : message, snippet);
+    }
+
+    ModelEnvelopeReader envelopeReader(JsonParser parser) {
+        return new ModelEnvelopeReader(objectMapper, parser);
+    }
+
+    String truncate(String body) {
+        if (body == null) {
+            return null;
+        }
+        return body.length() <= MAX_SNIPPET ? body : body.substring(0, MAX_SNIPPET);
+    }
+
+    static String normalizeUrl(String url) {
+        if (url.endsWith("/")) {
+            return url.substring(0, url.length() - 1);
+        }
+        return url;
+    }
+
+    /**
+     * One {@code runStep} request body. It is written field by field with a {@link JsonGenerator}; the payload is
+     * copied through as the JSON it was stored as, so no map of the request is ever built.
+     */
+    final class RequestBody {
+        private final String stepKey;
+        private final TaskContext context;
+        private final TaskStep step;
+        private final Object userId;
+        private final long timeoutMs;
+        private final boolean stream;
+
+        private RequestBody(String stepKey, TaskContext context, TaskStep step, Object userId, long timeoutMs,
+                            boolean stream) {
+            this.stepKey = stepKey;
+            this.context = context;
+            this.step = step;
+            this.userId = userId;
+            this.timeoutMs = timeoutMs;
+            this.stream = stream;
+        }
+
+        long timeoutMs() {
+            return timeoutMs;
+        }
+
+        // Leaves the stream open; HTTP clients close their request bodies themselves.
+        void writeTo(OutputStream out) throws IOException {
+            try (JsonGenerator generator = objectMapper.createGenerator(out)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                writeTo(generator);
+            }
+        }
+
+        void writeTo(JsonGenerator generator) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("stepKey", stepKey);
+            generator.writeStringField("taskId", context.taskId());
+            generator.writeStringField("taskType", context.taskType());
+            generator.writeObjectField("userId", userId);
+            generator.writeObjectField("stepOrder", step.getStepOrder());
+            if (step.getBranchIndex() != null) {
+                generator.writeNumberField("branchIndex", step.getBranchIndex());
+            }
+            generator.writeFieldName("payload");
+            Map<String, Object> attachments = context.attachments(stepKey, step.getBranchIndex());
+            String payloadJson = context.task().getPayloadJson();
+            Map<String, Object> trimmed = attachments.containsKey(ImageIngestor.ATTACHMENT)
+                    ? withoutAttachedImageUrl() : null;
+            if (trimmed != null) {
+                generator.writeObject(trimmed);
+            } else if (payloadJson == null || payloadJson.isBlank()) {
+                generator.writeStartObject();
+                generator.writeEndObject();
+            } else {
+                generator.writeRawValue(payloadJson);
+            }
+            if (!attachments.isEmpty()) {
+                generator.writeObjectField("attachments", attachments);
+            }
+            generator.writeObjectFieldStart("options");
+            generator.writeNumberField("timeoutMs", timeoutMs);
+            generator.writeEndObject();
+            if (stream) {
+                generator.writeBooleanField("stream", true);
+            }
+            generator.writeEndObject();
+        }
+
+        // The branch's image goes out once, normalized, as attachments.image; its imageUrls entry (possibly a
+        // large data URL) is sent as null so the list keeps its indexes. Null when there is nothing to drop.
+        private Map<String, Object> withoutAttachedImageUrl() {
+            Map<String, Object> payload;
+            try {
+                payload = context.payload();
+            } catch (ModelClientException ex) {
+                return null;
+            }
+            int index = step.getBranchIndex() == null ? 0 : step.getBranchIndex();
+            if (!(payload.get("imageUrls") instanceof List<?> urls) || index >= urls.size()) {
+                return null;
+            }
+            List<Object> sent = new ArrayList<>(urls);
+            sent.set(index, null);
+            Map<String, Object> copy = new LinkedHashMap<>(payload);
+            copy.put("imageUrls", sent);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Consumes a {@code runStep} response. A streamed response is read line by line: both server-sent events
+ * ({@code data: {...}}) and newline-delimited JSON are accepted, and each event is either a chunk
+ * {@code {"delta": "..."}}, passed on to the listener as it arrives, or the final {@code {success, data, message}}
+ * envelope. Without a final envelope the step output is the concatenated text. A plain JSON response is parsed
+ * incrementally by a {@link ModelEnvelopeReader}.
+ */
+class ModelStreamReader {
+
+    static final String DONE_MARKER = "[DONE]";
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+    private final ObjectMapper objectMapper;
+    private final ModelHttpCodec codec;
+    private final StepChunkListener listener;
+    private final StringBuilder text = new StringBuilder();
+    private Map<String, Object> envelope;
+    private ModelEnvelopeReader envelopeReader;
+    // First bytes of an incrementally parsed body, kept for error snippets.
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private String fullBody;
+    private int fullBodyStatus;
+    private ModelClientException failure;
+    private boolean done;
+
+    ModelStreamReader(ObjectMapper objectMapper, ModelHttpCodec codec, StepChunkListener listener) {
+        this.objectMapper = objectMapper;
+        this.codec = codec;
+        this.listener = listener;
+    }
+
+    static boolean isStream(String contentType) {
+        return contentType != null
+                && (contentType.startsWith("text/event-stream") || contentType.startsWith("application/x-ndjson"));
+    }
+
+    // Never throws, so it can run inside HTTP client callbacks; the first failure is reported by finish().
+    void onLine(String line) {
+        if (isDone() || line == null) {
+            return;
+        }
+        String data = line.strip();
+        if (data.startsWith("data:")) {
+            data = data.substring("data:".length()).strip();
+        } else if (data.isEmpty() || data.startsWith(":") || data.startsWith("event:") || data.startsWith("id:")
+                || data.startsWith("retry:")) {
+            return;
+        }
+        if (data.isEmpty()) {
+            return;
+        }
+        if (DONE_MARKER.equals(data)) {
+            done = true;
+            return;
+        }
+        Map<String, Object> event;
+        try {
+            event = objectMapper.readValue(data, MAP_TYPE);
+        } catch (Exception ex) {
+            failure = new ModelClientException("PARSE_ERROR", "Failed to parse model stream event", codec.truncate(data));
+            return;
+        }
+        if (event.get("delta") instanceof String delta) {
+            text.append(delta);
+            listener.onChunk(delta);
+        }
+        if (event.containsKey("success")) {
+            envelope = event;
+            done = true;
+        }
+    }
+
+    // Parses a successful plain JSON response straight from the body stream; transport errors propagate.
+    void readEnvelope(InputStream body) throws IOException {
+        try (JsonParser parser = objectMapper.createParser(new HeadRecordingStream(body))) {
+            ModelEnvelopeReader reader = codec.envelopeReader(parser);
+            reader.read();
+            envelopeReader = reader;
+            done = true;
+        } catch (JsonProcessingException ex) {
+            failure = new ModelClientException("PARSE_ERROR", "Failed to parse model response", head());
+        }
+    }
+
+    String head() {
+        return head.toString(StandardCharsets.UTF_8);
+    }
+
+    void onFailure(ModelClientException error) {
+        if (failure == null) {
+            failure = error;
+        }
+    }
+
+    // An error status, or a body that is not JSON: kept whole for the error snippet.
+    void onFullBody(int status, String body) {
+        fullBodyStatus = status;
+        fullBody = body == null ? "" : body;
+        done = true;
+    }
+
+    boolean isDone() {
+        return done || failure != null;
+    }
+
+    Map<String, Object> finish() throws ModelClientException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (envelopeReader != null) {
+            return envelopeReader.result(codec, head());
+        }
+        if (fullBody != null) {
+            return codec.parseResponse(fullBodyStatus, fullBody);
+        }
+        if (envelope != null) {
+            return codec.unwrapEnvelope(envelope, null);
+        }
+        Map<String, Object> output = new HashMap<>();
+        output.put("text", text.toString());
+        return output;
+    }
+
+    private final class HeadRecordingStream extends FilterInputStream {
+
+        private HeadRecordingStream(InputStream body) {
+            super(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0 && head.size() < ModelHttpCodec.MAX_SNIPPET) {
+                head.write(value);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = super.read(bytes, offset, length);
+            if (count > 0) {
+                head.write(bytes, offset, Math.min(count, ModelHttpCodec.MAX_SNIPPET - head.size()));
+            }
+            return count;
+        }
+    }
+}
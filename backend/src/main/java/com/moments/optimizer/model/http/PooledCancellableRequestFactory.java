@@ -0,0 +1,36 @@
+package com.moments.optimizer.model.http;
+
+import com.moments.optimizer.model.CancellationScope;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+/**
+ * Pooled counterpart of {@link CancellableClientHttpRequestFactory}: the response timeout is capped at the
+ * remaining step deadline and cancelling the scope aborts the exchange, which discards its pooled connection.
+ */
+public class PooledCancellableRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+    public PooledCancellableRequestFactory(ModelConnectionPool pool) {
+        super(pool.httpClient());
+    }
+
+    @Override
+    protected void postProcessHttpRequest(ClassicHttpRequest request) {
+        CancellationScope scope = CancellationScope.current();
+        if (scope == null || !(request instanceof HttpUriRequestBase exchange)) {
+            return;
+        }
+        long remaining = scope.remainingMillis();
+        if (remaining < Integer.MAX_VALUE) {
+            RequestConfig base = createRequestConfig(getHttpClient());
+            exchange.setConfig((base == null ? RequestConfig.custom() : RequestConfig.copy(base))
+                    .setResponseTimeout(Timeout.ofMilliseconds(Math.max(1L, remaining)))
+                    .setConnectionRequestTimeout(Timeout.ofMilliseconds(Math.max(1L, remaining)))
+                    .build());
+        }
+        scope.onCancel(exchange::cancel);
+    }
+}
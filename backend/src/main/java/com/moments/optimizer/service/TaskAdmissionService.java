@@ -0,0 +1,173 @@
+package com.moments.optimizer.service;
+
+import com.moments.optimizer.api.ErrorCodes;
+import com.moments.optimizer.exception.TooManyRequestsException;
+import com.moments.optimizer.mapper.TaskMapper;
+import com.moments.optimizer.metrics.MetricsSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejects task creation with 429 when the queue (PENDING + RUNNING tasks) or a user's unfinished tasks are over
+ * their limits. Queue depth and completion throughput are read from the tasks table, so every node, including
+ * API-only nodes that run no worker, sees the same numbers; both reads are cached for {@code depthCacheMs}.
+ * <p>
+ * Within one node both limits are exact: admissions since the last depth read are reserved against the cached
+ * depth, and a user's slot is reserved (and held until {@link Admission#close()}, after the task row is committed)
+ * under a per-user lock. Across nodes they are soft: each node reserves only its own admissions, so concurrent
+ * nodes can together overshoot by up to one cache window of admissions per node.
+ */
+@Service
+public class TaskAdmissionService implements MetricsSource {
+
+    private static final long MIN_RETRY_AFTER_SECONDS = 1L;
+    private static final long MAX_RETRY_AFTER_SECONDS = 300L;
+    private static final int USER_LOCK_STRIPES = 64;
+    private static final Admission NO_SLOT = () -> { };
+
+    private final TaskMapper taskMapper;
+    private final boolean enabled;
+    private final long maxQueueDepth;
+    private final long maxActivePerUser;
+    private final long depthCacheMs;
+    private final long defaultRetryAfterSeconds;
+    private final long throughputWindowSeconds;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedQueueFull = new AtomicLong();
+    private final AtomicLong rejectedUserLimit = new AtomicLong();
+    private final AtomicLong reservedSinceRefresh = new AtomicLong();
+    private final Map<String, Integer> pendingByUser = new ConcurrentHashMap<>();
+    private final Object[] userLocks = new Object[USER_LOCK_STRIPES];
+    private volatile long cachedQueueDepth;
+    private volatile double cachedCompletionsPerSecond;
+    private volatile long queueDepthReadAt;
+
+    public TaskAdmissionService(TaskMapper taskMapper,
+                                @Value("${moments.admission.enabled:true}") boolean enabled,
+                                @Value("${moments.admission.max-queue-depth:500}") long maxQueueDepth,
+                                @Value("${moments.admission.max-active-per-user:20}") long maxActivePerUser,
+                                @Value("${moments.admission.depth-cache-ms:1000}") long depthCacheMs,
+                                @Value("${moments.admission.default-retry-after-seconds:30}") long defaultRetryAfterSeconds,
+                                @Value("${moments.admission.throughput-window-seconds:300}") long throughputWindowSeconds) {
+        this.taskMapper = taskMapper;
+        this.enabled = enabled;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxActivePerUser = maxActivePerUser;
+        this.depthCacheMs = depthCacheMs;
+        this.defaultRetryAfterSeconds = defaultRetryAfterSeconds;
+        this.throughputWindowSeconds = Math.max(1L, throughputWindowSeconds);
+        for (int i = 0; i < userLocks.length; i++) {
+            userLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Admits one task for {@code userId} or throws {@link TooManyRequestsException}. The returned slot must be
+     * closed once the task row is committed (or creation failed) so the user's reservation is released.
+     */
+    public Admission admit(String userId) {
+        if (!enabled) {
+            return NO_SLOT;
+        }
+        long depth = queueDepth();
+        if (maxQueueDepth > 0) {
+            long reserved = reservedSinceRefresh.incrementAndGet();
+            if (depth + reserved > maxQueueDepth) {
+                reservedSinceRefresh.decrementAndGet();
+                rejectedQueueFull.incrementAndGet();
+                throw new TooManyRequestsException(ErrorCodes.QUEUE_FULL, "Task queue is full, please retry later",
+                        retryAfterSeconds(depth + reserved - maxQueueDepth));
+            }
+        }
+        Admission slot = NO_SLOT;
+        if (maxActivePerUser > 0 && userId != null && !userId.isBlank()) {
+            try {
+                slot = reserveUserSlot(userId);
+            } catch (TooManyRequestsException e) {
+                if (maxQueueDepth > 0) {
+                    reservedSinceRefresh.decrementAndGet();
+                }
+                throw e;
+            }
+        }
+        admitted.incrementAndGet();
+        return slot;
+    }
+
+    @Override
+    public String metricsName() {
+        return "admission";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("enabled", enabled);
+        snapshot.put("maxQueueDepth", maxQueueDepth);
+        snapshot.put("maxActivePerUser", maxActivePerUser);
+        snapshot.put("queueDepth", cachedQueueDepth + reservedSinceRefresh.get());
+        snapshot.put("completionsPerSecond", cachedCompletionsPerSecond);
+        snapshot.put("admitted", admitted.get());
+        snapshot.put("rejectedQueueFull", rejectedQueueFull.get());
+        snapshot.put("rejectedUserLimit", rejectedUserLimit.get());
+        return snapshot;
+    }
+
+    private Admission reserveUserSlot(String userId) {
+        synchronized (userLocks[Math.floorMod(userId.hashCode(), userLocks.length)]) {
+            // Pending first: a slot released after this read belongs to a committed row the count then sees.
+            long pending = pendingByUser.getOrDefault(userId, 0);
+            long active = taskMapper.countActiveByUser(userId) + pending;
+            if (active >= maxActivePerUser) {
+                rejectedUserLimit.incrementAndGet();
+                throw new TooManyRequestsException(ErrorCodes.USER_TASK_LIMIT,
+                        "Too many unfinished tasks for this user", retryAfterSeconds(active - maxActivePerUser + 1));
+            }
+            pendingByUser.merge(userId, 1, Integer::sum);
+        }
+        return () -> pendingByUser.computeIfPresent(userId, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private long queueDepth() {
+        long now = System.currentTimeMillis();
+        if (now - queueDepthReadAt >= depthCacheMs) {
+            synchronized (this) {
+                if (now - queueDepthReadAt >= depthCacheMs) {
+                    long depth = taskMapper.countActive();
+                    // Tasks finished by any node in the window, so the estimate does not depend on where tasks ran.
+                    long finished = taskMapper.countFinishedSince(
+                            LocalDateTime.now().minusSeconds(throughputWindowSeconds));
+                    cachedCompletionsPerSecond = finished / (double) throughputWindowSeconds;
+                    // The fresh count includes admitted tasks already committed; one still being inserted is
+                    // missed until the next refresh, which only lets a single refresh window's in-flight tasks slip.
+                    cachedQueueDepth = depth;
+                    reservedSinceRefresh.set(0);
+                    queueDepthReadAt = now;
+                }
+            }
+        }
+        return cachedQueueDepth;
+    }
+
+    private long retryAfterSeconds(long excessTasks) {
+        double perSecond = cachedCompletionsPerSecond;
+        if (perSecond <= 0) {
+            return defaultRetryAfterSeconds;
+        }
+        long estimate = (long) Math.ceil(excessTasks / perSecond);
+        return Math.max(MIN_RETRY_AFTER_SECONDS, Math.min(MAX_RETRY_AFTER_SECONDS, estimate));
+    }
+
+    /** A reserved per-user slot; close it once the task row is committed or creation has failed. */
+    @FunctionalInterface
+    public interface Admission extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,4 @@
+package com.moments.optimizer.service;
+
+public record TaskCreatedEvent(String taskId) {
+}
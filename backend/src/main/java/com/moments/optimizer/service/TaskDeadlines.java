@@ -0,0 +1,71 @@
+package com.moments.optimizer.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Component
+public class TaskDeadlines {
+
+    private static final Logger log = LoggerFactory.getLogger(TaskDeadlines.class);
+    private static final String TASK_DEADLINE_OPTION = "deadlineSeconds";
+    private static final String STEP_TIMEOUT_OPTION = "stepTimeoutSeconds";
+
+    private final long defaultTaskSeconds;
+    private final long defaultStepSeconds;
+    private final Map<String, Long> taskSecondsByType;
+    private final Map<String, Long> stepSecondsByType;
+
+    public TaskDeadlines(@Value("${moments.deadline.task-seconds:900}") long defaultTaskSeconds,
+                         @Value("${moments.deadline.step-seconds:120}") long defaultStepSeconds,
+                         @Value("${moments.deadline.task-seconds-by-type:}") String taskSecondsByType,
+                         @Value("${moments.deadline.step-seconds-by-type:}") String stepSecondsByType) {
+        this.defaultTaskSeconds = Math.max(1L, defaultTaskSeconds);
+        this.defaultStepSeconds = Math.max(1L, defaultStepSeconds);
+        this.taskSecondsByType = parseSeconds(taskSecondsByType);
+        this.stepSecondsByType = parseSeconds(stepSecondsByType);
+    }
+
+    // Request options may tighten the configured limits for their type but never loosen them.
+    public Duration taskDeadline(String type, Map<String, Object> options) {
+        long limit = taskSecondsByType.getOrDefault(type, defaultTaskSeconds);
+        return Duration.ofSeconds(requested(options, TASK_DEADLINE_OPTION, limit));
+    }
+
+    public Duration stepTimeout(String type, Map<String, Object> options) {
+        long limit = stepSecondsByType.getOrDefault(type, defaultStepSeconds);
+        return Duration.ofSeconds(requested(options, STEP_TIMEOUT_OPTION, limit));
+    }
+
+    private static long requested(Map<String, Object> options, String key, long limit) {
+        if (options == null || !(options.get(key) instanceof Number value) || value.longValue() <= 0) {
+            return limit;
+        }
+        return Math.min(limit, value.longValue());
+    }
+
+    private static Map<String, Long> parseSeconds(String spec) {
+        Map<String, Long> seconds = new HashMap<>();
+        if (spec == null || spec.isBlank()) {
+            return seconds;
+        }
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                log.warn("Ignoring malformed deadline entry '{}'", entry);
+                continue;
+            }
+            try {
+                seconds.put(parts[0].trim(), Math.max(1L, Long.parseLong(parts[1].trim())));
+            } catch (NumberFormatException ex) {
+                log.warn("Ignoring non-numeric deadline entry '{}'", entry);
+            }
+        }
+        return seconds;
+    }
+}
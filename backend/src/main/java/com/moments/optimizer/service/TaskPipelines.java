@@ -0,0 +1,99 @@
+package com.moments.optimizer.service;
+
+import com.moments.optimizer.domain.TaskStep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public final class TaskPipelines {
+
+    public static final String DEFAULT_TYPE = "moments_optimize";
+    private static final String BRANCH_SEPARATOR = "#";
+    private static final String DEPENDENCY_SEPARATOR = ",";
+
+    // Steps are listed in a valid topological order; perImage steps fan out into one branch per image URL.
+    private static final List<StepTemplate> MOMENTS_OPTIMIZE = List.of(
+            new StepTemplate("image_processing", "Image processing", List.of(), true),
+            new StepTemplate("image_model_call", "Image model call", List.of("image_processing"), true),
+            new StepTemplate("image_result_saved", "Image result saved", List.of("image_model_call"), false),
+            new StepTemplate("prompt_building", "Prompt building", List.of("image_model_call"), false),
+            new StepTemplate("llm_call", "LLM call", List.of("prompt_building"), false),
+            new StepTemplate("final_result", "Final result", List.of("llm_call", "image_result_saved"), false)
+    );
+
+    private static final Map<String, List<StepTemplate>> PIPELINES = Map.of(DEFAULT_TYPE, MOMENTS_OPTIMIZE);
+
+    private TaskPipelines() {
+    }
+
+    public static List<TaskStep> buildSteps(String taskId, String type, int imageCount) {
+        List<StepTemplate> templates = PIPELINES.getOrDefault(type, MOMENTS_OPTIMIZE);
+        int branches = Math.max(1, imageCount);
+        List<TaskStep> steps = new ArrayList<>();
+        int order = 1;
+        for (StepTemplate template : templates) {
+            int count = template.perImage() ? branches : 1;
+            for (int branch = 0; branch < count; branch++) {
+                Integer branchIndex = template.perImage() && branches > 1 ? branch : null;
+                TaskStep step = new TaskStep();
+                step.setTaskId(taskId);
+                step.setStepOrder(order++);
+                step.setStepKey(template.key());
+                step.setBranchIndex(branchIndex);
+                step.setStepLabel(branchIndex == null
+                        ? template.label()
+                        : template.label() + " (" + (branch + 1) + "/" + branches + ")");
+                step.setDependsOn(resolveDependencies(templates, template, branchIndex, branches));
+                step.setStatus("PENDING");
+                steps.add(step);
+            }
+        }
+        return steps;
+    }
+
+    public static String nodeKey(TaskStep step) {
+        return nodeKey(step.getStepKey(), step.getBranchIndex());
+    }
+
+    public static List<String> dependencies(TaskStep step, TaskStep previous) {
+        if (step.getDependsOn() == null) {
+            // Rows created before dependencies were stored keep the old strictly linear order.
+            return previous == null ? List.of() : List.of(nodeKey(previous));
+        }
+        if (step.getDependsOn().isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(step.getDependsOn().split(DEPENDENCY_SEPARATOR)).map(String::trim).toList();
+    }
+
+    private static String resolveDependencies(List<StepTemplate> templates,
+                                              StepTemplate template,
+                                              Integer branchIndex,
+                                              int branches) {
+        List<String> resolved = new ArrayList<>();
+        for (String dependency : template.dependsOn()) {
+            StepTemplate upstream = templates.stream()
+                    .filter(t -> t.key().equals(dependency))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Unknown step dependency: " + dependency));
+            if (!upstream.perImage() || branches == 1) {
+                resolved.add(upstream.key());
+            } else if (branchIndex != null) {
+                resolved.add(nodeKey(upstream.key(), branchIndex));
+            } else {
+                for (int branch = 0; branch < branches; branch++) {
+                    resolved.add(nodeKey(upstream.key(), branch));
+                }
+            }
+        }
+        return String.join(DEPENDENCY_SEPARATOR, resolved);
+    }
+
+    private static String nodeKey(String stepKey, Integer branchIndex) {
+        return branchIndex == null ? stepKey : stepKey + BRANCH_SEPARATOR + branchIndex;
+    }
+
+    private record StepTemplate(String key, String label, List<String> dependsOn, boolean perImage) {}
+}
@@ -4,7 +4,9 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.moments.optimizer.api.ErrorCodes;
 import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskClaimCandidate;
 import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.domain.UserTaskCount;
 import com.moments.optimizer.dto.TaskCreateRequest;
 import com.moments.optimizer.dto.TaskDetailDto;
 import com.moments.optimizer.dto.TaskStepDto;
@@ -12,39 +14,43 @@ import com.moments.optimizer.exception.BadRequestException;
 import com.moments.optimizer.exception.NotFoundException;
 import com.moments.optimizer.mapper.TaskMapper;
 import com.moments.optimizer.mapper.TaskStepMapper;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 
 @Service
 public class TaskService {
 
-    private static final Set<String> ALLOWED_STATUS = Set.of("PENDING", "RUNNING", "SUCCESS", "FAILED");
-
-    private static final List<StepTemplate> DEFAULT_STEPS = List.of(
-            new StepTemplate(1, "image_processing", "Image processing"),
-            new StepTemplate(2, "image_model_call", "Image model call"),
-            new StepTemplate(3, "image_result_saved", "Image result saved"),
-            new StepTemplate(4, "prompt_building", "Prompt building"),
-            new StepTemplate(5, "llm_call", "LLM call"),
-            new StepTemplate(6, "final_result", "Final result")
-    );
+    private static final Set<String> ALLOWED_STATUS = Set.of("PENDING", "RUNNING", "SUCCESS", "FAILED", "CANCELLED");
+    private static final String CHECKPOINT_OUTPUT_KEY = "output";
 
     private final TaskMapper taskMapper;
     private final TaskStepMapper taskStepMapper;
     private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TaskDeadlines deadlines;
 
-    public TaskService(TaskMapper taskMapper, TaskStepMapper taskStepMapper, ObjectMapper objectMapper) {
+    public TaskService(TaskMapper taskMapper,
+                       TaskStepMapper taskStepMapper,
+                       ObjectMapper objectMapper,
+                       ApplicationEventPublisher eventPublisher,
+                       TaskDeadlines deadlines) {
         this.taskMapper = taskMapper;
         this.taskStepMapper = taskStepMapper;
         this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.deadlines = deadlines;
     }
 
     @Transactional
@@ -53,7 +59,7 @@ public class TaskService {
             throw new BadRequestException(ErrorCodes.VALIDATION_ERROR, "userId is required");
         }
         String type = request.getType() == null || request.getType().isBlank()
-                ? "moments_optimize"
+                ? TaskPipelines.DEFAULT_TYPE
                 : request.getType();
 
         String taskId = UUID.randomUUID().toString();
@@ -61,24 +67,19 @@ public class TaskService {
 
         Task task = new Task();
         task.setId(taskId);
+        task.setUserId(request.getUserId());
         task.setType(type);
         task.setStatus("PENDING");
         task.setPayloadJson(serializePayload(request));
         task.setCreatedAt(now);
         task.setUpdatedAt(now);
+        task.setDeadlineAt(now.plus(deadlines.taskDeadline(type, request.getOptions())));
+        task.setStepTimeoutMs(deadlines.stepTimeout(type, request.getOptions()).toMillis());
         taskMapper.insertTask(task);
 
-        List<TaskStep> steps = new ArrayList<>();
-        for (StepTemplate template : DEFAULT_STEPS) {
-            TaskStep step = new TaskStep();
-            step.setTaskId(taskId);
-            step.setStepOrder(template.order());
-            step.setStepKey(template.key());
-            step.setStepLabel(template.label());
-            step.setStatus("PENDING");
-            steps.add(step);
-        }
-        taskStepMapper.insertSteps(steps);
+        int imageCount = request.getImageUrls() == null ? 0 : request.getImageUrls().size();
+        taskStepMapper.insertSteps(TaskPipelines.buildSteps(taskId, type, imageCount));
+        eventPublisher.publishEvent(new TaskCreatedEvent(taskId));
 
         return toDetailDto(task, taskStepMapper.selectByTaskId(taskId));
     }
@@ -95,13 +96,88 @@ public class TaskService {
         return toDetailDto(task, steps);
     }
 
+    @Transactional
+    public TaskDetailDto cancelTask(String taskId) {
+        requireTask(taskId);
+        LocalDateTime now = LocalDateTime.now();
+        if (taskMapper.cancelTask(taskId, "Cancelled by request", now) == 0) {
+            throw new BadRequestException(ErrorCodes.TASK_NOT_CANCELLABLE, "Task already finished");
+        }
+        taskStepMapper.cancelOpenSteps(taskId, now);
+        // The worker running it aborts its in-flight model calls once this commits.
+        eventPublisher.publishEvent(new TaskCancelledEvent(taskId));
+        return toDetailDto(taskMapper.selectById(taskId), taskStepMapper.selectByTaskId(taskId));
+    }
+
     @Transactional(readOnly = true)
-    public List<Task> findRunnableTasks(int limit) {
-        return taskMapper.selectRunnableTasks(Math.max(1, limit));
+    public List<TaskClaimCandidate> findClaimCandidates(int perUserLimit, int userLimit) {
+        return taskMapper.selectClaimCandidates(LocalDateTime.now(), Math.max(1, perUserLimit), Math.max(1, userLimit));
+    }
+
+    @Transactional(readOnly = true)
+    public Map<String, Integer> countRunningByUser(Collection<String> userIds) {
+        List<String> ids = userIds.stream().filter(Objects::nonNull).distinct().toList();
+        if (ids.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, Integer> counts = new HashMap<>();
+        for (UserTaskCount row : taskMapper.selectRunningCountsByUser(ids)) {
+            counts.put(row.getUserId(), row.getTaskCount());
+        }
+        return counts;
+    }
+
+    @Transactional
+    public List<Task> claimTasks(List<String> taskIds, String owner, Duration leaseDuration) {
+        if (taskIds.isEmpty()) {
+            return List.of();
+        }
+        LocalDateTime now = LocalDateTime.now();
+        // The conditional update is the claim: rows another node leased in the meantime are left untouched.
+        taskMapper.claimTasks(taskIds, owner, now.plus(leaseDuration), now);
+        return taskMapper.selectLeasedTasks(taskIds, owner);
+    }
+
+    @Transactional
+    public boolean heartbeat(String taskId, String owner, Collection<Long> stepIds, Duration leaseDuration) {
+        LocalDateTime now = LocalDateTime.now();
+        boolean held = taskMapper.renewLease(taskId, owner, now, now.plus(leaseDuration)) > 0;
+        if (held && !stepIds.isEmpty()) {
+            taskStepMapper.updateHeartbeat(stepIds, now);
+        }
+        return held;
+    }
+
+    @Transactional
+    public ReapResult reapStaleTasks(Duration heartbeatTimeout, int maxRequeues, int limit) {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime cutoff = now.minus(heartbeatTimeout);
+        int requeued = 0;
+        int abandoned = 0;
+        for (Task stale : taskMapper.selectStaleRunningTasks(cutoff, Math.max(1, limit))) {
+            int attempts = stale.getAttemptCount() == null ? 0 : stale.getAttemptCount();
+            if (attempts < maxRequeues) {
+                requeued += taskMapper.requeueStaleTask(stale.getId(), cutoff, now);
+                continue;
+            }
+            String message = "Worker heartbeat expired; task abandoned after " + (attempts + 1) + " attempt(s)";
+            if (taskMapper.failStaleTask(stale.getId(), cutoff, message, now) > 0) {
+                taskStepMapper.failRunningSteps(stale.getId(), now);
+                abandoned++;
+            }
+        }
+        return new ReapResult(requeued, abandoned);
+    }
+
+    @Transactional
+    public void releaseLease(String taskId, String owner) {
+        taskMapper.releaseLease(taskId, owner);
     }
 
+    // The worker's task and step writes below return null or false once owner no longer holds the lease: the
+    // reaper re-queued the task, possibly to another node, and this run must not record anything more.
     @Transactional
-    public Task markTaskRunning(String taskId) {
+    public Task markTaskRunning(String taskId, String owner) {
         Task task = taskMapper.selectById(taskId);
         if (task == null) {
             throw new NotFoundException(ErrorCodes.TASK_NOT_FOUND, "Task not found");
@@ -112,67 +188,91 @@ public class TaskService {
         LocalDateTime now = LocalDateTime.now();
         task.setStatus("RUNNING");
         task.setUpdatedAt(now);
-        taskMapper.updateStatus(taskId, "RUNNING", task.getErrorMessage(), now, task.getResultJson());
+        if (taskMapper.updateStatus(taskId, owner, "RUNNING", task.getErrorMessage(), now,
+                task.getResultJson()) == 0) {
+            return null;
+        }
         return taskMapper.selectById(taskId);
     }
 
     @Transactional
-    public TaskStep markFirstStepRunning(String taskId) {
-        TaskStep firstPending = taskStepMapper.selectFirstPendingStep(taskId);
-        if (firstPending == null) {
-            return null;
+    public List<TaskStep> prepareStepsForResume(String taskId, String owner) {
+        List<TaskStep> steps = taskStepMapper.selectByTaskId(taskId);
+        for (TaskStep step : steps) {
+            if ("RUNNING".equals(step.getStatus())) {
+                // Interrupted by a restart or a lost lease before it checkpointed: run it again.
+                taskStepMapper.updateStepStatus(step.getId(), owner, "PENDING", null, null);
+                step.setStatus("PENDING");
+            }
         }
-        firstPending.setStatus("RUNNING");
-        firstPending.setStartedAt(LocalDateTime.now());
-        taskStepMapper.updateStepStatus(firstPending.getId(), "RUNNING", firstPending.getStartedAt(), null);
-        return taskStepMapper.selectFirstPendingStep(taskId) == null ? firstPending : firstPending;
+        return steps;
     }
 
-    @Transactional(readOnly = true)
-    public TaskStep getNextPendingStep(String taskId) {
-        return taskStepMapper.selectFirstPendingStep(taskId);
+    public Map<String, Object> readStepCheckpoint(TaskStep step) {
+        Map<String, Object> extra = parseJson(step.getExtraJson());
+        if (extra == null || !(extra.get(CHECKPOINT_OUTPUT_KEY) instanceof Map<?, ?> output)) {
+            return Map.of();
+        }
+        return (Map<String, Object>) output;
     }
 
     @Transactional
-    public TaskStep markStepSuccess(Long stepId) {
+    public TaskStep markStepRunning(Long stepId, String owner) {
         TaskStep step = findStepById(stepId);
         LocalDateTime now = LocalDateTime.now();
-        taskStepMapper.updateStepStatus(stepId, "SUCCESS", step.getStartedAt(), now);
-        step.setStatus("SUCCESS");
-        step.setFinishedAt(now);
+        if (taskStepMapper.startAttempt(stepId, owner, now) == 0) {
+            return null;
+        }
+        step.setStatus("RUNNING");
+        step.setStartedAt(now);
+        step.setAttemptCount((step.getAttemptCount() == null ? 0 : step.getAttemptCount()) + 1);
+        step.setNextAttemptAt(null);
         return step;
     }
 
     @Transactional
-    public TaskStep markStepFailed(Long stepId, String errorMessage) {
+    public boolean scheduleStepRetry(Long stepId, String owner, LocalDateTime nextAttemptAt) {
+        return taskStepMapper.scheduleRetry(stepId, owner, LocalDateTime.now(), nextAttemptAt) > 0;
+    }
+
+    @Transactional
+    public boolean markStepSuccess(Long stepId, String owner, Map<String, Object> output) {
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put(CHECKPOINT_OUTPUT_KEY, output);
+        return taskStepMapper.updateStepCheckpoint(stepId, owner, "SUCCESS", LocalDateTime.now(),
+                writeJson(checkpoint)) > 0;
+    }
+
+    // Only a RUNNING step takes partial output, so a late flush cannot outlive the step's final result.
+    @Transactional
+    public void saveStepPartialOutput(Long stepId, String partialOutput) {
+        taskStepMapper.updatePartialOutput(stepId, partialOutput);
+    }
+
+    @Transactional
+    public boolean markStepFailed(Long stepId, String owner, String errorMessage) {
         TaskStep step = findStepById(stepId);
-        LocalDateTime now = LocalDateTime.now();
-        taskStepMapper.updateStepStatus(stepId, "FAILED", step.getStartedAt(), now);
-        step.setStatus("FAILED");
-        step.setFinishedAt(now);
-        return step;
+        return taskStepMapper.updateStepStatus(stepId, owner, "FAILED", step.getStartedAt(), LocalDateTime.now()) > 0;
     }
 
     @Transactional
-    public Task markTaskSuccess(String taskId, Map<String, Object> result) {
-        Task task = requireTask(taskId);
-        LocalDateTime now = LocalDateTime.now();
-        taskMapper.updateStatus(taskId, "SUCCESS", task.getErrorMessage(), now, writeJson(result));
-        task.setStatus("SUCCESS");
-        task.setResultJson(writeJson(result));
-        task.setUpdatedAt(now);
-        return task;
+    public boolean markTaskSuccess(String taskId, String owner, Map<String, Object> result) {
+        requireTask(taskId);
+        // Clears any "retrying" note left by an earlier attempt.
+        return taskMapper.updateStatus(taskId, owner, "SUCCESS", null, LocalDateTime.now(), writeJson(result)) > 0;
+    }
+
+    @Transactional
+    public boolean parkTaskForRetry(String taskId, String owner, LocalDateTime nextAttemptAt, String errorMessage) {
+        // Back to PENDING without a lease: the claim query skips it until next_attempt_at passes.
+        return taskMapper.parkForRetry(taskId, owner, nextAttemptAt, errorMessage, LocalDateTime.now()) > 0;
     }
 
     @Transactional
-    public Task markTaskFailed(String taskId, String errorMessage) {
+    public boolean markTaskFailed(String taskId, String owner, String errorMessage) {
         Task task = requireTask(taskId);
-        LocalDateTime now = LocalDateTime.now();
-        taskMapper.updateStatus(taskId, "FAILED", errorMessage, now, task.getResultJson());
-        task.setStatus("FAILED");
-        task.setErrorMessage(errorMessage);
-        task.setUpdatedAt(now);
-        return task;
+        return taskMapper.updateStatus(taskId, owner, "FAILED", errorMessage, LocalDateTime.now(),
+                task.getResultJson()) > 0;
     }
 
     private void validateStatus(String status) {
@@ -204,14 +304,18 @@ public class TaskService {
         dto.setUpdatedAt(task.getUpdatedAt());
         dto.setResultJson(parseJson(task.getResultJson()));
         dto.setErrorMessage(task.getErrorMessage());
+        dto.setDeadlineAt(task.getDeadlineAt());
 
         List<TaskStepDto> stepDtos = new ArrayList<>();
         for (TaskStep step : steps) {
             TaskStepDto s = new TaskStepDto();
-            s.setKey(step.getStepKey());
+            s.setKey(TaskPipelines.nodeKey(step));
             s.setLabel(step.getStepLabel());
             s.setStatus(step.getStatus());
             s.setStartedAt(step.getStartedAt());
+            s.setAttemptCount(step.getAttemptCount());
+            s.setNextAttemptAt(step.getNextAttemptAt());
+            s.setPartialOutput(step.getPartialOutput());
             s.setFinishedAt(step.getFinishedAt());
             stepDtos.add(s);
         }
@@ -257,5 +361,5 @@ public class TaskService {
         return step;
     }
 
-    private record StepTemplate(int order, String key, String label) {}
+    public record ReapResult(int requeued, int abandoned) {}
 }
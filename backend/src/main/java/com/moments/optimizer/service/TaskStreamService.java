@@ -0,0 +1,224 @@
+package com.moments.optimizer.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.dto.TaskDetailDto;
+import com.moments.optimizer.model.StepChunkListener;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes task progress to {@code GET /api/tasks/{id}/stream} subscribers as server-sent events. Model output
+ * chunks produced on this node are forwarded as {@code chunk} events the moment they arrive; task and step
+ * changes, including partial output persisted by other nodes, are sent as {@code snapshot} events from a poll
+ * shared by all subscribers of a task.
+ */
+@Service
+public class TaskStreamService {
+
+    private static final Logger log = LoggerFactory.getLogger(TaskStreamService.class);
+    private static final Set<String> FINAL_STATUSES = Set.of("SUCCESS", "FAILED", "CANCELLED");
+
+    private final TaskService taskService;
+    private final ObjectMapper objectMapper;
+    private final long pollMs;
+    private final long timeoutMs;
+    private final long persistIntervalMs;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, TaskSubscribers> subscribers = new ConcurrentHashMap<>();
+
+    public TaskStreamService(TaskService taskService,
+                             ObjectMapper objectMapper,
+                             @Value("${moments.stream.poll-ms:1000}") long pollMs,
+                             @Value("${moments.stream.timeout-seconds:900}") long timeoutSeconds,
+                             @Value("${moments.stream.persist-interval-ms:500}") long persistIntervalMs) {
+        this.taskService = taskService;
+        this.objectMapper = objectMapper;
+        this.pollMs = Math.max(100L, pollMs);
+        this.timeoutMs = Math.max(1L, timeoutSeconds) * 1000L;
+        this.persistIntervalMs = Math.max(50L, persistIntervalMs);
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "task-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public SseEmitter subscribe(String taskId) {
+        TaskDetailDto snapshot = taskService.getTask(taskId);
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        if (!send(emitter, "snapshot", snapshot)) {
+            return emitter;
+        }
+        if (FINAL_STATUSES.contains(snapshot.getStatus())) {
+            emitter.complete();
+            return emitter;
+        }
+        TaskSubscribers task = subscribers.compute(taskId, (id, existing) -> {
+            TaskSubscribers current = existing == null ? new TaskSubscribers(id) : existing;
+            current.emitters.add(emitter);
+            return current;
+        });
+        emitter.onCompletion(() -> remove(taskId, emitter));
+        emitter.onTimeout(() -> remove(taskId, emitter));
+        emitter.onError(error -> remove(taskId, emitter));
+        task.startPolling(signature(snapshot));
+        return emitter;
+    }
+
+    // One listener per step attempt; chunks are pushed right away and persisted at most every persist interval.
+    public StepChunkListener listenerFor(String taskId, TaskStep step) {
+        return new StepStream(taskId, step.getId(), TaskPipelines.nodeKey(step));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        subscribers.values().forEach(task -> task.emitters.forEach(SseEmitter::complete));
+        subscribers.clear();
+    }
+
+    private void remove(String taskId, SseEmitter emitter) {
+        subscribers.computeIfPresent(taskId, (id, task) -> {
+            task.emitters.remove(emitter);
+            if (task.emitters.isEmpty()) {
+                task.stopPolling();
+                return null;
+            }
+            return task;
+        });
+    }
+
+    private void publishChunk(String taskId, String stepKey, String text) {
+        TaskSubscribers task = subscribers.get(taskId);
+        if (task == null) {
+            return;
+        }
+        Map<String, Object> chunk = new LinkedHashMap<>();
+        chunk.put("step", stepKey);
+        chunk.put("text", text);
+        task.emitters.forEach(emitter -> send(emitter, "chunk", chunk));
+    }
+
+    private boolean send(SseEmitter emitter, String event, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(event).data(data, MediaType.APPLICATION_JSON));
+            return true;
+        } catch (IOException | IllegalStateException ex) {
+            // Client went away; the emitter callbacks drop it from the subscriber list.
+            emitter.completeWithError(ex);
+            return false;
+        }
+    }
+
+    private String signature(TaskDetailDto snapshot) {
+        try {
+            return objectMapper.writeValueAsString(snapshot);
+        } catch (JsonProcessingException ex) {
+            return String.valueOf(snapshot.getUpdatedAt()) + snapshot.getStatus();
+        }
+    }
+
+    private final class TaskSubscribers {
+        private final String taskId;
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+        private ScheduledFuture<?> poll;
+        private String lastSignature;
+
+        private TaskSubscribers(String taskId) {
+            this.taskId = taskId;
+        }
+
+        private synchronized void startPolling(String signature) {
+            if (poll != null) {
+                return;
+            }
+            lastSignature = signature;
+            poll = scheduler.scheduleWithFixedDelay(this::poll, pollMs, pollMs, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void stopPolling() {
+            if (poll != null) {
+                poll.cancel(false);
+            }
+        }
+
+        private void poll() {
+            TaskDetailDto snapshot;
+            try {
+                snapshot = taskService.getTask(taskId);
+            } catch (RuntimeException ex) {
+                log.debug("Task {} stream poll failed: {}", taskId, ex.getMessage());
+                return;
+            }
+            String signature = signature(snapshot);
+            synchronized (this) {
+                if (signature.equals(lastSignature)) {
+                    return;
+                }
+                lastSignature = signature;
+            }
+            emitters.forEach(emitter -> send(emitter, "snapshot", snapshot));
+            if (FINAL_STATUSES.contains(snapshot.getStatus())) {
+                emitters.forEach(SseEmitter::complete);
+            }
+        }
+    }
+
+    private final class StepStream implements StepChunkListener {
+        private final String taskId;
+        private final Long stepId;
+        private final String stepKey;
+        private final StringBuilder text = new StringBuilder();
+        private boolean flushScheduled;
+
+        private StepStream(String taskId, Long stepId, String stepKey) {
+            this.taskId = taskId;
+            this.stepId = stepId;
+            this.stepKey = stepKey;
+        }
+
+        @Override
+        public void onChunk(String chunk) {
+            synchronized (this) {
+                text.append(chunk);
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    scheduler.schedule(this::flush, persistIntervalMs, TimeUnit.MILLISECONDS);
+                }
+            }
+            publishChunk(taskId, stepKey, chunk);
+        }
+
+        private void flush() {
+            String partial;
+            synchronized (this) {
+                flushScheduled = false;
+                partial = text.toString();
+            }
+            try {
+                taskService.saveStepPartialOutput(stepId, partial);
+            } catch (RuntimeException ex) {
+                log.debug("Failed to persist partial output for step {}: {}", stepId, ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.domain.TaskClaimCandidate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weighted fair queuing across users. Every dispatch advances the user's virtual time by
+ * {@code 1 / weight(role)}; the user with the smallest virtual finish time goes next, so a user who
+ * bulk-submits only gets their weighted share while others have work queued.
+ */
+public class FairTaskScheduler {
+
+    private static final String ANONYMOUS = "";
+
+    private final Map<String, Double> roleWeights;
+    private final double defaultWeight;
+    private final int maxRunningPerUser;
+    private final Map<String, Double> virtualTimes = new HashMap<>();
+    private final Map<String, AtomicLong> dispatchedByRole = new ConcurrentHashMap<>();
+    private final AtomicLong deferredByUserCap = new AtomicLong();
+    private double systemVirtualTime;
+
+    public FairTaskScheduler(Map<String, Double> roleWeights, double defaultWeight, int maxRunningPerUser) {
+        this.roleWeights = Map.copyOf(roleWeights);
+        this.defaultWeight = defaultWeight > 0 ? defaultWeight : 1.0;
+        this.maxRunningPerUser = maxRunningPerUser;
+    }
+
+    public int getMaxRunningPerUser() {
+        return maxRunningPerUser;
+    }
+
+    public synchronized List<TaskClaimCandidate> select(List<TaskClaimCandidate> candidates,
+                                                        Map<String, Integer> runningByUser,
+                                                        int capacity) {
+        Map<String, Deque<TaskClaimCandidate>> queues = new LinkedHashMap<>();
+        for (TaskClaimCandidate candidate : candidates) {
+            queues.computeIfAbsent(userKey(candidate), k -> new ArrayDeque<>()).add(candidate);
+        }
+        Map<String, Integer> active = new HashMap<>();
+        queues.keySet().forEach(user -> active.put(user, runningByUser.getOrDefault(user, 0)));
+
+        List<TaskClaimCandidate> selected = new ArrayList<>();
+        while (selected.size() < capacity && !queues.isEmpty()) {
+            String bestUser = null;
+            double bestFinish = Double.MAX_VALUE;
+            double bestStart = 0;
+            for (Map.Entry<String, Deque<TaskClaimCandidate>> entry : queues.entrySet()) {
+                TaskClaimCandidate head = entry.getValue().peekFirst();
+                double start = Math.max(systemVirtualTime, virtualTimes.getOrDefault(entry.getKey(), 0.0));
+                double finish = start + 1.0 / weight(head.getUserRole());
+                if (finish < bestFinish) {
+                    bestUser = entry.getKey();
+                    bestFinish = finish;
+                    bestStart = start;
+                }
+            }
+            Deque<TaskClaimCandidate> queue = queues.get(bestUser);
+            if (maxRunningPerUser > 0 && active.get(bestUser) >= maxRunningPerUser) {
+                deferredByUserCap.addAndGet(queue.size());
+                queues.remove(bestUser);
+                continue;
+            }
+            TaskClaimCandidate next = queue.pollFirst();
+            selected.add(next);
+            active.merge(bestUser, 1, Integer::sum);
+            virtualTimes.put(bestUser, bestFinish);
+            systemVirtualTime = bestStart;
+            dispatchedByRole.computeIfAbsent(roleKey(next.getUserRole()), k -> new AtomicLong()).incrementAndGet();
+            if (queue.isEmpty()) {
+                queues.remove(bestUser);
+            }
+        }
+        // Users who fell behind the system clock have been idle; drop them so the map stays bounded.
+        virtualTimes.values().removeIf(vt -> vt < systemVirtualTime);
+        return selected;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("roleWeights", roleWeights);
+        snapshot.put("maxRunningPerUser", maxRunningPerUser);
+        Map<String, Long> byRole = new LinkedHashMap<>();
+        dispatchedByRole.forEach((role, count) -> byRole.put(role, count.get()));
+        snapshot.put("dispatchedByRole", byRole);
+        snapshot.put("deferredByUserCap", deferredByUserCap.get());
+        return snapshot;
+    }
+
+    private double weight(String role) {
+        Double weight = roleWeights.get(roleKey(role));
+        return weight != null && weight > 0 ? weight : defaultWeight;
+    }
+
+    private static String userKey(TaskClaimCandidate candidate) {
+        return candidate.getUserId() == null ? ANONYMOUS : candidate.getUserId();
+    }
+
+    private static String roleKey(String role) {
+        return role == null ? "normal" : role.toLowerCase();
+    }
+}
@@ -0,0 +1,79 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adds a step's image attachments before the step runs: the normalized image of an image model call, or the stored
+ * image paths for the step that saves the result. Attachments are not checkpointed, so a resumed run gets them
+ * here even when the steps that first produced them are skipped.
+ */
+public class ImageAttachingStepHandler implements StepHandler {
+
+    @FunctionalInterface
+    public interface Preparation {
+        void prepare(TaskContext context, TaskStep step) throws ModelClientException;
+    }
+
+    private final StepHandler delegate;
+    private final Preparation preparation;
+
+    public ImageAttachingStepHandler(StepHandler delegate, Preparation preparation) {
+        this.delegate = delegate;
+        this.preparation = preparation;
+    }
+
+    @Override
+    public Set<String> stepKeys() {
+        return delegate.stepKeys();
+    }
+
+    @Override
+    public String pool() {
+        return delegate.pool();
+    }
+
+    @Override
+    public Map<String, Object> handle(TaskContext context, TaskStep step) throws ModelClientException {
+        preparation.prepare(context, step);
+        return delegate.handle(context, step);
+    }
+
+    @Override
+    public Map<String, Object> handle(TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        preparation.prepare(context, step);
+        return delegate.handle(context, step, listener);
+    }
+
+    @Override
+    public boolean isAsync() {
+        return delegate.isAsync();
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> handleAsync(TaskContext context, TaskStep step) {
+        try {
+            preparation.prepare(context, step);
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return delegate.handleAsync(context, step);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> handleAsync(TaskContext context, TaskStep step, StepChunkListener listener) {
+        try {
+            preparation.prepare(context, step);
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return delegate.handleAsync(context, step, listener);
+    }
+}
@@ -0,0 +1,39 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.image.ImageIngestor;
+import com.moments.optimizer.image.NormalizedImage;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.TaskContext;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs image_processing locally: normalizes the branch's image and attaches it to the branch's image model call.
+ * The step output only describes the image; the bytes stay in the task context.
+ */
+public class ImageProcessingStepHandler implements StepHandler {
+
+    private final ImageIngestor ingestor;
+
+    public ImageProcessingStepHandler(ImageIngestor ingestor) {
+        this.ingestor = ingestor;
+    }
+
+    @Override
+    public Set<String> stepKeys() {
+        return Set.of("image_processing");
+    }
+
+    @Override
+    public String pool() {
+        return POOL_IMAGE;
+    }
+
+    @Override
+    public Map<String, Object> handle(TaskContext context, TaskStep step) throws ModelClientException {
+        NormalizedImage image = ingestor.attach(context, step.getBranchIndex());
+        return image == null ? Map.of("skipped", true) : image.describe();
+    }
+}
@@ -0,0 +1,19 @@
+package com.moments.optimizer.worker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class LocalTaskWakeupChannel implements TaskWakeupChannel {
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(String taskId) {
+        listeners.forEach(Runnable::run);
+    }
+
+    @Override
+    public void subscribe(Runnable listener) {
+        listeners.add(listener);
+    }
+}
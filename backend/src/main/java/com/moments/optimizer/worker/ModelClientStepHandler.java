@@ -0,0 +1,60 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+public class ModelClientStepHandler implements StepHandler {
+
+    private final Set<String> stepKeys;
+    private final String pool;
+    private final ModelClient modelClient;
+
+    public ModelClientStepHandler(Set<String> stepKeys, String pool, ModelClient modelClient) {
+        this.stepKeys = Set.copyOf(stepKeys);
+        this.pool = pool;
+        this.modelClient = modelClient;
+    }
+
+    @Override
+    public Set<String> stepKeys() {
+        return stepKeys;
+    }
+
+    @Override
+    public String pool() {
+        return pool;
+    }
+
+    @Override
+    public Map<String, Object> handle(TaskContext context, TaskStep step) throws ModelClientException {
+        return modelClient.runStep(step.getStepKey(), context, step);
+    }
+
+    @Override
+    public Map<String, Object> handle(TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        return modelClient.runStep(step.getStepKey(), context, step, listener);
+    }
+
+    @Override
+    public boolean isAsync() {
+        return modelClient.isAsync();
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> handleAsync(TaskContext context, TaskStep step) {
+        return modelClient.runStepAsync(step.getStepKey(), context, step);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> handleAsync(TaskContext context, TaskStep step, StepChunkListener listener) {
+        return modelClient.runStepAsync(step.getStepKey(), context, step, listener);
+    }
+}
@@ -0,0 +1,94 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.mapper.TaskWakeupOutboxMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class OutboxTaskWakeupChannel implements TaskWakeupChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxTaskWakeupChannel.class);
+    private static final Duration RETENTION = Duration.ofMinutes(10);
+    private static final long PURGE_INTERVAL_SECONDS = 60L;
+
+    private final TaskWakeupOutboxMapper outboxMapper;
+    private final long pollIntervalMs;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService poller;
+    private volatile long lastSeenId = -1L;
+
+    public OutboxTaskWakeupChannel(TaskWakeupOutboxMapper outboxMapper, long pollIntervalMs) {
+        this.outboxMapper = outboxMapper;
+        this.pollIntervalMs = Math.max(50L, pollIntervalMs);
+    }
+
+    // Runs in the task's transaction: a failed insert rolls the task back, and a committed task always has its row.
+    @Override
+    public void record(String taskId) {
+        outboxMapper.insertWakeup(taskId, LocalDateTime.now());
+    }
+
+    // Local listeners are woken directly; the outbox row reaches workers on other nodes.
+    @Override
+    public void publish(String taskId) {
+        listeners.forEach(Runnable::run);
+    }
+
+    @Override
+    public void subscribe(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (poller != null || listeners.isEmpty()) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("task-wakeup-outbox");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(this::safePoll, 0, pollIntervalMs, TimeUnit.MILLISECONDS);
+        poller.scheduleWithFixedDelay(this::safePurge, PURGE_INTERVAL_SECONDS, PURGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        log.info("Task wakeup outbox polling every {}ms", pollIntervalMs);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    private void safePoll() {
+        try {
+            Long maxId = outboxMapper.selectMaxId();
+            long current = maxId == null ? 0L : maxId;
+            long previous = lastSeenId;
+            lastSeenId = current;
+            if (previous >= 0 && current > previous) {
+                listeners.forEach(Runnable::run);
+            }
+        } catch (Exception ex) {
+            log.warn("Task wakeup outbox poll failed: {}", ex.getMessage());
+        }
+    }
+
+    private void safePurge() {
+        try {
+            outboxMapper.deleteOlderThan(LocalDateTime.now().minus(RETENTION));
+        } catch (Exception ex) {
+            log.warn("Task wakeup outbox purge failed: {}", ex.getMessage());
+        }
+    }
+}
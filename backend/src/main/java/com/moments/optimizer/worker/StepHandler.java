@@ -0,0 +1,53 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StepChunkListener;
+import com.moments.optimizer.model.TaskContext;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Executes one kind of pipeline step. Handlers are looked up by step key and run on the executor pool they
+ * name, so CPU-bound steps and each remote backend get separate capacity. Declare a bean to replace the
+ * built-in handler for a key.
+ */
+public interface StepHandler {
+
+    String POOL_CPU = "cpu";
+    String POOL_IMAGE = "image";
+    String POOL_IMAGE_MODEL = "image_model";
+    String POOL_LLM = "llm";
+    String POOL_DEFAULT = "default";
+
+    Set<String> stepKeys();
+
+    String pool();
+
+    Map<String, Object> handle(TaskContext context, TaskStep step) throws ModelClientException;
+
+    // Handlers that can stream report partial output to the listener; the rest ignore it.
+    default Map<String, Object> handle(TaskContext context, TaskStep step, StepChunkListener listener)
+            throws ModelClientException {
+        return handle(context, step);
+    }
+
+    // Async handlers are started from the task's runner thread and hold no pool thread while they wait.
+    default boolean isAsync() {
+        return false;
+    }
+
+    default CompletableFuture<Map<String, Object>> handleAsync(TaskContext context, TaskStep step) {
+        try {
+            return CompletableFuture.completedFuture(handle(context, step));
+        } catch (ModelClientException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    default CompletableFuture<Map<String, Object>> handleAsync(TaskContext context, TaskStep step, StepChunkListener listener) {
+        return handleAsync(context, step);
+    }
+}
@@ -0,0 +1,108 @@
+package com.moments.optimizer.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps step keys to handlers and owns one fixed-size executor per handler pool. Pools only bound how many
+ * steps of that kind run at once; excess steps queue inside their own pool instead of taking threads from
+ * another backend.
+ */
+public class StepHandlerRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(StepHandlerRegistry.class);
+
+    private final Map<String, StepHandler> handlersByKey = new HashMap<>();
+    private final StepHandler fallback;
+    private final Map<String, Integer> poolSizes;
+    private final Map<String, ThreadPoolExecutor> pools = new LinkedHashMap<>();
+    private final Map<String, Semaphore> asyncPermits = new LinkedHashMap<>();
+
+    public StepHandlerRegistry(List<StepHandler> handlers, StepHandler fallback, Map<String, Integer> poolSizes) {
+        // Later handlers win, so user-declared beans listed after the built-ins replace them.
+        for (StepHandler handler : handlers) {
+            handler.stepKeys().forEach(key -> handlersByKey.put(key, handler));
+        }
+        this.fallback = fallback;
+        this.poolSizes = Map.copyOf(poolSizes);
+    }
+
+    public StepHandler handlerFor(String stepKey) {
+        return handlersByKey.getOrDefault(stepKey, fallback);
+    }
+
+    public ExecutorService executorFor(StepHandler handler) {
+        ThreadPoolExecutor pool = pools.get(handler.pool());
+        if (pool == null) {
+            pool = pools.get(StepHandler.POOL_DEFAULT);
+        }
+        if (pool == null) {
+            throw new IllegalStateException("Step handler pools are not started");
+        }
+        return pool;
+    }
+
+    // Async steps hold a permit instead of a thread, so the pool size still bounds their concurrency.
+    public Semaphore permitsFor(StepHandler handler) {
+        Semaphore permits = asyncPermits.get(handler.pool());
+        if (permits == null) {
+            permits = asyncPermits.get(StepHandler.POOL_DEFAULT);
+        }
+        if (permits == null) {
+            throw new IllegalStateException("Step handler pools are not started");
+        }
+        return permits;
+    }
+
+    public synchronized void start() {
+        if (!pools.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> sizes = new LinkedHashMap<>(poolSizes);
+        sizes.putIfAbsent(StepHandler.POOL_DEFAULT, 1);
+        for (StepHandler handler : handlersByKey.values()) {
+            if (!sizes.containsKey(handler.pool())) {
+                log.warn("Step handler pool '{}' has no configured size, its steps run on the default pool",
+                        handler.pool());
+            }
+        }
+        sizes.forEach((name, size) -> {
+            int threads = Math.max(1, size);
+            pools.put(name, new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), new WorkerThreadFactory("task-step-" + name)));
+            asyncPermits.put(name, new Semaphore(threads));
+        });
+        log.info("Step handler pools started: {}", sizes);
+    }
+
+    public synchronized void stop() {
+        pools.values().forEach(ExecutorService::shutdownNow);
+        pools.clear();
+        asyncPermits.clear();
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        pools.forEach((name, pool) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("size", pool.getMaximumPoolSize());
+            stats.put("active", pool.getActiveCount());
+            stats.put("queued", pool.getQueue().size());
+            stats.put("completed", pool.getCompletedTaskCount());
+            Semaphore permits = asyncPermits.get(name);
+            stats.put("asyncInFlight", permits == null ? 0 : pool.getMaximumPoolSize() - permits.availablePermits());
+            snapshot.put(name, stats);
+        });
+        return snapshot;
+    }
+}
@@ -0,0 +1,67 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.model.ModelClientException;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a failed step is retried, keyed by {@link ModelClientException#getErrorCode()}. Codes without
+ * an entry fail immediately. Delays grow exponentially from the base delay and use "equal jitter" (half fixed,
+ * half random) so a burst of failures does not come back as a synchronized burst of retries.
+ */
+public class StepRetryPolicy {
+
+    private final Map<String, Integer> maxAttemptsByCode;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+    private final Map<String, AtomicLong> scheduledByCode = new ConcurrentHashMap<>();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public StepRetryPolicy(Map<String, Integer> maxAttemptsByCode, Duration baseDelay, Duration maxDelay) {
+        this.maxAttemptsByCode = Map.copyOf(maxAttemptsByCode);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay.compareTo(baseDelay) < 0 ? baseDelay : maxDelay;
+    }
+
+    public boolean isRetryable(Exception error, int attempt) {
+        if (!(error instanceof ModelClientException modelError) || modelError.getErrorCode() == null) {
+            return false;
+        }
+        Integer maxAttempts = maxAttemptsByCode.get(modelError.getErrorCode());
+        if (maxAttempts == null || maxAttempts <= 1) {
+            return false;
+        }
+        if (attempt >= maxAttempts) {
+            exhausted.incrementAndGet();
+            return false;
+        }
+        scheduledByCode.computeIfAbsent(modelError.getErrorCode(), k -> new AtomicLong()).incrementAndGet();
+        return true;
+    }
+
+    public Duration backoff(int attempt) {
+        long base = baseDelay.toMillis();
+        long cap = maxDelay.toMillis();
+        int shift = Math.min(Math.max(0, attempt - 1), 30);
+        long delay = base > cap >> shift ? cap : Math.min(cap, base << shift);
+        long half = delay / 2;
+        return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(delay - half + 1));
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("maxAttemptsByCode", maxAttemptsByCode);
+        snapshot.put("baseDelayMs", baseDelay.toMillis());
+        snapshot.put("maxDelayMs", maxDelay.toMillis());
+        Map<String, Long> scheduled = new LinkedHashMap<>();
+        scheduledByCode.forEach((code, count) -> scheduled.put(code, count.get()));
+        snapshot.put("scheduledByCode", scheduled);
+        snapshot.put("exhausted", exhausted.get());
+        return snapshot;
+    }
+}
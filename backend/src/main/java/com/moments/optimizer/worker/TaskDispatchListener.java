@@ -0,0 +1,36 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.service.TaskCancelledEvent;
+import com.moments.optimizer.service.TaskCreatedEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+@Component
+public class TaskDispatchListener {
+
+    private final TaskWakeupChannel wakeupChannel;
+    private final TaskWorkerManager workerManager;
+
+    public TaskDispatchListener(TaskWakeupChannel wakeupChannel, TaskWorkerManager workerManager) {
+        this.wakeupChannel = wakeupChannel;
+        this.workerManager = workerManager;
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void recordTaskCreated(TaskCreatedEvent event) {
+        wakeupChannel.record(event.taskId());
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onTaskCreated(TaskCreatedEvent event) {
+        wakeupChannel.publish(event.taskId());
+    }
+
+    // Only reaches the local worker; a task running on another node stops at its next heartbeat, which fails
+    // once the row is no longer PENDING or RUNNING.
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onTaskCancelled(TaskCancelledEvent event) {
+        workerManager.cancelTask(event.taskId());
+    }
+}
@@ -0,0 +1,52 @@
+package com.moments.optimizer.worker;
+
+import com.moments.optimizer.model.CancellationScope;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+class TaskExecution {
+
+    static final String ABANDONED = CancellationScope.ABANDONED;
+
+    final String taskId;
+    // The node holding the task's lease; every status and checkpoint write of the run is conditioned on it.
+    final String owner;
+    final Set<Long> runningStepIds = ConcurrentHashMap.newKeySet();
+    final Map<Long, CancellationScope> stepScopes = new ConcurrentHashMap<>();
+    volatile boolean leaseLost;
+    volatile LocalDateTime retryAt;
+    private volatile String cancelReason;
+
+    TaskExecution(String taskId, String owner) {
+        this.taskId = taskId;
+        this.owner = owner;
+    }
+
+    // A write that found another owner (or none): the task was re-queued, so this run stops recording.
+    void loseLease() {
+        leaseLost = true;
+        cancel(ABANDONED);
+    }
+
+    String cancelReason() {
+        return cancelReason;
+    }
+
+    // First reason wins; every in-flight step is aborted, and steps registered later are aborted on entry.
+    synchronized void cancel(String reason) {
+        if (cancelReason == null) {
+            cancelReason = reason;
+        }
+        stepScopes.values().forEach(scope -> scope.cancel(cancelReason));
+    }
+
+    synchronized void register(Long stepId, CancellationScope scope) {
+        stepScopes.put(stepId, scope);
+        if (cancelReason != null) {
+            scope.cancel(cancelReason);
+        }
+    }
+}
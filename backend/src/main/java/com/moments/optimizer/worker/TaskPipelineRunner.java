@@ -0,0 +1,383 @@
+package com.moments.optimizer.worker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.TaskContext;
+import com.moments.optimizer.service.TaskPipelines;
+import com.moments.optimizer.service.TaskService;
+import com.moments.optimizer.service.TaskStreamService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+class TaskPipelineRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(TaskPipelineRunner.class);
+    // How often a runner with steps waiting for a full async pool retries them and rechecks cancellation.
+    private static final long PERMIT_POLL_MS = 50L;
+
+    enum Outcome { SUCCEEDED, FAILED, RETRY_SCHEDULED, CANCELLED, ABANDONED }
+
+    private final TaskService taskService;
+    private final StepHandlerRegistry handlers;
+    private final ScheduledExecutorService deadlineTimer;
+    private final StepRetryPolicy retryPolicy;
+    private final TaskStreamService streams;
+    private final ObjectMapper objectMapper;
+
+    TaskPipelineRunner(TaskService taskService,
+                       StepHandlerRegistry handlers,
+                       ScheduledExecutorService deadlineTimer,
+                       StepRetryPolicy retryPolicy,
+                       TaskStreamService streams,
+                       ObjectMapper objectMapper) {
+        this.taskService = taskService;
+        this.handlers = handlers;
+        this.deadlineTimer = deadlineTimer;
+        this.retryPolicy = retryPolicy;
+        this.streams = streams;
+        this.objectMapper = objectMapper;
+    }
+
+    Outcome run(Task task, TaskExecution execution) {
+        String taskId = task.getId();
+        List<TaskStep> steps = taskService.prepareStepsForResume(taskId, execution.owner);
+        Map<String, TaskStep> nodes = new LinkedHashMap<>();
+        Map<String, List<String>> dependencies = new HashMap<>();
+        TaskStep previous = null;
+        for (TaskStep step : steps) {
+            String key = TaskPipelines.nodeKey(step);
+            nodes.put(key, step);
+            dependencies.put(key, TaskPipelines.dependencies(step, previous));
+            previous = step;
+        }
+
+        // Payload parsed at most once for the whole run; step outputs are added as steps succeed.
+        TaskContext context = new TaskContext(task, objectMapper);
+        Set<String> done = new HashSet<>();
+        Set<String> pending = new LinkedHashSet<>();
+        nodes.forEach((key, step) -> {
+            if ("SUCCESS".equals(step.getStatus())) {
+                context.putOutput(key, taskService.readStepCheckpoint(step));
+                done.add(key);
+            } else {
+                pending.add(key);
+            }
+        });
+        if (!done.isEmpty()) {
+            log.info("Task {} resumed from {} checkpointed step(s)", taskId, done.size());
+        }
+
+        long taskDeadline = toMillis(task.getDeadlineAt());
+        // Tasks created before deadlines existed have neither limit; the HTTP read timeout still applies.
+        long stepTimeoutMs = task.getStepTimeoutMs() == null ? 0L : task.getStepTimeoutMs();
+        // One completion queue shared by every handler pool the task's steps land on.
+        BlockingQueue<Future<StepResult>> completed = new LinkedBlockingQueue<>();
+        Map<Long, ScheduledFuture<?>> timers = new HashMap<>();
+        int running = 0;
+        StepResult failure = null;
+        StepResult retrying = null;
+        LocalDateTime retryAt = null;
+        try {
+            while (true) {
+                if (System.currentTimeMillis() >= taskDeadline) {
+                    execution.cancel(CancellationScope.DEADLINE_EXCEEDED);
+                }
+                boolean awaitingPermit = false;
+                if (failure == null && retrying == null && execution.cancelReason() == null && !execution.leaseLost) {
+                    for (Iterator<String> it = pending.iterator(); it.hasNext(); ) {
+                        String key = it.next();
+                        if (!done.containsAll(dependencies.get(key))) {
+                            continue;
+                        }
+                        StepHandler handler = handlers.handlerFor(nodes.get(key).getStepKey());
+                        Semaphore permits = handler.isAsync() ? handlers.permitsFor(handler) : null;
+                        if (permits != null && !permits.tryAcquire()) {
+                            // The pool is full: the step stays PENDING and this thread keeps watching for
+                            // completions, cancellation and the deadline instead of blocking on the pool.
+                            awaitingPermit = true;
+                            continue;
+                        }
+                        it.remove();
+                        TaskStep step;
+                        try {
+                            step = taskService.markStepRunning(nodes.get(key).getId(), execution.owner);
+                        } catch (RuntimeException ex) {
+                            if (permits != null) {
+                                permits.release();
+                            }
+                            throw ex;
+                        }
+                        if (step == null) {
+                            if (permits != null) {
+                                permits.release();
+                            }
+                            execution.loseLease();
+                            break;
+                        }
+                        execution.runningStepIds.add(step.getId());
+                        CancellationScope scope = openScope(execution, step, taskDeadline, stepTimeoutMs, timers);
+                        if (permits != null) {
+                            startAsyncStep(key, context, step, handler, permits, scope, completed);
+                        } else {
+                            new ExecutorCompletionService<StepResult>(handlers.executorFor(handler), completed)
+                                    .submit(() -> runStep(key, context, step, handler, scope));
+                        }
+                        running++;
+                    }
+                }
+                if (running == 0 && !awaitingPermit) {
+                    break;
+                }
+                Future<StepResult> next = awaitingPermit
+                        ? completed.poll(PERMIT_POLL_MS, TimeUnit.MILLISECONDS)
+                        : completed.take();
+                if (next == null) {
+                    continue;
+                }
+                StepResult result = next.get();
+                running--;
+                execution.runningStepIds.remove(result.step().getId());
+                execution.stepScopes.remove(result.step().getId());
+                ScheduledFuture<?> timer = timers.remove(result.step().getId());
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                if (isStopped(execution)) {
+                    // Cancelled or taken over elsewhere: whoever owns the task now decides what the step becomes.
+                    continue;
+                }
+                if (result.error() == null) {
+                    if (!taskService.markStepSuccess(result.step().getId(), execution.owner, result.output())) {
+                        execution.loseLease();
+                        continue;
+                    }
+                    context.putOutput(result.key(), result.output());
+                    done.add(result.key());
+                    log.info("Task {} step {} -> SUCCESS", taskId, result.key());
+                } else if (execution.cancelReason() == null
+                        && retryPolicy.isRetryable(result.error(), attempts(result.step()))) {
+                    // Parked rather than slept on: the task goes back to the queue once every retry is due.
+                    LocalDateTime nextAttemptAt = LocalDateTime.now().plus(retryPolicy.backoff(attempts(result.step())));
+                    if (!taskService.scheduleStepRetry(result.step().getId(), execution.owner, nextAttemptAt)) {
+                        execution.loseLease();
+                        continue;
+                    }
+                    retryAt = retryAt == null || nextAttemptAt.isAfter(retryAt) ? nextAttemptAt : retryAt;
+                    if (retrying == null) {
+                        retrying = result;
+                    }
+                    log.info("Task {} step {} attempt {} failed, retrying at {}", taskId, result.key(),
+                            attempts(result.step()), nextAttemptAt);
+                } else {
+                    if (!taskService.markStepFailed(result.step().getId(), execution.owner,
+                            stepErrorMessage(result.error()))) {
+                        execution.loseLease();
+                        continue;
+                    }
+                    if (failure == null) {
+                        failure = result;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            execution.cancel(TaskExecution.ABANDONED);
+            log.warn("Task {} interrupted, leaving it to be resumed from checkpoints", taskId);
+            return Outcome.ABANDONED;
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Step wrapper failed for task " + taskId, ex);
+        }
+
+        if (CancellationScope.CANCELLED.equals(execution.cancelReason())) {
+            log.info("Task {} cancelled, in-flight steps aborted", taskId);
+            return Outcome.CANCELLED;
+        }
+        if (execution.leaseLost) {
+            log.info("Task {} stopped because its lease was lost", taskId);
+            return Outcome.ABANDONED;
+        }
+        if (CancellationScope.DEADLINE_EXCEEDED.equals(execution.cancelReason())) {
+            return finish(execution, taskService.markTaskFailed(taskId, execution.owner, "Task deadline exceeded"),
+                    Outcome.FAILED);
+        }
+        if (failure != null) {
+            return finish(execution, taskService.markTaskFailed(taskId, execution.owner, failureMessage(failure)),
+                    Outcome.FAILED);
+        }
+        if (retrying != null) {
+            String message = "Retrying step " + retrying.key() + " after: " + retrying.error().getMessage();
+            if (!taskService.parkTaskForRetry(taskId, execution.owner, retryAt, message)) {
+                return Outcome.ABANDONED;
+            }
+            execution.retryAt = retryAt;
+            return Outcome.RETRY_SCHEDULED;
+        }
+        if (!pending.isEmpty()) {
+            log.error("Task {} has steps whose dependencies can never complete: {}", taskId, pending);
+            return finish(execution,
+                    taskService.markTaskFailed(taskId, execution.owner, "Unresolvable step dependencies"),
+                    Outcome.FAILED);
+        }
+        return finish(execution, taskService.markTaskSuccess(taskId, execution.owner, context.outputs()),
+                Outcome.SUCCEEDED);
+    }
+
+    // A final write that matched no row means another node owns the task now; this run's result is dropped.
+    private static Outcome finish(TaskExecution execution, boolean written, Outcome outcome) {
+        if (written) {
+            return outcome;
+        }
+        execution.loseLease();
+        log.info("Task {} lease lost before its final status was written", execution.taskId);
+        return Outcome.ABANDONED;
+    }
+
+    private CancellationScope openScope(TaskExecution execution,
+                                        TaskStep step,
+                                        long taskDeadline,
+                                        long stepTimeoutMs,
+                                        Map<Long, ScheduledFuture<?>> timers) {
+        long now = System.currentTimeMillis();
+        long stepDeadline = stepTimeoutMs > 0 ? now + stepTimeoutMs : Long.MAX_VALUE;
+        boolean taskBound = taskDeadline <= stepDeadline;
+        long deadline = Math.min(stepDeadline, taskDeadline);
+        CancellationScope scope = new CancellationScope(deadline);
+        execution.register(step.getId(), scope);
+        if (deadline != Long.MAX_VALUE) {
+            String reason = taskBound ? CancellationScope.DEADLINE_EXCEEDED : CancellationScope.STEP_TIMEOUT;
+            timers.put(step.getId(), deadlineTimer.schedule(() -> {
+                if (taskBound) {
+                    execution.cancel(reason);
+                } else {
+                    scope.cancel(reason);
+                }
+            }, Math.max(0L, deadline - now), TimeUnit.MILLISECONDS));
+        }
+        return scope;
+    }
+
+    private StepResult runStep(String key,
+                               TaskContext context,
+                               TaskStep step,
+                               StepHandler handler,
+                               CancellationScope scope) {
+        scope.enter();
+        try {
+            if (scope.isCancelled()) {
+                return new StepResult(key, step, null, aborted(scope));
+            }
+            Map<String, Object> output = handler.handle(context, step, streams.listenerFor(context.taskId(), step));
+            return new StepResult(key, step, output, null);
+        } catch (ModelClientException ex) {
+            ModelClientException error = scope.isCancelled() ? aborted(scope) : ex;
+            log.error("Task {} step {} failed (code={}, message={})", context.taskId(), key,
+                    error.getErrorCode(), error.getMessage());
+            return new StepResult(key, step, null, error);
+        } catch (Exception ex) {
+            if (scope.isCancelled()) {
+                return new StepResult(key, step, null, aborted(scope));
+            }
+            log.error("Task {} step {} failed with unexpected error", context.taskId(), key, ex);
+            return new StepResult(key, step, null, ex);
+        } finally {
+            scope.exit();
+        }
+    }
+
+    private void startAsyncStep(String key,
+                                TaskContext context,
+                                TaskStep step,
+                                StepHandler handler,
+                                Semaphore permits,
+                                CancellationScope scope,
+                                BlockingQueue<Future<StepResult>> completed) {
+        CompletableFuture<Map<String, Object>> call;
+        boolean interrupted = Thread.currentThread().isInterrupted();
+        scope.enter();
+        try {
+            call = scope.isCancelled() ? CompletableFuture.failedFuture(aborted(scope))
+                    : handler.handleAsync(context, step, streams.listenerFor(context.taskId(), step));
+        } catch (RuntimeException ex) {
+            call = CompletableFuture.failedFuture(ex);
+        } finally {
+            scope.exit();
+            if (interrupted) {
+                // exit() clears the flag for pooled step threads; the runner thread must keep a shutdown interrupt.
+                Thread.currentThread().interrupt();
+            }
+        }
+        call.whenComplete((output, error) -> {
+            permits.release();
+            StepResult result;
+            if (error == null) {
+                result = new StepResult(key, step, output, null);
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                Exception failure = scope.isCancelled() ? aborted(scope)
+                        : cause instanceof Exception ex ? ex : new IllegalStateException(cause);
+                log.error("Task {} step {} failed (message={})", context.taskId(), key, failure.getMessage());
+                result = new StepResult(key, step, null, failure);
+            }
+            completed.add(CompletableFuture.completedFuture(result));
+        });
+    }
+
+    private static ModelClientException aborted(CancellationScope scope) {
+        return new ModelClientException(scope.reason(), "Model call aborted: " + scope.reason());
+    }
+
+    private static boolean isStopped(TaskExecution execution) {
+        String reason = execution.cancelReason();
+        return reason != null && !CancellationScope.DEADLINE_EXCEEDED.equals(reason);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? Long.MAX_VALUE : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static String stepErrorMessage(Exception error) {
+        return error instanceof ModelClientException ? error.getMessage() : "Unexpected error";
+    }
+
+    private static String failureMessage(StepResult failure) {
+        if (!(failure.error() instanceof ModelClientException)) {
+            return "Unexpected error";
+        }
+        int attempts = attempts(failure.step());
+        return attempts > 1
+                ? "Step failed after " + attempts + " attempts: " + failure.error().getMessage()
+                : "Step failed: " + failure.error().getMessage();
+    }
+
+    private static int attempts(TaskStep step) {
+        return step.getAttemptCount() == null ? 1 : Math.max(1, step.getAttemptCount());
+    }
+
+    private record StepResult(String key, TaskStep step, Map<String, Object> output, Exception error) {}
+}
@@ -0,0 +1,22 @@
+package com.moments.optimizer.worker;
+
+public interface TaskWakeupChannel {
+
+    /**
+     * Called inside the transaction that creates the task, so a wakeup that must outlive this node commits or
+     * rolls back with the task. Channels that only reach this node record nothing.
+     */
+    default void record(String taskId) {
+    }
+
+    /** Called once the task is committed; wakes the listeners on this node. */
+    void publish(String taskId);
+
+    void subscribe(Runnable listener);
+
+    default void start() {
+    }
+
+    default void stop() {
+    }
+}
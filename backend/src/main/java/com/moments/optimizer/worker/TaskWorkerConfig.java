@@ -1,14 +1,35 @@
 package com.moments.optimizer.worker;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.image.ImageIngestor;
+import com.moments.optimizer.mapper.TaskWakeupOutboxMapper;
 import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelRateLimiter;
+import com.moments.optimizer.model.RateLimitedModelClient;
+import com.moments.optimizer.model.cache.CachingModelClient;
+import com.moments.optimizer.model.cache.StepResponseCache;
 import com.moments.optimizer.service.TaskService;
-import jakarta.annotation.PostConstruct;
+import com.moments.optimizer.service.TaskStreamService;
 import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 @Configuration
 public class TaskWorkerConfig {
@@ -16,37 +37,207 @@ public class TaskWorkerConfig {
     private static final Logger log = LoggerFactory.getLogger(TaskWorkerConfig.class);
 
     private final TaskService taskService;
-    private final boolean enabled;
     private final ModelClient modelClient;
+    private final ObjectMapper objectMapper;
+    private final TaskWorkerSettings settings;
     private TaskWorkerManager manager;
 
     public TaskWorkerConfig(TaskService taskService,
                             ModelClient modelClient,
-                            @Value("${moments.worker.enabled:true}") boolean enabled) {
+                            ObjectProvider<StepResponseCache> stepResponseCache,
+                            ObjectProvider<ModelRateLimiter> modelRateLimiter,
+                            ObjectMapper objectMapper,
+                            @Value("${moments.model.cache.steps:}") String cachedSteps,
+                            @Value("${moments.model.cache.ignored-options:deadlineSeconds,stepTimeoutSeconds}") String ignoredOptions,
+                            @Value("${moments.worker.enabled:true}") boolean enabled,
+                            @Value("${moments.worker.concurrency:8}") int concurrency,
+                            @Value("${moments.worker.virtual-threads:false}") boolean virtualThreads,
+                            @Value("${moments.worker.node-id:}") String nodeId,
+                            @Value("${moments.worker.lease-seconds:60}") long leaseSeconds,
+                            @Value("${moments.worker.poll-min-ms:1000}") long pollMinMs,
+                            @Value("${moments.worker.poll-max-ms:30000}") long pollMaxMs,
+                            @Value("${moments.worker.heartbeat-timeout-seconds:120}") long heartbeatTimeoutSeconds,
+                            @Value("${moments.worker.reaper.max-requeues:3}") int maxRequeues,
+                            @Value("${moments.worker.reaper.interval-seconds:30}") long reaperIntervalSeconds) {
         this.taskService = taskService;
-        this.modelClient = modelClient;
-        this.enabled = enabled;
+        this.objectMapper = objectMapper;
+        ModelRateLimiter limiter = modelRateLimiter.getIfAvailable();
+        // Pacing happens before the circuit breaker so queued calls are not counted as slow calls.
+        ModelClient limited = limiter == null ? modelClient : new RateLimitedModelClient(modelClient, limiter);
+        StepResponseCache cache = stepResponseCache.getIfAvailable();
+        // The cache sits in front of the circuit breaker, so hits are served even while a circuit is open.
+        this.modelClient = cache == null ? limited
+                : new CachingModelClient(limited, cache, objectMapper, parseList(cachedSteps), parseList(ignoredOptions));
+        long safeLeaseSeconds = Math.max(5L, leaseSeconds);
+        this.settings = new TaskWorkerSettings(
+                enabled,
+                concurrency,
+                virtualThreads,
+                nodeId == null || nodeId.isBlank() ? defaultNodeId() : nodeId,
+                Duration.ofSeconds(safeLeaseSeconds),
+                pollMinMs,
+                pollMaxMs,
+                Duration.ofSeconds(Math.max(safeLeaseSeconds, heartbeatTimeoutSeconds)),
+                maxRequeues,
+                reaperIntervalSeconds);
+    }
+
+    @Bean
+    public TaskWakeupChannel taskWakeupChannel(TaskWakeupOutboxMapper outboxMapper,
+                                               @Value("${moments.worker.wakeup-channel:local}") String channelType,
+                                               @Value("${moments.worker.outbox-poll-ms:500}") long outboxPollMs) {
+        if ("outbox".equalsIgnoreCase(channelType)) {
+            log.info("Using outbox task wakeup channel (poll {}ms)", outboxPollMs);
+            return new OutboxTaskWakeupChannel(outboxMapper, outboxPollMs);
+        }
+        return new LocalTaskWakeupChannel();
+    }
+
+    @Bean
+    public FairTaskScheduler fairTaskScheduler(
+            @Value("${moments.scheduler.role-weights:admin=4,vip=2,normal=1}") String roleWeights,
+            @Value("${moments.scheduler.max-running-per-user:4}") int maxRunningPerUser) {
+        Map<String, Double> weights = parseRoleWeights(roleWeights);
+        log.info("Fair task scheduler role weights {} (max running per user {})", weights, maxRunningPerUser);
+        return new FairTaskScheduler(weights, weights.getOrDefault("normal", 1.0), maxRunningPerUser);
+    }
+
+    @Bean
+    public StepRetryPolicy stepRetryPolicy(
+            @Value("${moments.retry.max-attempts:HTTP_ERROR=4,REMOTE_ERROR=3,STEP_TIMEOUT=2,CIRCUIT_OPEN=6,RATE_LIMITED=6}") String maxAttempts,
+            @Value("${moments.retry.base-delay-ms:2000}") long baseDelayMs,
+            @Value("${moments.retry.max-delay-ms:60000}") long maxDelayMs) {
+        Map<String, Integer> attemptsByCode = parseAttemptLimits(maxAttempts);
+        log.info("Step retry policy {} (backoff {}-{}ms)", attemptsByCode, baseDelayMs, maxDelayMs);
+        return new StepRetryPolicy(attemptsByCode, Duration.ofMillis(Math.max(1L, baseDelayMs)),
+                Duration.ofMillis(Math.max(1L, maxDelayMs)));
+    }
+
+    @Bean
+    public StepHandlerRegistry stepHandlerRegistry(
+            ObjectProvider<StepHandler> customHandlers,
+            ObjectProvider<ImageIngestor> imageIngestor,
+            @Value("${moments.worker.step-concurrency:16}") int defaultPoolSize,
+            @Value("${moments.worker.pools.cpu:0}") int cpuPoolSize,
+            @Value("${moments.worker.pools.image:8}") int imagePoolSize,
+            @Value("${moments.worker.pools.image-model:8}") int imageModelPoolSize,
+            @Value("${moments.worker.pools.llm:8}") int llmPoolSize) {
+        List<StepHandler> handlers = new ArrayList<>();
+        handlers.add(new ModelClientStepHandler(
+                Set.of("image_processing", "image_result_saved", "prompt_building", "final_result"),
+                StepHandler.POOL_CPU, modelClient));
+        handlers.add(new ModelClientStepHandler(Set.of("image_model_call"), StepHandler.POOL_IMAGE_MODEL, modelClient));
+        handlers.add(new ModelClientStepHandler(Set.of("llm_call"), StepHandler.POOL_LLM, modelClient));
+        ImageIngestor ingestor = imageIngestor.getIfAvailable();
+        if (ingestor != null) {
+            handlers.add(new ImageProcessingStepHandler(ingestor));
+            handlers.add(new ImageAttachingStepHandler(new ModelClientStepHandler(Set.of("image_model_call"),
+                    StepHandler.POOL_IMAGE_MODEL, modelClient),
+                    (context, step) -> ingestor.attach(context, step.getBranchIndex())));
+            if (ingestor.stores()) {
+                handlers.add(new ImageAttachingStepHandler(new ModelClientStepHandler(Set.of("image_result_saved"),
+                        StepHandler.POOL_CPU, modelClient), (context, step) -> ingestor.attachImagePaths(context)));
+            }
+        }
+        customHandlers.orderedStream().forEach(handlers::add);
+        Map<String, Integer> poolSizes = new HashMap<>();
+        poolSizes.put(StepHandler.POOL_DEFAULT, defaultPoolSize);
+        poolSizes.put(StepHandler.POOL_CPU, cpuPoolSize > 0 ? cpuPoolSize : Runtime.getRuntime().availableProcessors());
+        if (ingestor != null) {
+            // Fetching is IO-bound, so image branches get their own threads instead of the CPU pool's.
+            poolSizes.put(StepHandler.POOL_IMAGE, imagePoolSize);
+        }
+        poolSizes.put(StepHandler.POOL_IMAGE_MODEL, imageModelPoolSize);
+        poolSizes.put(StepHandler.POOL_LLM, llmPoolSize);
+        StepHandler fallback = new ModelClientStepHandler(Set.of(), StepHandler.POOL_DEFAULT, modelClient);
+        return new StepHandlerRegistry(handlers, fallback, poolSizes);
     }
 
     @Bean
-    public TaskWorkerManager taskWorkerManager() {
-        this.manager = new TaskWorkerManager(taskService, modelClient, enabled);
+    public TaskWorkerManager taskWorkerManager(TaskWakeupChannel taskWakeupChannel,
+                                               FairTaskScheduler fairTaskScheduler,
+                                               StepRetryPolicy stepRetryPolicy,
+                                               StepHandlerRegistry stepHandlerRegistry,
+                                               TaskStreamService taskStreamService) {
+        this.manager = new TaskWorkerManager(taskService, stepHandlerRegistry, taskWakeupChannel, fairTaskScheduler,
+                stepRetryPolicy, taskStreamService, objectMapper, settings);
         return this.manager;
     }
 
-    @PostConstruct
+    // Started once the context is ready: a @PostConstruct here runs before the manager bean exists.
+    @EventListener(ApplicationReadyEvent.class)
     public void startWorker() {
         if (manager == null) {
             return;
         }
-        if (enabled) {
-            log.info("Starting task worker (enabled={})", enabled);
+        if (settings.enabled()) {
+            log.info("Starting task worker (enabled={})", settings.enabled());
             manager.start();
         } else {
             log.info("Task worker disabled by configuration (moments.worker.enabled=false)");
         }
     }
 
+    private static Map<String, Double> parseRoleWeights(String spec) {
+        Map<String, Double> weights = new HashMap<>();
+        if (spec == null || spec.isBlank()) {
+            return weights;
+        }
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                log.warn("Ignoring malformed role weight entry '{}'", entry);
+                continue;
+            }
+            try {
+                weights.put(parts[0].trim().toLowerCase(), Double.parseDouble(parts[1].trim()));
+            } catch (NumberFormatException ex) {
+                log.warn("Ignoring non-numeric role weight entry '{}'", entry);
+            }
+        }
+        return weights;
+    }
+
+    private static Set<String> parseList(String spec) {
+        Set<String> values = new LinkedHashSet<>();
+        for (String value : spec == null ? new String[0] : spec.split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    private static Map<String, Integer> parseAttemptLimits(String spec) {
+        Map<String, Integer> limits = new HashMap<>();
+        if (spec == null || spec.isBlank()) {
+            return limits;
+        }
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                log.warn("Ignoring malformed retry entry '{}'", entry);
+                continue;
+            }
+            try {
+                limits.put(parts[0].trim().toUpperCase(), Integer.parseInt(parts[1].trim()));
+            } catch (NumberFormatException ex) {
+                log.warn("Ignoring non-numeric retry entry '{}'", entry);
+            }
+        }
+        return limits;
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            host = "worker";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
     @PreDestroy
     public void stopWorker() {
         if (manager != null) {
@@ -1,36 +1,106 @@
 package com.moments.optimizer.worker;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.moments.optimizer.domain.Task;
-import com.moments.optimizer.domain.TaskStep;
-import com.moments.optimizer.model.ModelClient;
-import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.domain.TaskClaimCandidate;
+import com.moments.optimizer.metrics.MetricsSource;
+import com.moments.optimizer.model.CancellationScope;
 import com.moments.optimizer.service.TaskService;
+import com.moments.optimizer.service.TaskStreamService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class TaskWorkerManager {
+public class TaskWorkerManager implements MetricsSource {
 
     private static final Logger log = LoggerFactory.getLogger(TaskWorkerManager.class);
     private static final int SCAN_LIMIT = 1020;
-    private static final long SCAN_INTERVAL_SECONDS = 5L;
+    private static final long SHUTDOWN_WAIT_SECONDS = 30L;
+    private static final int REAP_BATCH = 200;
 
     private final TaskService taskService;
     private final boolean enabled;
-    private final ModelClient modelClient;
-    private ScheduledExecutorService executor;
+    private final StepHandlerRegistry stepHandlers;
+    private final int concurrency;
+    private final boolean virtualThreads;
+    private final String nodeId;
+    private final Duration leaseDuration;
+    private final TaskWakeupChannel wakeupChannel;
+    private final FairTaskScheduler scheduler;
+    private final StepRetryPolicy retryPolicy;
+    private final TaskStreamService streams;
+    private final ObjectMapper objectMapper;
+    private final long pollMinMs;
+    private final long pollMaxMs;
+    private final Duration heartbeatTimeout;
+    private final int maxRequeues;
+    private final long reaperIntervalSeconds;
+    private final Semaphore wakeSignal = new Semaphore(0);
+    private final Map<String, TaskExecution> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong leasesLost = new AtomicLong();
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong wakeups = new AtomicLong();
+    private final AtomicLong reapedRequeued = new AtomicLong();
+    private final AtomicLong reapedAbandoned = new AtomicLong();
+    private final AtomicLong retriesScheduled = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong nextRetryDueMillis = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean running;
+    private volatile boolean backlogLikely;
+    private volatile long currentPollMs;
+    private Thread dispatchThread;
+    private ScheduledExecutorService housekeeper;
+    private ExecutorService taskExecutor;
+    private TaskPipelineRunner pipelineRunner;
 
-    public TaskWorkerManager(TaskService taskService, ModelClient modelClient, boolean enabled) {
+    public TaskWorkerManager(TaskService taskService,
+                             StepHandlerRegistry stepHandlers,
+                             TaskWakeupChannel wakeupChannel,
+                             FairTaskScheduler scheduler,
+                             StepRetryPolicy retryPolicy,
+                             TaskStreamService streams,
+                             ObjectMapper objectMapper,
+                             TaskWorkerSettings settings) {
         this.taskService = taskService;
-        this.modelClient = modelClient;
-        this.enabled = enabled;
+        this.stepHandlers = stepHandlers;
+        this.wakeupChannel = wakeupChannel;
+        this.scheduler = scheduler;
+        this.retryPolicy = retryPolicy;
+        this.streams = streams;
+        this.objectMapper = objectMapper;
+        this.enabled = settings.enabled();
+        this.concurrency = Math.max(1, settings.concurrency());
+        this.virtualThreads = settings.virtualThreads();
+        this.nodeId = settings.nodeId();
+        this.leaseDuration = settings.leaseDuration();
+        this.pollMinMs = Math.max(10L, settings.pollMinMs());
+        this.pollMaxMs = Math.max(this.pollMinMs, settings.pollMaxMs());
+        this.currentPollMs = this.pollMinMs;
+        this.heartbeatTimeout = settings.heartbeatTimeout();
+        this.maxRequeues = Math.max(0, settings.maxRequeues());
+        this.reaperIntervalSeconds = Math.max(1L, settings.reaperIntervalSeconds());
     }
 
     public void start() {
@@ -38,97 +108,304 @@ public class TaskWorkerManager {
             log.info("Task worker is disabled by configuration.");
             return;
         }
-        if (executor != null && !executor.isShutdown()) {
+        if (running) {
             return;
         }
-        executor = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory());
-        executor.scheduleAtFixedRate(this::safeScan, 0, SCAN_INTERVAL_SECONDS, TimeUnit.SECONDS);
-        log.info("Task worker started with interval {}s and scan limit {}", SCAN_INTERVAL_SECONDS, SCAN_LIMIT);
+        running = true;
+        taskExecutor = createTaskExecutor();
+        stepHandlers.start();
+        housekeeper = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("task-housekeeper"));
+        pipelineRunner = new TaskPipelineRunner(taskService, stepHandlers, housekeeper, retryPolicy, streams,
+                objectMapper);
+        long heartbeatMillis = Math.max(1000L, leaseDuration.toMillis() / 3);
+        housekeeper.scheduleAtFixedRate(this::sendHeartbeats, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        housekeeper.scheduleWithFixedDelay(this::reapStaleTasks, reaperIntervalSeconds, reaperIntervalSeconds,
+                TimeUnit.SECONDS);
+        wakeupChannel.subscribe(this::wakeUp);
+        wakeupChannel.start();
+        dispatchThread = new WorkerThreadFactory("task-dispatcher").newThread(this::dispatchLoop);
+        dispatchThread.start();
+        log.info("Task worker {} started with poll {}-{}ms, scan limit {}, concurrency {} (virtualThreads={}), lease {}s",
+                nodeId, pollMinMs, pollMaxMs, SCAN_LIMIT, concurrency, virtualThreads, leaseDuration.toSeconds());
     }
 
     public void stop() {
-        if (executor != null) {
-            executor.shutdown();
+        running = false;
+        wakeupChannel.stop();
+        if (dispatchThread != null) {
+            dispatchThread.interrupt();
         }
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        if (taskExecutor != null) {
+            taskExecutor.shutdown();
+            try {
+                if (!taskExecutor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Task executor did not terminate within {}s, {} task(s) still in flight",
+                            SHUTDOWN_WAIT_SECONDS, inFlight.size());
+                    taskExecutor.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                taskExecutor.shutdownNow();
+            }
+        }
+        stepHandlers.stop();
         log.info("Task worker stopped.");
     }
 
-    private void safeScan() {
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public boolean cancelTask(String taskId) {
+        TaskExecution execution = inFlight.get(taskId);
+        if (execution == null) {
+            return false;
+        }
+        execution.cancel(CancellationScope.CANCELLED);
+        return true;
+    }
+
+    public void wakeUp() {
+        wakeups.incrementAndGet();
+        if (wakeSignal.availablePermits() == 0) {
+            wakeSignal.release();
+        }
+    }
+
+    @Override
+    public String metricsName() {
+        return "worker";
+    }
+
+    @Override
+    public Map<String, Object> metricsSnapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("enabled", enabled);
+        snapshot.put("nodeId", nodeId);
+        snapshot.put("concurrency", concurrency);
+        snapshot.put("virtualThreads", virtualThreads);
+        snapshot.put("inFlight", inFlight.size());
+        snapshot.put("dispatched", dispatched.get());
+        snapshot.put("succeeded", succeeded.get());
+        snapshot.put("failed", failed.get());
+        snapshot.put("rejected", rejected.get());
+        snapshot.put("leasesLost", leasesLost.get());
+        snapshot.put("scans", scans.get());
+        snapshot.put("wakeups", wakeups.get());
+        snapshot.put("currentPollMs", currentPollMs);
+        snapshot.put("reapedRequeued", reapedRequeued.get());
+        snapshot.put("reapedAbandoned", reapedAbandoned.get());
+        snapshot.put("retriesScheduled", retriesScheduled.get());
+        snapshot.put("cancelled", cancelled.get());
+        snapshot.put("scheduler", scheduler.snapshot());
+        snapshot.put("stepPools", stepHandlers.snapshot());
+        snapshot.put("retry", retryPolicy.snapshot());
+        return snapshot;
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            int claimed = safeScan();
+            // Back off while the table is idle; any claimed work or push wakeup resets to the fast interval.
+            currentPollMs = claimed > 0 ? pollMinMs : Math.min(pollMaxMs, currentPollMs * 2);
+            try {
+                if (wakeSignal.tryAcquire(nextWaitMillis(), TimeUnit.MILLISECONDS)) {
+                    wakeSignal.drainPermits();
+                    currentPollMs = pollMinMs;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private long nextWaitMillis() {
+        long due = nextRetryDueMillis.get();
+        if (due == Long.MAX_VALUE) {
+            return currentPollMs;
+        }
+        long untilDue = due - System.currentTimeMillis();
+        if (untilDue <= 0) {
+            // The scan after this wait picks up the retry; later retries re-arm the timer when parked.
+            nextRetryDueMillis.compareAndSet(due, Long.MAX_VALUE);
+            return 0L;
+        }
+        return Math.min(currentPollMs, untilDue);
+    }
+
+    private int safeScan() {
         try {
-            scanAndProcess();
+            return scanAndProcess();
         } catch (Exception ex) {
             log.error("Worker scan failed", ex);
+            return 0;
         }
     }
 
-    private void scanAndProcess() {
-        List<Task> tasks = taskService.findRunnableTasks(SCAN_LIMIT);
+    private int scanAndProcess() {
+        int capacity = concurrency - inFlight.size();
+        if (capacity <= 0) {
+            backlogLikely = true;
+            return 0;
+        }
+        scans.incrementAndGet();
+        int perUserLimit = scheduler.getMaxRunningPerUser() > 0
+                ? Math.min(capacity, scheduler.getMaxRunningPerUser())
+                : capacity;
+        // Every user with due work gets a head in the candidate set, so role weights decide among all of them
+        // rather than among the owners of the oldest rows; the longest-waiting users come first.
+        int userLimit = Math.max(1, SCAN_LIMIT / perUserLimit);
+        List<TaskClaimCandidate> candidates = taskService.findClaimCandidates(perUserLimit, userLimit);
+        if (candidates.isEmpty()) {
+            backlogLikely = false;
+            return 0;
+        }
+        Map<String, Integer> running = taskService.countRunningByUser(
+                candidates.stream().map(TaskClaimCandidate::getUserId).toList());
+        List<TaskClaimCandidate> selected = scheduler.select(candidates, running, capacity);
+        List<String> selectedIds = selected.stream().map(TaskClaimCandidate::getId).toList();
+        List<Task> tasks = new ArrayList<>(taskService.claimTasks(selectedIds, nodeId, leaseDuration));
+        // Keep the scheduler's order rather than the table's.
+        tasks.sort(Comparator.comparingInt(task -> selectedIds.indexOf(task.getId())));
+        backlogLikely = selected.size() >= capacity;
+        int submitted = 0;
         for (Task task : tasks) {
-            switch (task.getStatus()) {
-                case "PENDING" -> processPending(task);
-                case "RUNNING" -> processRunning(task);
-                default -> {
+            TaskExecution execution = new TaskExecution(task.getId(), nodeId);
+            if (inFlight.putIfAbsent(task.getId(), execution) != null) {
+                continue;
+            }
+            try {
+                taskExecutor.execute(() -> runTask(task, execution));
+                dispatched.incrementAndGet();
+                submitted++;
+            } catch (RejectedExecutionException ex) {
+                inFlight.remove(task.getId());
+                releaseLease(task.getId());
+                rejected.incrementAndGet();
+                log.warn("Task {} rejected by executor, will retry on next scan", task.getId());
+            }
+        }
+        return submitted;
+    }
+
+    private void sendHeartbeats() {
+        for (TaskExecution execution : inFlight.values()) {
+            if (execution.leaseLost) {
+                continue;
+            }
+            try {
+                if (!taskService.heartbeat(execution.taskId, nodeId, execution.runningStepIds, leaseDuration)) {
+                    execution.loseLease();
+                    leasesLost.incrementAndGet();
+                    log.warn("Task {} lease lost or task cancelled, worker {} aborting its in-flight steps",
+                            execution.taskId, nodeId);
                 }
+            } catch (Exception ex) {
+                log.warn("Failed to send heartbeat for task {}: {}", execution.taskId, ex.getMessage());
             }
         }
     }
 
-    private void processPending(Task task) {
+    private void reapStaleTasks() {
         try {
-            taskService.markTaskRunning(task.getId());
-            TaskStep first = taskService.markFirstStepRunning(task.getId());
-            log.info("Task {} transitioned PENDING -> RUNNING, first step {}", task.getId(),
-                    first != null ? first.getStepKey() : "none");
+            TaskService.ReapResult result = taskService.reapStaleTasks(heartbeatTimeout, maxRequeues, REAP_BATCH);
+            if (result.requeued() > 0 || result.abandoned() > 0) {
+                reapedRequeued.addAndGet(result.requeued());
+                reapedAbandoned.addAndGet(result.abandoned());
+                log.warn("Reaped stale tasks: {} requeued, {} failed after {} requeue(s)",
+                        result.requeued(), result.abandoned(), maxRequeues);
+            }
+            if (result.requeued() > 0) {
+                wakeUp();
+            }
         } catch (Exception ex) {
-            log.error("Failed to start task {}", task.getId(), ex);
-            taskService.markTaskFailed(task.getId(), "Failed to start task");
+            log.error("Stale task reaper failed", ex);
         }
     }
 
-    private void processRunning(Task task) {
-        String taskId = task.getId();
-        Map<String, Object> accumulated = new HashMap<>();
-        boolean failed = false;
-        while (true) {
-            TaskStep next = taskService.getNextPendingStep(taskId);
-            if (next == null) {
-                // No pending steps: mark success
-                taskService.markTaskSuccess(taskId, accumulated);
-                log.info("Task {} transitioned RUNNING -> SUCCESS", taskId);
+    private void runTask(Task task, TaskExecution execution) {
+        try {
+            if ("PENDING".equals(task.getStatus()) && !processPending(task, execution)) {
                 return;
             }
-            try {
-                Map<String, Object> stepResult = modelClient.runStep(next.getStepKey(), task, next);
-                taskService.markStepSuccess(next.getId());
-                accumulated.put(next.getStepKey(), stepResult);
-                log.info("Task {} step {} -> SUCCESS", taskId, next.getStepKey());
-            } catch (ModelClientException ex) {
-                failed = true;
-                log.error("Task {} step {} failed (code={}, message={})", taskId, next.getStepKey(),
-                        ex.getErrorCode(), ex.getMessage());
-                taskService.markStepFailed(next.getId(), ex.getMessage());
-                taskService.markTaskFailed(taskId, "Step failed: " + ex.getMessage());
-                break;
-            } catch (Exception ex) {
-                failed = true;
-                log.error("Task {} step {} failed with unexpected error", taskId, next.getStepKey(), ex);
-                taskService.markStepFailed(next.getId(), "Unexpected error");
-                taskService.markTaskFailed(taskId, "Unexpected error");
-                break;
+            switch (pipelineRunner.run(task, execution)) {
+                case SUCCEEDED -> {
+                    succeeded.incrementAndGet();
+                    log.info("Task {} transitioned RUNNING -> SUCCESS", task.getId());
+                }
+                case FAILED -> {
+                    failed.incrementAndGet();
+                    log.info("Task {} transitioned RUNNING -> FAILED", task.getId());
+                }
+                case RETRY_SCHEDULED -> {
+                    retriesScheduled.incrementAndGet();
+                    scheduleRetryWakeup(execution.retryAt);
+                    log.info("Task {} transitioned RUNNING -> PENDING, retry due at {}", task.getId(), execution.retryAt);
+                }
+                case CANCELLED -> {
+                    cancelled.incrementAndGet();
+                    log.info("Task {} transitioned RUNNING -> CANCELLED", task.getId());
+                }
+                case ABANDONED -> log.info("Task {} left for another attempt by worker {}", task.getId(), nodeId);
+            }
+        } catch (Exception ex) {
+            failed.incrementAndGet();
+            log.error("Task {} aborted with unexpected error", task.getId(), ex);
+        } finally {
+            inFlight.remove(task.getId());
+            if (!execution.leaseLost) {
+                releaseLease(task.getId());
             }
+            if (backlogLikely) {
+                wakeUp();
+            }
+        }
+    }
+
+    private void scheduleRetryWakeup(LocalDateTime retryAt) {
+        long dueMillis = retryAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        nextRetryDueMillis.accumulateAndGet(dueMillis, Math::min);
+    }
+
+    private void releaseLease(String taskId) {
+        try {
+            taskService.releaseLease(taskId, nodeId);
+        } catch (Exception ex) {
+            log.warn("Failed to release lease for task {}: {}", taskId, ex.getMessage());
         }
-        if (failed) {
-            log.info("Task {} transitioned RUNNING -> FAILED", taskId);
+    }
+
+    private boolean processPending(Task task, TaskExecution execution) {
+        try {
+            if (taskService.markTaskRunning(task.getId(), nodeId) == null) {
+                execution.loseLease();
+                log.info("Task {} lease lost before it started on worker {}", task.getId(), nodeId);
+                return false;
+            }
+            log.info("Task {} transitioned PENDING -> RUNNING", task.getId());
+            return true;
+        } catch (Exception ex) {
+            failed.incrementAndGet();
+            log.error("Failed to start task {}", task.getId(), ex);
+            taskService.markTaskFailed(task.getId(), nodeId, "Failed to start task");
+            return false;
         }
     }
 
-    private static class WorkerThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new Thread(r);
-            t.setName("task-worker-thread");
-            t.setDaemon(true);
-            return t;
+    private ExecutorService createTaskExecutor() {
+        if (virtualThreads) {
+            try {
+                // Java 21+: resolved reflectively so the build keeps targeting Java 17.
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                log.warn("Virtual threads are not available on this JVM, falling back to a platform pool");
+            }
         }
+        return new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(concurrency), new WorkerThreadFactory("task-worker"));
     }
 }
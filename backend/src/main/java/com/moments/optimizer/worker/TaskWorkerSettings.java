@@ -0,0 +1,15 @@
+package com.moments.optimizer.worker;
+
+import java.time.Duration;
+
+public record TaskWorkerSettings(boolean enabled,
+                                 int concurrency,
+                                 boolean virtualThreads,
+                                 String nodeId,
+                                 Duration leaseDuration,
+                                 long pollMinMs,
+                                 long pollMaxMs,
+                                 Duration heartbeatTimeout,
+                                 int maxRequeues,
+                                 long reaperIntervalSeconds) {
+}
@@ -0,0 +1,31 @@
+CREATE TABLE image_blobs (
+    sha256 CHAR(64) NOT NULL PRIMARY KEY,
+    size_bytes BIGINT NOT NULL,
+    ref_count INT NOT NULL DEFAULT 0,
+    created_at DATETIME(3) NOT NULL,
+    released_at DATETIME(3)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+CREATE INDEX idx_image_blobs_unreferenced ON image_blobs (ref_count, released_at);
+
+CREATE TABLE image_refs (
+    owner_id VARCHAR(64) NOT NULL,
+    sha256 CHAR(64) NOT NULL,
+    created_at DATETIME(3) NOT NULL,
+    PRIMARY KEY (owner_id, sha256)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+CREATE INDEX idx_image_refs_sha256 ON image_refs (sha256);
+
+CREATE TABLE image_sources (
+    source_key CHAR(64) NOT NULL PRIMARY KEY,
+    sha256 CHAR(64) NOT NULL,
+    width INT NOT NULL,
+    height INT NOT NULL,
+    source_width INT NOT NULL,
+    source_height INT NOT NULL,
+    source_bytes BIGINT NOT NULL,
+    created_at DATETIME(3) NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+CREATE INDEX idx_image_sources_sha256 ON image_sources (sha256);
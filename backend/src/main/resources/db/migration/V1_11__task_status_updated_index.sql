@@ -0,0 +1 @@
+CREATE INDEX idx_tasks_status_updated ON tasks (status, updated_at);
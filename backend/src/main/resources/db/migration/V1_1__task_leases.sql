@@ -0,0 +1,5 @@
+ALTER TABLE tasks
+    ADD COLUMN lease_owner VARCHAR(128) NULL,
+    ADD COLUMN lease_expires_at DATETIME(3) NULL;
+
+CREATE INDEX idx_tasks_status_lease ON tasks (status, lease_expires_at);
@@ -0,0 +1,7 @@
+CREATE TABLE task_wakeup_outbox (
+    id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    task_id VARCHAR(64) NOT NULL,
+    created_at DATETIME(3) NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+CREATE INDEX idx_task_wakeup_outbox_created ON task_wakeup_outbox (created_at);
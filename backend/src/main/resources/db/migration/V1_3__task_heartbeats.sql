@@ -0,0 +1,10 @@
+ALTER TABLE tasks
+    ADD COLUMN heartbeat_at DATETIME(3) NULL,
+    ADD COLUMN attempt_count INT NOT NULL DEFAULT 0;
+
+ALTER TABLE task_steps
+    ADD COLUMN heartbeat_at DATETIME(3) NULL;
+
+UPDATE tasks SET heartbeat_at = updated_at WHERE status = 'RUNNING';
+
+CREATE INDEX idx_tasks_status_heartbeat ON tasks (status, heartbeat_at);
@@ -0,0 +1,10 @@
+ALTER TABLE tasks
+    ADD COLUMN user_id VARCHAR(64) NULL;
+
+UPDATE tasks
+SET user_id = JSON_UNQUOTE(JSON_EXTRACT(payload_json, '$.userId'))
+WHERE user_id IS NULL
+  AND payload_json IS NOT NULL
+  AND JSON_VALID(payload_json);
+
+CREATE INDEX idx_tasks_user_status ON tasks (user_id, status);
@@ -0,0 +1 @@
+CREATE INDEX idx_tasks_status_user_created ON tasks (status, user_id, created_at);
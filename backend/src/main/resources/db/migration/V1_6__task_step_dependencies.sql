@@ -0,0 +1,3 @@
+ALTER TABLE task_steps
+    ADD COLUMN branch_index INT NULL,
+    ADD COLUMN depends_on VARCHAR(1024) NULL;
@@ -0,0 +1,8 @@
+ALTER TABLE tasks
+    ADD COLUMN next_attempt_at DATETIME(3) NULL;
+
+ALTER TABLE task_steps
+    ADD COLUMN attempt_count INT NOT NULL DEFAULT 0,
+    ADD COLUMN next_attempt_at DATETIME(3) NULL;
+
+UPDATE task_steps SET attempt_count = 1 WHERE status IN ('RUNNING', 'SUCCESS', 'FAILED');
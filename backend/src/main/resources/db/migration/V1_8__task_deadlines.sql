@@ -0,0 +1,3 @@
+ALTER TABLE tasks
+    ADD COLUMN deadline_at DATETIME(3) NULL,
+    ADD COLUMN step_timeout_ms BIGINT NULL;
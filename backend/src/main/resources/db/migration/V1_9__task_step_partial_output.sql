@@ -0,0 +1,2 @@
+ALTER TABLE task_steps
+    ADD COLUMN partial_output MEDIUMTEXT NULL;
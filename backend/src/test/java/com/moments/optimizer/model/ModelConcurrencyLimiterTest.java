@@ -0,0 +1,141 @@
+package com.moments.optimizer.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Drives the {@link ModelConcurrencyLimiter} state machine through its permits directly: additive growth while the
+ * limit is in use, multiplicative cuts on drop codes and on round-trip inflation, and the baseline probe.
+ */
+class ModelConcurrencyLimiterTest {
+
+    private static final String STEP = "llm_call";
+    private static final ModelClientException DROP = new ModelClientException("HTTP_ERROR", "unavailable");
+
+    private ModelConcurrencyLimiter limiter;
+
+    @AfterEach
+    void close() {
+        if (limiter != null) {
+            limiter.close();
+        }
+    }
+
+    @Test
+    void growsOnlyWhileTheLimitIsInUse() {
+        limiter = limiter(4, 1.0e6, 60_000L);
+        List<ModelConcurrencyLimiter.Permit> inFlight = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            inFlight.add(acquireNow());
+        }
+        for (int i = 0; i < 20; i++) {
+            inFlight.remove(0).finish(null);
+            inFlight.add(acquireNow());
+        }
+        inFlight.forEach(permit -> permit.finish(null));
+        int grown = limit();
+        assertThat(grown).isGreaterThan(4);
+
+        for (int i = 0; i < 20; i++) {
+            acquireNow().finish(null);
+        }
+        assertThat(limit()).isEqualTo(grown);
+    }
+
+    @Test
+    void cutsOnADropCodeAtMostOncePerRoundTrip() throws Exception {
+        limiter = limiter(8, 1.0e6, 60_000L);
+        List<ModelConcurrencyLimiter.Permit> inFlight = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            inFlight.add(acquireNow());
+        }
+        Thread.sleep(50);
+        inFlight.remove(0).finish(null);
+        assertThat(limit()).isEqualTo(8);
+
+        inFlight.remove(0).finish(DROP);
+        inFlight.remove(0).finish(DROP);
+        assertThat(limit()).isEqualTo(4);
+        assertThat(stepStats()).containsEntry("drops", 2L).containsEntry("decreases", 1L);
+
+        inFlight.remove(0).finish(new ModelClientException("HTTP_CLIENT_ERROR", "bad request"));
+        assertThat(limit()).isEqualTo(4);
+    }
+
+    @Test
+    void cutsWhenRoundTripsInflatePastTheBaseline() throws Exception {
+        limiter = limiter(8, 2.0, 60_000L);
+        // Released without a round trip: loads the classes on the acquire path before anything is timed.
+        acquireNow().release();
+        ModelConcurrencyLimiter.Permit fast = acquireNow();
+        Thread.sleep(5);
+        fast.finish(null);
+        assertThat(limit()).isEqualTo(8);
+
+        ModelConcurrencyLimiter.Permit slow = acquireNow();
+        Thread.sleep(300);
+        slow.finish(null);
+        assertThat(limit()).isEqualTo(4);
+    }
+
+    @Test
+    void probesByDrainingToAFractionOfTheLimit() {
+        limiter = limiter(8, 1.0e6, 0L);
+        List<ModelConcurrencyLimiter.Permit> inFlight = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            inFlight.add(acquireNow());
+        }
+        CompletableFuture<ModelConcurrencyLimiter.Permit> probe = limiter.acquire(STEP);
+        assertThat(probe).isNotDone();
+
+        // The first completion starts the probe; the queued call waits until in-flight calls drop below 8 * 0.5.
+        for (int i = 0; i < 4; i++) {
+            inFlight.remove(0).release();
+            assertThat(probe).isNotDone();
+        }
+        inFlight.remove(0).release();
+        assertThat(probe).isDone();
+        assertThat(stepStats()).containsEntry("probes", 1L);
+
+        // Others still go out next to the probe, up to the reduced limit rather than one at a time.
+        CompletableFuture<ModelConcurrencyLimiter.Permit> next = limiter.acquire(STEP);
+        assertThat(next).isNotDone();
+        inFlight.remove(0).release();
+        assertThat(next).isDone();
+
+        probe.join().finish(null);
+        assertThat(stepStats()).containsEntry("inFlight", 3);
+        assertThat(limit()).isEqualTo(8);
+    }
+
+    private ModelConcurrencyLimiter limiter(int initialLimit, double rttTolerance, long baselineWindowMillis) {
+        return new ModelConcurrencyLimiter(Set.of(STEP), Set.of("HTTP_ERROR"),
+                new ModelConcurrencyLimiter.Settings(initialLimit, 1, 64, 0.5, rttTolerance, baselineWindowMillis, 0.5));
+    }
+
+    private ModelConcurrencyLimiter.Permit acquireNow() {
+        ModelConcurrencyLimiter.Permit permit = limiter.acquire(STEP).getNow(null);
+        if (permit == null) {
+            throw new AssertionError("Permit was not granted at once");
+        }
+        return permit;
+    }
+
+    private int limit() {
+        return (int) stepStats().get("limit");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> stepStats() {
+        Map<String, Object> byStep = (Map<String, Object>) limiter.metricsSnapshot().get("byStep");
+        return (Map<String, Object>) byStep.get(STEP);
+    }
+}
@@ -0,0 +1,116 @@
+package com.moments.optimizer.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.cache.CachingModelClient;
+import com.moments.optimizer.model.cache.StepResponseCache;
+import com.moments.optimizer.service.TaskPipelines;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Runs every step of a pipeline through the default client chain on one {@link TaskContext} and counts how often
+ * the stored payload JSON is parsed.
+ */
+class TaskContextTest {
+
+    private static final String PAYLOAD = "{\"userId\":\"u1\",\"text\":\"hello\",\"options\":{\"tone\":\"warm\"},"
+            + "\"imageUrls\":[\"data:image/jpeg;base64," + "A".repeat(64 * 1024) + "\",\"https://example.com/b.jpg\"]}";
+
+    private final CountingObjectMapper objectMapper = new CountingObjectMapper(PAYLOAD);
+    private final ModelRateLimiter rateLimiter = new ModelRateLimiter(Map.of(), Map.of(),
+            new ModelRateLimiter.Limits(0, 0), 60_000L, 512, 800);
+
+    @AfterEach
+    void close() {
+        rateLimiter.close();
+    }
+
+    @Test
+    void parsesThePayloadOnceForEveryStepOfARun() throws Exception {
+        ModelClient client = new CachingModelClient(
+                new RateLimitedModelClient(new StubModelClient(objectMapper), rateLimiter),
+                new StepResponseCache(60_000L, 100, 1L << 20, null, 0L, 0L), objectMapper, Set.of(), Set.of());
+        Task task = task(PAYLOAD);
+        List<TaskStep> steps = TaskPipelines.buildSteps(task.getId(), task.getType(), 2);
+        TaskContext context = new TaskContext(task, objectMapper);
+
+        assertThat(context.userId()).isEqualTo("u1");
+        for (TaskStep step : steps) {
+            Map<String, Object> output = client.runStep(step.getStepKey(), context, step);
+            context.putOutput(step.getStepKey() + (step.getBranchIndex() == null ? "" : "#" + step.getBranchIndex()),
+                    output);
+        }
+
+        assertThat(steps).hasSize(8);
+        assertThat(context.outputs()).hasSize(8);
+        assertThat(objectMapper.payloadParses.get()).isEqualTo(1);
+    }
+
+    @Test
+    void remembersAPayloadThatFailedToParse() {
+        String broken = "{\"text\":";
+        CountingObjectMapper mapper = new CountingObjectMapper(broken);
+        TaskContext context = new TaskContext(task(broken), mapper);
+
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(context::payload).isInstanceOfSatisfying(ModelClientException.class,
+                    ex -> assertThat(ex.getErrorCode()).isEqualTo("PARSE_ERROR"));
+        }
+        assertThat(mapper.payloadParses.get()).isEqualTo(1);
+    }
+
+    private static Task task(String payloadJson) {
+        Task task = new Task();
+        task.setId("t1");
+        task.setType(TaskPipelines.DEFAULT_TYPE);
+        task.setPayloadJson(payloadJson);
+        return task;
+    }
+
+    // Counts every parse of the payload text, whichever read method a client or decorator would use.
+    private static final class CountingObjectMapper extends ObjectMapper {
+        private final String payloadJson;
+        private final AtomicInteger payloadParses = new AtomicInteger();
+
+        private CountingObjectMapper(String payloadJson) {
+            this.payloadJson = payloadJson;
+        }
+
+        @Override
+        public <T> T readValue(String content, TypeReference<T> valueTypeRef) throws JsonProcessingException {
+            count(content);
+            return super.readValue(content, valueTypeRef);
+        }
+
+        @Override
+        public <T> T readValue(String content, Class<T> valueType) throws JsonProcessingException {
+            count(content);
+            return super.readValue(content, valueType);
+        }
+
+        @Override
+        public JsonNode readTree(String content) throws JsonProcessingException {
+            count(content);
+            return super.readTree(content);
+        }
+
+        private void count(String content) {
+            if (payloadJson.equals(content)) {
+                payloadParses.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.StubModelClient;
+import com.moments.optimizer.model.TaskContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Runs {@link AsyncHttpModelClient} and its blocking {@code runStep} adapter against a stand-in model service on a
+ * local port that answers {@code /internal/model/runStep} after a fixed latency, with {@link StubModelClient} as the
+ * no-network baseline.
+ */
+class AsyncHttpModelClientTest {
+
+    private static final String STEP = "llm_call";
+    private static final long LATENCY_MS = 50;
+    private static final int CALLS = 200;
+    private static final int BLOCKING_THREADS = 16;
+
+    static {
+        // Without it the stand-in's split header and body writes wait out the client's delayed ACK (~40 ms).
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private volatile int status = 200;
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private AsyncHttpModelClient client;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), CALLS);
+        server.createContext(ModelHttpCodec.PATH, this::answerStep);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        client = new AsyncHttpModelClient(AsyncHttpModelClient.buildHttpClient(2000), objectMapper,
+                ModelEndpointBalancer.single("http://127.0.0.1:" + server.getAddress().getPort()), "", "", 5000,
+                Set.of());
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    void blockingAdapterReturnsTheStepOutput() throws Exception {
+        assertThat(client.runStep(STEP, context("t1"), new TaskStep())).containsEntry("echo", "t1");
+    }
+
+    @Test
+    void overlapsCallsIssuedFromOneThread() throws Exception {
+        client.runStep(STEP, context("warm-up"), new TaskStep());
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            calls.add(client.runStepAsync(STEP, context("t" + i), new TaskStep()));
+        }
+        CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        long asyncMillis = elapsedMillis(start);
+
+        for (int i = 0; i < CALLS; i++) {
+            assertThat(calls.get(i).join()).containsEntry("echo", "t" + i);
+        }
+        // Back to back the calls would take CALLS * LATENCY_MS (10 s); overlapped they take a few round trips.
+        assertThat(asyncMillis).isLessThan(CALLS * LATENCY_MS / 4);
+    }
+
+    @Test
+    void blockingAdapterHoldsOneThreadPerCall() throws Exception {
+        client.runStep(STEP, context("warm-up"), new TaskStep());
+
+        long blockingMillis = runOnThreads(client);
+        long stubMillis = runOnThreads(new StubModelClient(objectMapper));
+
+        // Each thread waits out every one of its calls: at least CALLS / BLOCKING_THREADS round trips.
+        assertThat(blockingMillis).isGreaterThanOrEqualTo(CALLS / BLOCKING_THREADS * LATENCY_MS);
+        assertThat(stubMillis).isLessThan(LATENCY_MS * 10);
+    }
+
+    @Test
+    void cancellingTheScopeAbortsABlockedCall() {
+        CancellationScope scope = new CancellationScope(Long.MAX_VALUE);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        timer.schedule(() -> scope.cancel(CancellationScope.CANCELLED), LATENCY_MS / 2, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        scope.enter();
+        try {
+            assertThatThrownBy(() -> client.runStep(STEP, context("t1"), new TaskStep()))
+                    .isInstanceOfSatisfying(ModelClientException.class,
+                            ex -> assertThat(ex.getErrorCode()).isEqualTo(CancellationScope.CANCELLED));
+        } finally {
+            scope.exit();
+            timer.shutdownNow();
+        }
+        assertThat(elapsedMillis(start)).isLessThan(LATENCY_MS * 4);
+    }
+
+    @Test
+    void mapsAClientErrorStatusToANonRetryableCode() {
+        status = 422;
+        assertThatThrownBy(() -> client.runStep(STEP, context("t1"), new TaskStep()))
+                .isInstanceOfSatisfying(ModelClientException.class,
+                        ex -> assertThat(ex.getErrorCode()).isEqualTo("HTTP_CLIENT_ERROR"));
+    }
+
+    private long runOnThreads(ModelClient modelClient) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(BLOCKING_THREADS);
+        try {
+            long start = System.nanoTime();
+            List<Future<Map<String, Object>>> calls = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                TaskContext context = context("t" + i);
+                calls.add(threads.submit(() -> modelClient.runStep(STEP, context, new TaskStep())));
+            }
+            for (Future<Map<String, Object>> call : calls) {
+                assertThat(call.get(10, TimeUnit.SECONDS)).isNotEmpty();
+            }
+            return elapsedMillis(start);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private TaskContext context(String taskId) {
+        Task task = new Task();
+        task.setId(taskId);
+        task.setType("default");
+        task.setPayloadJson("{\"text\":\"hello\"}");
+        return new TaskContext(task, objectMapper);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000L;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void answerStep(HttpExchange exchange) throws IOException {
+        Map<String, Object> request = objectMapper.readValue(exchange.getRequestBody(), Map.class);
+        try {
+            Thread.sleep(LATENCY_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] body = status == 200
+                ? objectMapper.writeValueAsBytes(Map.of("success", true, "data", Map.of("echo", request.get("taskId"))))
+                : "{\"error\":\"rejected\"}".getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
@@ -0,0 +1,179 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CancellationScope;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.TaskContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Runs {@link ModelCallBatcher} against a stand-in model service on a local port that answers
+ * {@code /internal/model/runStepBatch} by echoing each item's task id.
+ */
+class ModelCallBatcherTest {
+
+    private static final String STEP = "llm_call";
+
+    static {
+        // Without it the stand-in's split header and body writes wait out the client's delayed ACK (~40 ms).
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<List<String>> receivedBatches = new CopyOnWriteArrayList<>();
+    private volatile int status = 200;
+    private volatile String failingTaskId;
+    private HttpServer server;
+    private ModelCallBatcher batcher;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(ModelCallBatcher.BATCH_PATH, this::answerBatch);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        batcher = new ModelCallBatcher(HttpClient.newHttpClient(), objectMapper,
+                ModelEndpointBalancer.single("http://127.0.0.1:" + server.getAddress().getPort()), "", "", 5000,
+                Map.of(STEP, new ModelCallBatcher.Limits(4, 50)));
+    }
+
+    @AfterEach
+    void stopServer() {
+        batcher.close();
+        server.stop(0);
+    }
+
+    @Test
+    void splitsCallsIntoBatchesOfAtMostMaxItems() throws Exception {
+        List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            calls.add(submit("t" + i));
+        }
+        CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+        assertThat(receivedBatches).extracting(List::size).containsExactlyInAnyOrder(4, 4, 2);
+        Map<String, Object> stats = stepStats();
+        assertThat(stats.get("fullFlushes")).isEqualTo(2L);
+        assertThat(stats.get("timerFlushes")).isEqualTo(1L);
+    }
+
+    @Test
+    void givesEachCallerTheResultAtItsOwnPosition() throws Exception {
+        List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            calls.add(submit("t" + i));
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            assertThat(calls.get(i).get(5, TimeUnit.SECONDS)).containsEntry("echo", "t" + i);
+        }
+        assertThat(receivedBatches.stream().flatMap(List::stream))
+                .containsExactlyInAnyOrder("t0", "t1", "t2", "t3", "t4", "t5", "t6");
+    }
+
+    @Test
+    void withdrawsACancelledCallerBeforeTheBatchIsSent() throws Exception {
+        CompletableFuture<Map<String, Object>> kept = submit("kept");
+        CancellationScope scope = new CancellationScope(Long.MAX_VALUE);
+        scope.enter();
+        CompletableFuture<Map<String, Object>> withdrawn;
+        try {
+            withdrawn = submit("withdrawn");
+        } finally {
+            scope.exit();
+        }
+        scope.cancel(CancellationScope.CANCELLED);
+
+        assertThat(kept.get(5, TimeUnit.SECONDS)).containsEntry("echo", "kept");
+        assertThatThrownBy(withdrawn::get).isInstanceOf(ExecutionException.class)
+                .cause().isInstanceOfSatisfying(ModelClientException.class,
+                        ex -> assertThat(ex.getErrorCode()).isEqualTo(CancellationScope.CANCELLED));
+        assertThat(receivedBatches).containsExactly(List.of("kept"));
+    }
+
+    @Test
+    void failsEveryItemOfAFailedBatch() throws Exception {
+        status = 500;
+        List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            calls.add(submit("t" + i));
+        }
+        for (CompletableFuture<Map<String, Object>> call : calls) {
+            assertThatThrownBy(() -> call.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                    .cause().isInstanceOfSatisfying(ModelClientException.class,
+                            ex -> assertThat(ex.getErrorCode()).isEqualTo("HTTP_ERROR"));
+        }
+        assertThat(stepStats().get("failedBatches")).isEqualTo(1L);
+    }
+
+    @Test
+    void failsOnlyTheCallerWhoseItemFailed() throws Exception {
+        failingTaskId = "t1";
+        List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            calls.add(submit("t" + i));
+        }
+
+        assertThat(calls.get(0).get(5, TimeUnit.SECONDS)).containsEntry("echo", "t0");
+        assertThatThrownBy(() -> calls.get(1).get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                .cause().isInstanceOfSatisfying(ModelClientException.class, ex -> {
+                    assertThat(ex.getErrorCode()).isEqualTo("REMOTE_ERROR");
+                    assertThat(ex.getMessage()).isEqualTo("bad item t1");
+                });
+        assertThat(calls.get(2).get(5, TimeUnit.SECONDS)).containsEntry("echo", "t2");
+        assertThat(stepStats().get("failedBatches")).isEqualTo(0L);
+    }
+
+    private CompletableFuture<Map<String, Object>> submit(String taskId) {
+        Task task = new Task();
+        task.setId(taskId);
+        task.setType("default");
+        task.setPayloadJson("{}");
+        return batcher.submit(STEP, new TaskContext(task, objectMapper), new TaskStep());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> stepStats() {
+        return (Map<String, Object>) batcher.metricsSnapshot().get(STEP);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void answerBatch(HttpExchange exchange) throws IOException {
+        Map<String, Object> request = objectMapper.readValue(exchange.getRequestBody(), Map.class);
+        List<String> taskIds = new ArrayList<>();
+        List<Object> results = new ArrayList<>();
+        for (Map<String, Object> item : (List<Map<String, Object>>) request.get("items")) {
+            taskIds.add((String) item.get("taskId"));
+            results.add(item.get("taskId").equals(failingTaskId)
+                    ? Map.of("success", false, "message", "bad item " + item.get("taskId"))
+                    : Map.of("success", true, "data", Map.of("echo", item.get("taskId"))));
+        }
+        receivedBatches.add(taskIds);
+        byte[] body = status == 200
+                ? objectMapper.writeValueAsBytes(Map.of("success", true, "data", Map.of("results", results)))
+                : "unavailable".getBytes();
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
@@ -0,0 +1,201 @@
+package com.moments.optimizer.model.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moments.optimizer.domain.Task;
+import com.moments.optimizer.domain.TaskStep;
+import com.moments.optimizer.model.CircuitBreaker;
+import com.moments.optimizer.model.ModelClient;
+import com.moments.optimizer.model.ModelClientException;
+import com.moments.optimizer.model.TaskContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs {@link ModelEndpointBalancer} over three stand-in model service replicas on local ports. Replica C can be
+ * switched between failing with 503 and answering normally.
+ */
+class ModelEndpointBalancerTest {
+
+    private static final String STEP = "llm_call";
+
+    static {
+        // Without it the stand-in's split header and body writes wait out the client's delayed ACK (~40 ms).
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<Replica> replicas = new ArrayList<>();
+
+    @BeforeEach
+    void startReplicas() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            replicas.add(new Replica());
+        }
+        // The first calls load classes and open connections; that latency would steer the balancer's picks.
+        replicas.get(2).broken = true;
+        call(client(balancer(60_000L)), 30);
+        replicas.forEach(replica -> {
+            replica.broken = false;
+            replica.hits.set(0);
+        });
+    }
+
+    @AfterEach
+    void stopReplicas() {
+        replicas.forEach(replica -> replica.server.stop(0));
+    }
+
+    @Test
+    void ejectsAFailingReplica() {
+        Replica failing = replicas.get(2);
+        failing.broken = true;
+        slowDownOthers(failing);
+        ModelEndpointBalancer balancer = balancer(60_000L);
+        ModelClient client = client(balancer);
+
+        int failures = callUntilEjected(client, balancer, failing);
+
+        assertThat(state(balancer, failing)).isEqualTo("EJECTED");
+        assertThat(failures).isEqualTo(failing.hits.get());
+        int hitsWhenEjected = failing.hits.get();
+        assertThat(call(client, 30)).isZero();
+        assertThat(failing.hits.get()).isEqualTo(hitsWhenEjected);
+    }
+
+    @Test
+    void readmitsAReplicaThatRecovers() throws InterruptedException {
+        Replica failing = replicas.get(2);
+        failing.broken = true;
+        slowDownOthers(failing);
+        ModelEndpointBalancer balancer = balancer(300L);
+        ModelClient client = client(balancer);
+        callUntilEjected(client, balancer, failing);
+        assertThat(state(balancer, failing)).isEqualTo("EJECTED");
+
+        failing.broken = false;
+        Thread.sleep(400L);
+        int hitsBefore = failing.hits.get();
+
+        assertThat(call(client, 60)).isZero();
+        assertThat(failing.hits.get()).isGreaterThan(hitsBefore);
+        assertThat(state(balancer, failing)).isEqualTo("CLOSED");
+    }
+
+    @Test
+    void keepsCallingTheReplicaDueBackFirstWhenAllAreEjected() {
+        replicas.forEach(replica -> replica.broken = true);
+        ModelEndpointBalancer balancer = balancer(60_000L);
+        ModelClient client = client(balancer);
+        replicas.forEach(replica -> callUntilEjected(client, balancer, replica));
+        int hitsWhenAllEjected = replicas.stream().mapToInt(replica -> replica.hits.get()).sum();
+
+        assertThat(call(client, 5)).isEqualTo(5);
+        assertThat(replicas.stream().mapToInt(replica -> replica.hits.get()).sum())
+                .isEqualTo(hitsWhenAllEjected + 5);
+        assertThat((Long) balancer.metricsSnapshot().get("panicCalls")).isPositive();
+    }
+
+    // Slow-call ejection is off, so only the 503s count and a failure adds no latency penalty.
+    private ModelEndpointBalancer balancer(long ejectMs) {
+        List<String> urls = replicas.stream().map(replica -> replica.baseUrl).toList();
+        return new ModelEndpointBalancer(urls, new CircuitBreaker.Settings(10, 4, 0.5, 1.0, 0L, ejectMs, 2),
+                Set.of("HTTP_ERROR"));
+    }
+
+    private ModelClient client(ModelEndpointBalancer balancer) {
+        return new HttpModelClient(new RestTemplate(new CancellableClientHttpRequestFactory()), objectMapper,
+                balancer, "", "", 5000, Set.of());
+    }
+
+    // Sequential calls; returns how many failed with HTTP_ERROR.
+    private int call(ModelClient client, int count) {
+        Task task = new Task();
+        task.setId("t");
+        task.setType("default");
+        task.setPayloadJson("{}");
+        TaskContext context = new TaskContext(task, objectMapper);
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                client.runStep(STEP, context, new TaskStep());
+            } catch (ModelClientException ex) {
+                assertThat(ex.getErrorCode()).isEqualTo("HTTP_ERROR");
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    // A replica that fails fast looks like the quickest one, which is when ejection matters; it also makes the
+    // balancer pick it again as soon as it is re-admitted and healthy.
+    private void slowDownOthers(Replica failing) {
+        replicas.stream().filter(replica -> replica != failing).forEach(replica -> replica.delayMs = 10L);
+    }
+
+    // Picks are random, so keep calling until the replica has failed often enough to be ejected.
+    private int callUntilEjected(ModelClient client, ModelEndpointBalancer balancer, Replica replica) {
+        int failures = 0;
+        for (int i = 0; i < 500 && !"EJECTED".equals(state(balancer, replica)); i++) {
+            failures += call(client, 1);
+        }
+        return failures;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String state(ModelEndpointBalancer balancer, Replica replica) {
+        List<Map<String, Object>> entries = (List<Map<String, Object>>) balancer.metricsSnapshot().get("replicas");
+        return entries.stream()
+                .filter(entry -> replica.baseUrl.equals(entry.get("baseUrl")))
+                .map(entry -> (String) entry.get("state"))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static final class Replica {
+        private final HttpServer server;
+        private final String baseUrl;
+        private final AtomicInteger hits = new AtomicInteger();
+        private volatile boolean broken;
+        private volatile long delayMs;
+
+        private Replica() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/internal/model/runStep", this::answer);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+            baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        private void answer(HttpExchange exchange) throws IOException {
+            exchange.getRequestBody().readAllBytes();
+            hits.incrementAndGet();
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = broken ? "unavailable".getBytes() : "{\"success\":true,\"data\":{\"ok\":1}}".getBytes();
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(broken ? 503 : 200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        }
+    }
+}